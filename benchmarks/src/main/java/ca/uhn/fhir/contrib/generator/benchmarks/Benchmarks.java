@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * Runs the benchmarks like {@code org.openjdk.jmh.Main}, with the GC profiler on unless other profilers are given, so
+ * every run reports allocation rates next to the timings.
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        String[] jmhArgs = args;
+        if (!Arrays.asList(args).contains("-prof")) {
+            jmhArgs = Arrays.copyOf(args, args.length + 2);
+            jmhArgs[args.length] = "-prof";
+            jmhArgs[args.length + 1] = "gc";
+        }
+        org.openjdk.jmh.Main.main(jmhArgs);
+    }
+}
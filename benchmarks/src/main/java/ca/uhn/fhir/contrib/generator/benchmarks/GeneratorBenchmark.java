@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.forge.roaster.model.source.JavaClassSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.contrib.generator.FileStructureDefinitionProvider;
+import ca.uhn.fhir.contrib.generator.GenerationResult;
+import ca.uhn.fhir.contrib.generator.Generator;
+import ca.uhn.fhir.contrib.generator.GeneratorOptions;
+import ca.uhn.fhir.contrib.generator.RoasterSourceEmitter;
+import ca.uhn.fhir.contrib.generator.StructureDefinitionRegistry;
+
+/**
+ * Converting a profile end to end: parsing it, resolving its extensions with an empty registry, walking the
+ * differential and rendering the class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeneratorBenchmark {
+
+    /** Of the bundled profiles, only these convert without errors */
+    @Param({"simple-patient.json", "nl-core-patient.json"})
+    public String profile;
+
+    @Param({"direct", "roaster"})
+    public String emitter;
+
+    private FileStructureDefinitionProvider provider;
+    private GeneratorOptions options;
+
+    @Setup
+    public void setUp() throws IOException {
+        final File file = Profiles.file(profile);
+        provider = new FileStructureDefinitionProvider(Profiles.PACKAGE, file);
+        options = "roaster".equals(emitter) ? GeneratorOptions.defaults().withEmitter(new RoasterSourceEmitter()) : GeneratorOptions.defaults();
+        final GenerationResult result = generateResult();
+        if (!result.isSuccess()) {
+            throw new IllegalStateException("Could not convert " + file, result.getError());
+        }
+    }
+
+    @Benchmark
+    public GenerationResult generateResult() {
+        return new Generator(new StructureDefinitionRegistry(), options).generateResult(provider);
+    }
+
+    /**
+     * The static entry point, which also builds the Roaster class the caller gets back.
+     */
+    @Benchmark
+    public JavaClassSource generate() throws Exception {
+        return Generator.generate(provider);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The profiles bundled with the generator tests, copied out of the benchmark jar into a directory once per JVM. The
+ * providers read files, and find referenced extensions next to the profile.
+ */
+final class Profiles {
+
+    static final String PACKAGE = "ca.uhn.fhir.contrib.generator.benchmarks.generated";
+
+    private static final String[] NAMES = {
+            "nl-core-patient.json", "nl-core-preferred-pharmacy.xml", "patient-nationality.xml", "FunctioningCondition.xml", "simple-patient.json"
+    };
+
+    private static File directory;
+
+    private Profiles() {
+    }
+
+    static synchronized File file(final String name) throws IOException {
+        if (directory == null) {
+            final File dir = Files.createTempDirectory("profiles").toFile();
+            for (final String profile : NAMES) {
+                try (InputStream in = Profiles.class.getResourceAsStream("/profiles/" + profile)) {
+                    if (in == null) {
+                        throw new IOException("Profile not bundled: " + profile);
+                    }
+                    Files.copy(in, new File(dir, profile).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                new File(dir, profile).deleteOnExit();
+            }
+            dir.deleteOnExit();
+            directory = dir;
+        }
+        return new File(directory, name);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator.benchmarks;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.contrib.generator.BytecodeEmitter;
+import ca.uhn.fhir.contrib.generator.ClassModel;
+import ca.uhn.fhir.contrib.generator.DirectSourceEmitter;
+import ca.uhn.fhir.contrib.generator.FileStructureDefinitionProvider;
+import ca.uhn.fhir.contrib.generator.GenerationResult;
+import ca.uhn.fhir.contrib.generator.Generator;
+import ca.uhn.fhir.contrib.generator.RoasterSourceEmitter;
+
+/**
+ * Rendering an already converted class, with each emitter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({"simple-patient.json"})
+    public String profile;
+
+    private ClassModel model;
+    private final DirectSourceEmitter direct = new DirectSourceEmitter();
+    private final RoasterSourceEmitter roaster = new RoasterSourceEmitter();
+    private final BytecodeEmitter bytecode = new BytecodeEmitter();
+
+    @Setup
+    public void setUp() throws IOException {
+        final GenerationResult result = new Generator().generateResult(new FileStructureDefinitionProvider(Profiles.PACKAGE, Profiles.file(profile)));
+        if (!result.isSuccess()) {
+            throw new IllegalStateException("Could not convert " + profile, result.getError());
+        }
+        model = result.getModel();
+    }
+
+    @Benchmark
+    public StringBuilder direct() throws IOException {
+        final StringBuilder source = new StringBuilder(16 * 1024);
+        direct.emit(model, source);
+        return source;
+    }
+
+    @Benchmark
+    public StringBuilder roaster() throws IOException {
+        final StringBuilder source = new StringBuilder(16 * 1024);
+        roaster.emit(model, source);
+        return source;
+    }
+
+    @Benchmark
+    public Map<String, byte[]> bytecode() {
+        return bytecode.emit(model);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.contrib.generator.ResourceParser;
+
+/**
+ * Finding the fields and accessors of the HAPI model class of the profiled resource. {@link ResourceParser} reads
+ * them from the index built with the generator and keeps the result for the life of the JVM, so {@link #cold()}
+ * measures the first call in a fresh JVM, including loading the index, and {@link #cached()} every call after it.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResourceParserBenchmark {
+
+    /** The resources profiled by the bundled profiles, and the one ResourceParser.main looks at */
+    @Param({"Patient", "Condition", "Observation"})
+    public String type;
+
+    private Class<? extends IBaseResource> resourceClass;
+
+    @Setup
+    public void setUp() throws ClassNotFoundException {
+        resourceClass = Class.forName("org.hl7.fhir.dstu3.model." + type).asSubclass(IBaseResource.class);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(10)
+    public Map<String, ResourceParser.FieldInfo> cold() {
+        return new ResourceParser().parseResource(resourceClass);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public Map<String, ResourceParser.FieldInfo> cached() {
+        return new ResourceParser().parseResource(resourceClass);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.contrib.generator.FileStructureDefinitionProvider;
+import ca.uhn.fhir.contrib.generator.GenerationResult;
+import ca.uhn.fhir.contrib.generator.Generator;
+import ca.uhn.fhir.contrib.generator.StructureDefinitionRegistry;
+
+/**
+ * Converts {@link SyntheticProfiles synthetic profiles} of growing size. The time per conversion should grow about
+ * linearly with {@code elements} and {@code extensions}; compare the score divided by the size between rows to spot
+ * superlinear growth. The {@code peakHeapMb} counter is the highest heap use seen during an iteration, read from the
+ * JVM's memory pools; it includes garbage not yet collected, so it is an upper bound.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ScalingBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    public int elements;
+
+    @Param({"1", "3"})
+    public int sliceDepth;
+
+    @Param({"10", "300"})
+    public int extensions;
+
+    private File directory;
+    private FileStructureDefinitionProvider provider;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("synthetic").toFile();
+        final File file = SyntheticProfiles.write(directory, "synthetic-patient", elements, sliceDepth, extensions);
+        provider = new FileStructureDefinitionProvider(Profiles.PACKAGE, file);
+        final GenerationResult result = convert();
+        if (!result.isSuccess()) {
+            throw new IllegalStateException("Could not convert " + file, result.getError());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /**
+     * A new registry per conversion, so every extension definition is read and resolved each time.
+     */
+    @Benchmark
+    public GenerationResult generateResult(final Heap heap) {
+        return convert();
+    }
+
+    private GenerationResult convert() {
+        return new Generator(new StructureDefinitionRegistry()).generateResult(provider);
+    }
+
+    /**
+     * Reports the peak heap use of each iteration as the {@code peakHeapMb} counter.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+        public double peakHeapMb;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            System.gc();
+            for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void read() {
+            long peak = 0;
+            for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            peakHeapMb = peak / (1024.0 * 1024.0);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.ElementDefinition;
+import org.hl7.fhir.dstu3.model.ElementDefinition.DiscriminatorType;
+import org.hl7.fhir.dstu3.model.ElementDefinition.SlicingRules;
+import org.hl7.fhir.dstu3.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.dstu3.model.StructureDefinition;
+import org.hl7.fhir.dstu3.model.StructureDefinition.StructureDefinitionKind;
+import org.hl7.fhir.dstu3.model.StructureDefinition.TypeDerivationRule;
+import org.hl7.fhir.dstu3.model.UriType;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.contrib.generator.FhirContextRegistry;
+
+/**
+ * Writes synthetic Patient profiles of a chosen size, for measuring how the generator scales beyond the small bundled
+ * profiles. A profile has
+ * <ul>
+ * <li>{@code extensions} extension slices, each referencing its own extension definition written next to the
+ * profile,</li>
+ * <li>slices of {@code Patient.identifier}, each with a few constrained children and, below that, slices of the
+ * {@code extension} element nested {@code sliceDepth} levels deep,</li>
+ * </ul>
+ * and as many identifier slices as it takes to reach {@code elements} differential elements.
+ * <p>
+ * Run {@code main} to write a corpus to disk: {@code SyntheticProfiles <directory> <elements> <sliceDepth> <extensions>
+ * [<profiles>]}.
+ */
+public final class SyntheticProfiles {
+
+    static final String BASE_URL = "http://example.org/fhir/StructureDefinition/";
+
+    /** Slices per nested slicing level, kept small so deep nesting does not explode */
+    private static final int NESTED_SLICES = 2;
+    private static final String[] VALUE_TYPES = {"string", "boolean", "dateTime", "CodeableConcept", "Quantity", "Coding", "integer"};
+
+    private SyntheticProfiles() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: SyntheticProfiles <directory> <elements> <sliceDepth> <extensions> [<profiles>]");
+            System.exit(2);
+        }
+        final File directory = new File(args[0]);
+        final int profiles = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        for (int i = 0; i < profiles; i++) {
+            final File file = write(directory, "synthetic-patient-" + i, Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                    Integer.parseInt(args[3]));
+            System.out.println(file);
+        }
+    }
+
+    /**
+     * Writes a profile and the extension definitions it references into the directory.
+     *
+     * @param elements   the number of differential elements to aim for; the profile gets at least the extension slices
+     *                   and one identifier slice
+     * @param sliceDepth how deep slices are nested below each identifier slice, 1 for no nesting
+     * @param extensions the number of extension slices and extension definitions
+     * @return the profile file
+     */
+    public static File write(final File directory, final String name, final int elements, final int sliceDepth, final int extensions)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory: " + directory);
+        }
+        final StructureDefinition profile = definition(name, "Patient");
+        final List<ElementDefinition> differential = profile.getDifferential().getElement();
+        differential.add(element("Patient", "Patient"));
+        differential.add(sliced(element("Patient.extension", "Patient.extension"), "Extensions"));
+        for (int i = 0; i < extensions; i++) {
+            final String extensionName = name + "-ext-" + i;
+            final ElementDefinition slice = element("Patient.extension:ext" + i, "Patient.extension").setSliceName("ext" + i)
+                    .setShort("Extension " + i).setMin(0).setMax("1");
+            slice.addType().setCode("Extension").setProfile(BASE_URL + extensionName);
+            differential.add(slice);
+            writeJson(new File(directory, extensionName + ".json"), extension(extensionName, VALUE_TYPES[i % VALUE_TYPES.length]));
+        }
+
+        differential.add(sliced(element("Patient.identifier", "Patient.identifier"), "Identifiers"));
+        int slice = 0;
+        do {
+            addIdentifierSlice(differential, "id" + slice++, sliceDepth);
+        } while (differential.size() < elements);
+
+        final File file = new File(directory, name + ".json");
+        writeJson(file, profile);
+        return file;
+    }
+
+    private static void addIdentifierSlice(final List<ElementDefinition> differential, final String sliceName, final int sliceDepth) {
+        final String id = "Patient.identifier:" + sliceName;
+        differential.add(element(id, "Patient.identifier").setSliceName(sliceName).setShort("Identifier " + sliceName).setMin(0).setMax("1"));
+        differential.add(element(id + ".system", "Patient.identifier.system").setMin(1).setFixed(new UriType("urn:oid:2.16." + sliceName)));
+        differential.add(element(id + ".value", "Patient.identifier.value").setMin(1));
+        addNestedSlices(differential, id, "Patient.identifier", 2, sliceDepth);
+    }
+
+    private static void addNestedSlices(final List<ElementDefinition> differential, final String parentId, final String parentPath,
+                                        final int level, final int sliceDepth) {
+        if (level > sliceDepth) {
+            return;
+        }
+        final String id = parentId + ".extension";
+        final String path = parentPath + ".extension";
+        differential.add(sliced(element(id, path), "Nested " + id.replaceAll("[^A-Za-z0-9]", " ")));
+        for (int i = 0; i < NESTED_SLICES; i++) {
+            final String sliceId = id + ":n" + i;
+            final ElementDefinition slice = element(sliceId, path).setSliceName("n" + i).setMin(0).setMax("1");
+            differential.add(slice);
+            differential.add(element(sliceId + ".url", path + ".url").setFixed(new UriType(BASE_URL + "nested-" + level + "-" + i)));
+            addNestedSlices(differential, sliceId, path, level + 1, sliceDepth);
+        }
+    }
+
+    private static StructureDefinition extension(final String name, final String valueType) {
+        final StructureDefinition extension = definition(name, "Extension");
+        extension.setContextType(StructureDefinition.ExtensionContext.RESOURCE).addContext("Patient");
+        final List<ElementDefinition> differential = extension.getDifferential().getElement();
+        differential.add(element("Extension", "Extension").setShort("Synthetic extension " + name).setMin(0).setMax("1"));
+        differential.add(element("Extension.url", "Extension.url").setFixed(new UriType(BASE_URL + name)));
+        final ElementDefinition value = element("Extension.value[x]", "Extension.value" + Character.toUpperCase(valueType.charAt(0))
+                + valueType.substring(1)).setMin(1);
+        value.addType().setCode(valueType);
+        differential.add(value);
+        return extension;
+    }
+
+    private static StructureDefinition definition(final String name, final String type) {
+        final StructureDefinition definition = new StructureDefinition();
+        definition.setId(name);
+        definition.setUrl(BASE_URL + name);
+        definition.setName(name);
+        definition.setStatus(PublicationStatus.DRAFT);
+        definition.setKind("Extension".equals(type) ? StructureDefinitionKind.COMPLEXTYPE : StructureDefinitionKind.RESOURCE);
+        definition.setAbstract(false);
+        definition.setType(type);
+        definition.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/" + type);
+        definition.setDerivation(TypeDerivationRule.CONSTRAINT);
+        return definition;
+    }
+
+    private static ElementDefinition element(final String id, final String path) {
+        final ElementDefinition element = new ElementDefinition();
+        element.setId(id);
+        element.setPath(path);
+        return element;
+    }
+
+    private static ElementDefinition sliced(final ElementDefinition element, final String description) {
+        element.getSlicing().addDiscriminator().setType(DiscriminatorType.VALUE).setPath("url");
+        element.getSlicing().setRules(SlicingRules.OPEN).setDescription(description);
+        return element.setShort(description);
+    }
+
+    private static void writeJson(final File file, final StructureDefinition definition) throws IOException {
+        final String json = FhirContextRegistry.shared().getContext(FhirVersionEnum.DSTU3).newJsonParser().setPrettyPrint(true).encodeResourceToString(definition);
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Keeps all outputs as entries of one source jar or zip, which javac reads from {@code -sourcepath} like a directory.
+ * Only the names, sizes and checksums of an existing archive are read when the sink is created, so an incremental run
+ * compares its outputs with the entries without holding them, and copies the entries it does not replace. The
+ * archive is rewritten on {@link #flush()}, and only if an entry changed. Until then, the content of
+ * {@link #write(String, byte[])} is held in memory, and that of {@link #writeThrough(String, byte[])} is staged in a
+ * directory next to the archive.
+ * <p>
+ * Entries are sorted by path and carry a fixed timestamp, so the same outputs always give the same archive.
+ */
+public final class ArchiveOutputSink implements OutputSink {
+
+    /** 1980-02-01 UTC, a month into the zip epoch so it is a valid zip time in every time zone */
+    private static final long ENTRY_TIME = 315532800000L + 31L * 24 * 60 * 60 * 1000;
+
+    private final File archive;
+    private final File staging;
+    /** The entries of the archive on disk, without their content */
+    private final Map<String, ZipEntry> archived = new HashMap<>();
+    private final Map<String, byte[]> held = new HashMap<>();
+    private final Map<String, File> staged = new HashMap<>();
+    private final Set<String> deleted = new HashSet<>();
+    private int stagedCount;
+
+    /**
+     * @throws IOException if the archive exists but cannot be read
+     */
+    public ArchiveOutputSink(final File archive) throws IOException {
+        this.archive = archive.getAbsoluteFile();
+        this.staging = new File(this.archive.getParentFile(), this.archive.getName() + ".staged");
+        if (this.archive.isFile()) {
+            read();
+        }
+    }
+
+    private void read() throws IOException {
+        try (ZipFile zip = new ZipFile(archive)) {
+            for (final ZipEntry entry : Collections.list(zip.entries())) {
+                if (!entry.isDirectory()) {
+                    archived.put(entry.getName(), entry);
+                }
+            }
+        }
+    }
+
+    @Override
+    public File getRoot() {
+        return archive;
+    }
+
+    @Override
+    public boolean exists(final String path) {
+        return held.containsKey(path) || staged.containsKey(path) || !deleted.contains(path) && archived.containsKey(path);
+    }
+
+    @Override
+    public boolean write(final String path, final byte[] content) throws IOException {
+        if (holds(path, content)) {
+            return false;
+        }
+        discard(path);
+        held.put(path, content);
+        return true;
+    }
+
+    @Override
+    public boolean writeThrough(final String path, final byte[] content) throws IOException {
+        if (holds(path, content)) {
+            return false;
+        }
+        discard(path);
+        if (!staging.isDirectory() && !staging.mkdirs()) {
+            throw new IOException("Could not create directory: " + staging);
+        }
+        final File file = new File(staging, stagedCount++ + ".part");
+        Files.write(file.toPath(), content);
+        staged.put(path, file);
+        return true;
+    }
+
+    @Override
+    public void delete(final String path) throws IOException {
+        discard(path);
+        if (archived.containsKey(path)) {
+            deleted.add(path);
+        }
+    }
+
+    /**
+     * Writes the archive to a temporary file next to it and moves it into place, so readers never see half an
+     * archive.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (held.isEmpty() && staged.isEmpty() && deleted.isEmpty() && archive.isFile()) {
+            return;
+        }
+        final File dir = archive.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir);
+        }
+        final Set<String> paths = new TreeSet<>(archived.keySet());
+        paths.removeAll(deleted);
+        paths.addAll(held.keySet());
+        paths.addAll(staged.keySet());
+        final File tmp = new File(dir, archive.getName() + ".tmp");
+        try (ZipFile previous = archived.isEmpty() ? null : new ZipFile(archive);
+             ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (final String path : paths) {
+                final ZipEntry zipEntry = new ZipEntry(path);
+                zipEntry.setTime(ENTRY_TIME);
+                out.putNextEntry(zipEntry);
+                if (held.containsKey(path)) {
+                    out.write(held.get(path));
+                } else if (staged.containsKey(path)) {
+                    Files.copy(staged.get(path).toPath(), out);
+                } else {
+                    try (InputStream in = previous.getInputStream(archived.get(path))) {
+                        copy(in, out);
+                    }
+                }
+                out.closeEntry();
+            }
+        }
+        Files.move(tmp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (final String path : new TreeSet<>(staged.keySet())) {
+            discard(path);
+        }
+        held.clear();
+        deleted.clear();
+        archived.clear();
+        read();
+    }
+
+    /**
+     * @return whether the path holds this content, comparing the content of an archived entry only if its size and
+     * checksum match
+     */
+    private boolean holds(final String path, final byte[] content) throws IOException {
+        if (held.containsKey(path)) {
+            return Arrays.equals(held.get(path), content);
+        }
+        if (staged.containsKey(path)) {
+            final File file = staged.get(path);
+            return file.length() == content.length && Arrays.equals(content, Files.readAllBytes(file.toPath()));
+        }
+        final ZipEntry entry = archived.get(path);
+        if (entry == null || deleted.contains(path) || entry.getSize() != content.length || entry.getCrc() != crc(content)) {
+            return false;
+        }
+        try (ZipFile zip = new ZipFile(archive); InputStream in = zip.getInputStream(entry)) {
+            final byte[] previous = new byte[content.length];
+            int read = 0;
+            int n;
+            while (read < previous.length && (n = in.read(previous, read, previous.length - read)) != -1) {
+                read += n;
+            }
+            return read == previous.length && Arrays.equals(previous, content);
+        }
+    }
+
+    /**
+     * Forgets what was written to or deleted from the path since the last flush.
+     */
+    private void discard(final String path) throws IOException {
+        held.remove(path);
+        deleted.remove(path);
+        final File file = staged.remove(path);
+        if (file != null) {
+            Files.deleteIfExists(file.toPath());
+            if (staged.isEmpty()) {
+                Files.deleteIfExists(staging.toPath());
+            }
+        }
+    }
+
+    private static long crc(final byte[] content) {
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    private static void copy(final InputStream in, final ZipOutputStream out) throws IOException {
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Finds the resources of a JSON Bundle ({@code entry[].resource}), or of NDJSON (a resource per line), and their byte
+ * range in the stream, without parsing them. The stream is read once, and only the resource being read is held in
+ * memory.
+ * <p>
+ * Only the brackets, commas and strings of the JSON are looked at, so the scan trusts the stream to be valid JSON.
+ */
+final class BundleScanner {
+
+    interface Handler {
+        /**
+         * @param offset  of the opening brace of the resource in the stream
+         * @param content the resource, from its opening to its closing brace
+         */
+        void resource(long offset, byte[] content) throws IOException;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** The depth of the resources of a Bundle: the Bundle, its entry array and an entry */
+    private static final int ENTRY_DEPTH = 3;
+
+    private final boolean ndjson;
+    private final Handler handler;
+    /** Whether each open container is an object, by depth; index 0 is outside of everything */
+    private boolean[] objects = new boolean[16];
+    /** The key being read, or last read, in each open object down to the entries */
+    private final String[] keys = new String[ENTRY_DEPTH + 1];
+    private int depth;
+    private boolean expectKey;
+    private boolean inString;
+    private boolean escaped;
+    private StringBuilder key;
+    private final ByteArrayOutputStream resource = new ByteArrayOutputStream(BUFFER_SIZE);
+    private long resourceOffset = -1;
+
+    private BundleScanner(final boolean ndjson, final Handler handler) {
+        this.ndjson = ndjson;
+        this.handler = handler;
+    }
+
+    /**
+     * @param ndjson true if the stream holds a resource per line, false if it holds a Bundle
+     */
+    static void scan(final InputStream in, final boolean ndjson, final Handler handler) throws IOException {
+        new BundleScanner(ndjson, handler).scan(in);
+    }
+
+    private void scan(final InputStream in) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long position = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            int from = 0;
+            for (int i = 0; i < n; i++) {
+                final byte b = buffer[i];
+                if (inString) {
+                    readString(b);
+                } else if (b == '"') {
+                    inString = true;
+                    if (expectKey) {
+                        expectKey = false;
+                        key = depth <= ENTRY_DEPTH ? new StringBuilder() : null;
+                    }
+                } else if (b == '{' || b == '[') {
+                    if (b == '{' && resourceOffset < 0 && isResourceStart()) {
+                        resourceOffset = position + i;
+                        from = i;
+                    }
+                    open(b == '{');
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                    expectKey = false;
+                    if (resourceOffset >= 0 && depth == (ndjson ? 0 : ENTRY_DEPTH)) {
+                        resource.write(buffer, from, i + 1 - from);
+                        handler.resource(resourceOffset, resource.toByteArray());
+                        resource.reset();
+                        resourceOffset = -1;
+                    }
+                } else if (b == ',') {
+                    expectKey = objects[depth];
+                }
+            }
+            if (resourceOffset >= 0) {
+                resource.write(buffer, from, n - from);
+            }
+            position += n;
+        }
+    }
+
+    private void readString(final byte b) {
+        if (escaped) {
+            escaped = false;
+        } else if (b == '\\') {
+            escaped = true;
+        } else if (b == '"') {
+            inString = false;
+            if (key != null) {
+                keys[depth] = key.toString();
+                key = null;
+            }
+            return;
+        }
+        if (key != null) {
+            // The keys looked for are ASCII, so other bytes only need to make the key differ
+            key.append((char) b);
+        }
+    }
+
+    private boolean isResourceStart() {
+        if (ndjson) {
+            return depth == 0;
+        }
+        return depth == ENTRY_DEPTH && objects[1] && "entry".equals(keys[1]) && !objects[2] && objects[3] && "resource".equals(keys[3]);
+    }
+
+    private void open(final boolean object) {
+        depth++;
+        if (depth == objects.length) {
+            objects = Arrays.copyOf(objects, depth * 2);
+        }
+        objects[depth] = object;
+        if (depth <= ENTRY_DEPTH) {
+            keys[depth] = null;
+        }
+        expectKey = object;
+    }
+}
@@ -0,0 +1,575 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.objectweb.asm.Opcodes.AASTORE;
+import static org.objectweb.asm.Opcodes.ACC_BRIDGE;
+import static org.objectweb.asm.Opcodes.ACC_DEPRECATED;
+import static org.objectweb.asm.Opcodes.ACC_ENUM;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ANEWARRAY;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.BIPUSH;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.GETSTATIC;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.ICONST_1;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.IFNONNULL;
+import static org.objectweb.asm.Opcodes.IFNULL;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.NEW;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.PUTSTATIC;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.SIPUSH;
+import static org.objectweb.asm.Opcodes.V1_8;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import ca.uhn.fhir.model.api.annotation.Child;
+import ca.uhn.fhir.model.api.annotation.Description;
+import ca.uhn.fhir.model.api.annotation.Extension;
+import ca.uhn.fhir.model.api.annotation.ResourceDef;
+import ca.uhn.fhir.util.ElementUtil;
+
+/**
+ * Turns a {@link ClassModel} straight into class files, so a profile can be loaded at runtime without writing source
+ * or running a compiler. The classes carry the same fields, annotations and methods as the source written by the
+ * {@link DirectSourceEmitter}, including the bridge methods javac would add for covariant overrides.
+ * <p>
+ * Where the source would not compile, the class file leaves the offending method out instead: a method with the same
+ * name and parameters as an earlier one, or one whose return type does not fit the superclass method it overrides.
+ */
+public final class BytecodeEmitter {
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String LIST = "java/util/List";
+
+    /**
+     * @return the class files of the generated class and its nested enums by binary class name, the generated class
+     * first
+     */
+    public Map<String, byte[]> emit(final ClassModel model) {
+        final Map<String, byte[]> classes = new LinkedHashMap<>();
+        final Emission emission = new Emission(model);
+        classes.put(model.getQualifiedName(), emission.emitClass());
+        for (final EnumModel enumModel : model.getEnums()) {
+            classes.put(model.getQualifiedName() + "$" + enumModel.getName(), emission.emitEnum(enumModel));
+        }
+        return classes;
+    }
+
+    private static final class Emission {
+        private final ClassModel model;
+        private final String className;
+        private final String superName;
+        /** The methods that are written, by name and parameter descriptor, with the superclass method they override */
+        private final Map<String, Planned> planned = new LinkedHashMap<>();
+        private final Map<String, String> enumNames = new HashMap<>();
+
+        private Emission(final ClassModel model) {
+            this.model = model;
+            this.className = model.getQualifiedName().replace('.', '/');
+            this.superName = Type.getInternalName(model.getSuperClass());
+            for (final EnumModel enumModel : model.getEnums()) {
+                enumNames.put(enumModel.getName(), className + "$" + enumModel.getName());
+            }
+            for (final MethodModel method : model.getMethods()) {
+                plan(method);
+            }
+        }
+
+        private void plan(final MethodModel method) {
+            final Class<?> parameter = method.getParameterType() != null ? method.getParameterType().getType() : null;
+            final String parameters = "(" + (method.getParameterType() != null ? descriptor(method.getParameterType()) : "") + ")";
+            final String key = method.getName() + parameters;
+            if (planned.containsKey(key)) {
+                return;
+            }
+            final Method overridden = findSuperMethod(method.getName(), parameter);
+            if (overridden != null) {
+                if (Modifier.isFinal(overridden.getModifiers()) || !returnFits(method, overridden.getReturnType())) {
+                    return;
+                }
+            }
+            planned.put(key, new Planned(method, parameters + descriptor(method.getReturnType()), overridden));
+        }
+
+        private Method findSuperMethod(final String name, final Class<?> parameter) {
+            for (Class<?> c = model.getSuperClass(); c != null; c = c.getSuperclass()) {
+                for (final Method method : c.getDeclaredMethods()) {
+                    if (method.getName().equals(name) && !method.isBridge() && !Modifier.isPrivate(method.getModifiers()) && !Modifier.isStatic(method.getModifiers())
+                            && method.getParameterTypes().length == (parameter == null ? 0 : 1)
+                            && (parameter == null || method.getParameterTypes()[0] == parameter)) {
+                        return method;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private boolean returnFits(final MethodModel method, final Class<?> superReturn) {
+            final Class<?> returnType = method.getReturnType().getType();
+            if (returnType == null) {
+                // The generated class itself, which extends the superclass
+                return superReturn.isAssignableFrom(model.getSuperClass());
+            }
+            return returnType.isPrimitive() || superReturn.isPrimitive() ? returnType == superReturn : superReturn.isAssignableFrom(returnType);
+        }
+
+        byte[] emitClass() {
+            final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+            cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, className, null, superName, null);
+            for (final EnumModel enumModel : model.getEnums()) {
+                cw.visitInnerClass(enumNames.get(enumModel.getName()), className, enumModel.getName(), ACC_PUBLIC | ACC_STATIC | ACC_FINAL | ACC_ENUM);
+            }
+            final AnnotationVisitor resourceDef = cw.visitAnnotation(Type.getDescriptor(ResourceDef.class), true);
+            visitIfPresent(resourceDef, "name", model.getResourceName());
+            visitIfPresent(resourceDef, "id", model.getResourceId());
+            resourceDef.visitEnd();
+
+            for (final FieldModel field : model.getFields()) {
+                emitField(cw, field);
+            }
+
+            final MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+            init.visitCode();
+            init.visitVarInsn(ALOAD, 0);
+            init.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V", false);
+            init.visitInsn(RETURN);
+            init.visitMaxs(0, 0);
+            init.visitEnd();
+
+            for (final Planned method : planned.values()) {
+                emitMethod(cw, method);
+                if (method.overridden != null && !method.descriptor.equals(Type.getMethodDescriptor(method.overridden))) {
+                    emitBridge(cw, method);
+                }
+            }
+            cw.visitEnd();
+            return cw.toByteArray();
+        }
+
+        private void emitField(final ClassWriter cw, final FieldModel field) {
+            final int access = ACC_PRIVATE | (field.getTodo() != null ? ACC_DEPRECATED : 0);
+            final FieldVisitor fv = cw.visitField(access, field.getName(), descriptor(field.getType()), signature(field.getType()), null);
+            if (field.isExtension()) {
+                final AnnotationVisitor extension = fv.visitAnnotation(Type.getDescriptor(Extension.class), true);
+                extension.visit("definedLocally", false);
+                extension.visit("isModifier", false);
+                visitIfPresent(extension, "url", field.getExtensionUrl());
+                extension.visitEnd();
+            }
+            final AnnotationVisitor child = fv.visitAnnotation(Type.getDescriptor(Child.class), true);
+            child.visit("name", field.getChildName());
+            child.visit("min", field.getMin());
+            if ("*".equals(field.getMax())) {
+                child.visit("max", Child.MAX_UNLIMITED);
+            } else if (field.getMax() != null && !field.getMax().isEmpty()) {
+                child.visit("max", Integer.valueOf(field.getMax()));
+            }
+            child.visit("order", field.isExtension() ? Child.ORDER_UNKNOWN : Child.REPLACE_PARENT);
+            child.visit("summary", field.isSummary());
+            child.visit("modifier", field.isModifier());
+            if (!field.getChildTypes().isEmpty()) {
+                final AnnotationVisitor types = child.visitArray("type");
+                for (final Class<?> type : field.getChildTypes()) {
+                    types.visit(null, Type.getType(type));
+                }
+                types.visitEnd();
+            }
+            child.visitEnd();
+            final AnnotationVisitor description = fv.visitAnnotation(Type.getDescriptor(Description.class), true);
+            visitIfPresent(description, "shortDefinition", field.getShortDefinition());
+            visitIfPresent(description, "formalDefinition", field.getFormalDefinition());
+            description.visitEnd();
+            fv.visitEnd();
+        }
+
+        private void emitMethod(final ClassWriter cw, final Planned planned) {
+            final MethodModel method = planned.method;
+            final String signature = method.getParameterType() != null
+                    ? methodSignature(method.getReturnType(), method.getParameterType())
+                    : methodSignature(method.getReturnType());
+            final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | (method.isDeprecated() ? ACC_DEPRECATED : 0), method.getName(),
+                    planned.descriptor, signature, null);
+            if (method.isDeprecated()) {
+                mv.visitAnnotation(Type.getDescriptor(Deprecated.class), true).visitEnd();
+            }
+            mv.visitCode();
+            final FieldModel field = method.getField();
+            switch (method.getKind()) {
+                case IS_EMPTY:
+                    emitIsEmpty(mv, method.getFields(), method.isFieldByField());
+                    break;
+                case GETTER:
+                    getField(mv, field);
+                    mv.visitInsn(ARETURN);
+                    break;
+                case LIST_GETTER:
+                    emitLazyGetter(mv, field, "java/util/ArrayList", method.getInitialCapacity());
+                    break;
+                case ELEMENT_GETTER:
+                    emitLazyGetter(mv, field, internalName(method.getReturnType()), -1);
+                    break;
+                case FIRST_REP:
+                    emitFirstRep(mv, method);
+                    break;
+                case ADDER:
+                    emitAdder(mv, method);
+                    break;
+                case SETTER:
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitVarInsn(ALOAD, 1);
+                    mv.visitFieldInsn(PUTFIELD, className, field.getName(), descriptor(field.getType()));
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitInsn(ARETURN);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown method kind " + method.getKind());
+            }
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        private void emitIsEmpty(final MethodVisitor mv, final List<FieldModel> fields, final boolean fieldByField) {
+            final Label notEmpty = new Label();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitMethodInsn(INVOKESPECIAL, superName, "isEmpty", "()Z", false);
+            mv.visitJumpInsn(IFEQ, notEmpty);
+            if (fieldByField) {
+                for (final FieldModel field : fields) {
+                    getField(mv, field);
+                    if (field.getType().isType(List.class)) {
+                        mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(ElementUtil.class), "isEmpty", "(Ljava/util/List;)Z", false);
+                        mv.visitJumpInsn(IFEQ, notEmpty);
+                    } else {
+                        final Label empty = new Label();
+                        mv.visitJumpInsn(IFNULL, empty);
+                        getField(mv, field);
+                        mv.visitMethodInsn(INVOKEINTERFACE, Type.getInternalName(IBase.class), "isEmpty", "()Z", true);
+                        mv.visitJumpInsn(IFEQ, notEmpty);
+                        mv.visitLabel(empty);
+                    }
+                }
+                mv.visitInsn(ICONST_1);
+            } else if (fields.isEmpty()) {
+                mv.visitInsn(ICONST_1);
+            } else {
+                push(mv, fields.size());
+                mv.visitTypeInsn(ANEWARRAY, OBJECT);
+                for (int i = 0; i < fields.size(); i++) {
+                    mv.visitInsn(DUP);
+                    push(mv, i);
+                    getField(mv, fields.get(i));
+                    mv.visitInsn(AASTORE);
+                }
+                mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(ElementUtil.class), "isEmpty", "([Ljava/lang/Object;)Z", false);
+            }
+            mv.visitInsn(IRETURN);
+            mv.visitLabel(notEmpty);
+            mv.visitInsn(ICONST_0);
+            mv.visitInsn(IRETURN);
+        }
+
+        /**
+         * @param capacity passed to the constructor of the implementation if not negative
+         */
+        private void emitLazyGetter(final MethodVisitor mv, final FieldModel field, final String implementation, final int capacity) {
+            final Label present = new Label();
+            getField(mv, field);
+            mv.visitJumpInsn(IFNONNULL, present);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitTypeInsn(NEW, implementation);
+            mv.visitInsn(DUP);
+            if (capacity >= 0) {
+                push(mv, capacity);
+                mv.visitMethodInsn(INVOKESPECIAL, implementation, "<init>", "(I)V", false);
+            } else {
+                mv.visitMethodInsn(INVOKESPECIAL, implementation, "<init>", "()V", false);
+            }
+            mv.visitFieldInsn(PUTFIELD, className, field.getName(), descriptor(field.getType()));
+            mv.visitLabel(present);
+            getField(mv, field);
+            mv.visitInsn(ARETURN);
+        }
+
+        private void emitFirstRep(final MethodVisitor mv, final MethodModel method) {
+            final String element = internalName(method.getElementType());
+            final Label present = new Label();
+            invokeList(mv, method.getListAccessor());
+            mv.visitMethodInsn(INVOKEINTERFACE, LIST, "isEmpty", "()Z", true);
+            mv.visitJumpInsn(IFEQ, present);
+            mv.visitVarInsn(ALOAD, 0);
+            final Type added = invokeSelf(mv, "add" + method.getListAccessor());
+            if (!added.getInternalName().equals(element)) {
+                mv.visitTypeInsn(CHECKCAST, element);
+            }
+            mv.visitInsn(ARETURN);
+            mv.visitLabel(present);
+            invokeList(mv, method.getListAccessor());
+            mv.visitInsn(ICONST_0);
+            mv.visitMethodInsn(INVOKEINTERFACE, LIST, "get", "(I)Ljava/lang/Object;", true);
+            mv.visitTypeInsn(CHECKCAST, element);
+            mv.visitInsn(ARETURN);
+        }
+
+        private void emitAdder(final MethodVisitor mv, final MethodModel method) {
+            final String element = internalName(method.getElementType());
+            mv.visitTypeInsn(NEW, element);
+            mv.visitInsn(DUP);
+            mv.visitMethodInsn(INVOKESPECIAL, element, "<init>", "()V", false);
+            mv.visitVarInsn(ASTORE, 1);
+            invokeList(mv, method.getListAccessor());
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKEINTERFACE, LIST, "add", "(Ljava/lang/Object;)Z", true);
+            mv.visitInsn(POP);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitInsn(ARETURN);
+        }
+
+        private void invokeList(final MethodVisitor mv, final String listAccessor) {
+            mv.visitVarInsn(ALOAD, 0);
+            final Type list = invokeSelf(mv, "get" + listAccessor);
+            if (!list.getInternalName().equals(LIST)) {
+                mv.visitTypeInsn(CHECKCAST, LIST);
+            }
+        }
+
+        /**
+         * Calls a method without parameters on {@code this}, a generated one if it is written, otherwise the inherited
+         * one.
+         *
+         * @return the return type of the method called
+         */
+        private Type invokeSelf(final MethodVisitor mv, final String name) {
+            final Planned own = planned.get(name + "()");
+            final String descriptor;
+            if (own != null) {
+                descriptor = own.descriptor;
+            } else {
+                final Method inherited = findSuperMethod(name, null);
+                if (inherited == null) {
+                    throw new IllegalStateException(model.getSuperClass().getName() + " has no method " + name + "()");
+                }
+                descriptor = Type.getMethodDescriptor(inherited);
+            }
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, name, descriptor, false);
+            return Type.getReturnType(descriptor);
+        }
+
+        private void emitBridge(final ClassWriter cw, final Planned planned) {
+            final Method overridden = planned.overridden;
+            final String descriptor = Type.getMethodDescriptor(overridden);
+            final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_SYNTHETIC | ACC_BRIDGE, overridden.getName(), descriptor, null, null);
+            mv.visitCode();
+            mv.visitVarInsn(ALOAD, 0);
+            for (int i = 0; i < overridden.getParameterTypes().length; i++) {
+                mv.visitVarInsn(ALOAD, i + 1);
+            }
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, overridden.getName(), planned.descriptor, false);
+            mv.visitInsn(Type.getReturnType(descriptor).getOpcode(IRETURN));
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        byte[] emitEnum(final EnumModel enumModel) {
+            final String name = enumNames.get(enumModel.getName());
+            final String descriptor = "L" + name + ";";
+            final String arrayDescriptor = "[" + descriptor;
+            final List<String> constants = enumModel.getConstants();
+
+            final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+            cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_ENUM, name, "Ljava/lang/Enum<" + descriptor + ">;", "java/lang/Enum", null);
+            cw.visitInnerClass(name, className, enumModel.getName(), ACC_PUBLIC | ACC_STATIC | ACC_FINAL | ACC_ENUM);
+            for (final String constant : constants) {
+                cw.visitField(ACC_PUBLIC | ACC_STATIC | ACC_FINAL | ACC_ENUM, constant, descriptor, null, null).visitEnd();
+            }
+            cw.visitField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL | ACC_SYNTHETIC, "$VALUES", arrayDescriptor, null, null).visitEnd();
+
+            MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "values", "()" + arrayDescriptor, null, null);
+            mv.visitCode();
+            mv.visitFieldInsn(GETSTATIC, name, "$VALUES", arrayDescriptor);
+            mv.visitMethodInsn(INVOKEVIRTUAL, arrayDescriptor, "clone", "()Ljava/lang/Object;", false);
+            mv.visitTypeInsn(CHECKCAST, arrayDescriptor);
+            mv.visitInsn(ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+
+            mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "valueOf", "(Ljava/lang/String;)" + descriptor, null, null);
+            mv.visitCode();
+            mv.visitLdcInsn(Type.getObjectType(name));
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Enum", "valueOf", "(Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Enum;", false);
+            mv.visitTypeInsn(CHECKCAST, name);
+            mv.visitInsn(ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+
+            mv = cw.visitMethod(ACC_PRIVATE, "<init>", "(Ljava/lang/String;I)V", "()V", null);
+            mv.visitCode();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitVarInsn(ILOAD, 2);
+            mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Enum", "<init>", "(Ljava/lang/String;I)V", false);
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+
+            mv = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+            mv.visitCode();
+            for (int i = 0; i < constants.size(); i++) {
+                mv.visitTypeInsn(NEW, name);
+                mv.visitInsn(DUP);
+                mv.visitLdcInsn(constants.get(i));
+                push(mv, i);
+                mv.visitMethodInsn(INVOKESPECIAL, name, "<init>", "(Ljava/lang/String;I)V", false);
+                mv.visitFieldInsn(PUTSTATIC, name, constants.get(i), descriptor);
+            }
+            push(mv, constants.size());
+            mv.visitTypeInsn(ANEWARRAY, name);
+            for (int i = 0; i < constants.size(); i++) {
+                mv.visitInsn(DUP);
+                push(mv, i);
+                mv.visitFieldInsn(GETSTATIC, name, constants.get(i), descriptor);
+                mv.visitInsn(AASTORE);
+            }
+            mv.visitFieldInsn(PUTSTATIC, name, "$VALUES", arrayDescriptor);
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+
+            cw.visitEnd();
+            return cw.toByteArray();
+        }
+
+        private void getField(final MethodVisitor mv, final FieldModel field) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, field.getName(), descriptor(field.getType()));
+        }
+
+        private String internalName(final TypeRef type) {
+            if (type.getType() != null) {
+                return Type.getInternalName(type.getType());
+            }
+            if (type.getName().equals(model.getQualifiedName())) {
+                return className;
+            }
+            final String enumName = enumNames.get(type.getName());
+            if (enumName != null) {
+                return enumName;
+            }
+            throw new IllegalStateException("Cannot write " + model.getQualifiedName() + " as bytecode, the type " + type.getName()
+                    + " is not on the classpath");
+        }
+
+        private String descriptor(final TypeRef type) {
+            return type.getType() != null ? Type.getDescriptor(type.getType()) : "L" + internalName(type) + ";";
+        }
+
+        /**
+         * @return the generic signature of the type, or null if it has no type arguments, or not as many as its class
+         * declares
+         */
+        private String signature(final TypeRef type) {
+            if (type.getArguments().isEmpty() || type.getType() == null || type.getType().getTypeParameters().length != type.getArguments().size()) {
+                return null;
+            }
+            return genericDescriptor(type);
+        }
+
+        private String genericDescriptor(final TypeRef type) {
+            if (type.getArguments().isEmpty() || type.getType() == null || type.getType().getTypeParameters().length != type.getArguments().size()) {
+                return descriptor(type);
+            }
+            final StringBuilder b = new StringBuilder("L").append(internalName(type)).append('<');
+            for (final TypeRef argument : type.getArguments()) {
+                b.append(genericDescriptor(argument));
+            }
+            return b.append(">;").toString();
+        }
+
+        private String methodSignature(final TypeRef returnType, final TypeRef... parameters) {
+            boolean generic = signature(returnType) != null;
+            final StringBuilder b = new StringBuilder("(");
+            for (final TypeRef parameter : parameters) {
+                generic |= signature(parameter) != null;
+                b.append(genericDescriptor(parameter));
+            }
+            return generic ? b.append(')').append(genericDescriptor(returnType)).toString() : null;
+        }
+
+        private static void visitIfPresent(final AnnotationVisitor annotation, final String name, final String value) {
+            if (value != null) {
+                annotation.visit(name, value);
+            }
+        }
+
+        private static void push(final MethodVisitor mv, final int value) {
+            if (value >= -1 && value <= 5) {
+                mv.visitInsn(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                mv.visitIntInsn(BIPUSH, value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                mv.visitIntInsn(SIPUSH, value);
+            } else {
+                mv.visitLdcInsn(value);
+            }
+        }
+    }
+
+    private static final class Planned {
+        private final MethodModel method;
+        private final String descriptor;
+        /** The superclass method this one overrides, or null */
+        private final Method overridden;
+
+        private Planned(final MethodModel method, final String descriptor, final Method overridden) {
+            this.method = method;
+            this.descriptor = descriptor;
+            this.overridden = overridden;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What {@link Generator} makes of a profile: a resource class extending the HAPI model class of the profiled type. A
+ * {@link SourceEmitter} turns it into Java source.
+ */
+public final class ClassModel {
+
+    private final String packageName;
+    private final String name;
+    private final Class<?> superClass;
+    private final String resourceName;
+    private final String resourceId;
+    private final String profileUrl;
+    private final List<FieldModel> fields = new ArrayList<>();
+    private final List<MethodModel> methods = new ArrayList<>();
+    private final List<EnumModel> enums = new ArrayList<>();
+
+    ClassModel(final String packageName, final String name, final Class<?> superClass, final String resourceName, final String resourceId,
+               final String profileUrl) {
+        this.packageName = packageName;
+        this.name = name;
+        this.superClass = superClass;
+        this.resourceName = resourceName;
+        this.resourceId = resourceId;
+        this.profileUrl = profileUrl;
+    }
+
+    void addField(final FieldModel field) {
+        fields.add(field);
+    }
+
+    void addMethod(final MethodModel method) {
+        methods.add(method);
+    }
+
+    void addEnum(final EnumModel enumModel) {
+        enums.add(enumModel);
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getQualifiedName() {
+        return packageName == null || packageName.isEmpty() ? name : packageName + "." + name;
+    }
+
+    public Class<?> getSuperClass() {
+        return superClass;
+    }
+
+    /**
+     * @return the {@code name} of the {@code @ResourceDef} annotation, the profiled resource type
+     */
+    public String getResourceName() {
+        return resourceName;
+    }
+
+    /**
+     * @return the {@code id} of the {@code @ResourceDef} annotation, the id of the profile
+     */
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    /**
+     * @return the canonical URL of the profile, or null if it has none
+     */
+    public String getProfileUrl() {
+        return profileUrl;
+    }
+
+    /**
+     * @return the fields in declaration order
+     */
+    public List<FieldModel> getFields() {
+        return Collections.unmodifiableList(fields);
+    }
+
+    public List<MethodModel> getMethods() {
+        return Collections.unmodifiableList(methods);
+    }
+
+    public List<EnumModel> getEnums() {
+        return Collections.unmodifiableList(enums);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Keeps the class files compiled from profiles, keyed by a hash of everything the classes were generated from.
+ * <p>
+ * Entries are held in memory, and with a directory also stored as one jar per key, so a restarted process loads its
+ * profiles without generating or compiling them again. A jar is written to a temporary file first and then moved in
+ * place, so readers never see half a jar.
+ */
+public class CompiledClassCache {
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final File directory;
+    private final ConcurrentMap<String, Map<String, byte[]>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a cache that only lives as long as this instance.
+     */
+    public CompiledClassCache() {
+        this(null);
+    }
+
+    /**
+     * @param directory where the compiled classes are stored, or null to keep them in memory only
+     */
+    public CompiledClassCache(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the class files by binary class name, the profile class first, or null if nothing is cached for the key
+     */
+    public Map<String, byte[]> get(final String key) throws IOException {
+        final Map<String, byte[]> cached = entries.get(key);
+        if (cached != null || directory == null) {
+            return cached;
+        }
+        final File jar = new File(directory, key + ".jar");
+        if (!jar.isFile()) {
+            return null;
+        }
+        final Map<String, byte[]> classes = new LinkedHashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(jar))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                if (entry.getName().endsWith(CLASS_SUFFIX)) {
+                    final String name = entry.getName().substring(0, entry.getName().length() - CLASS_SUFFIX.length());
+                    classes.put(name.replace('/', '.'), IOUtils.toByteArray(in));
+                }
+            }
+        }
+        if (classes.isEmpty()) {
+            return null;
+        }
+        entries.putIfAbsent(key, Collections.unmodifiableMap(classes));
+        return entries.get(key);
+    }
+
+    /**
+     * @param classes the class files by binary class name, the profile class first
+     */
+    public void put(final String key, final Map<String, byte[]> classes) throws IOException {
+        entries.put(key, Collections.unmodifiableMap(new LinkedHashMap<>(classes)));
+        if (directory == null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Could not create cache directory " + directory.getAbsolutePath());
+        }
+        final File partial = File.createTempFile(key, ".part", directory);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(partial))) {
+            for (final Map.Entry<String, byte[]> e : classes.entrySet()) {
+                out.putNextEntry(new ZipEntry(e.getKey().replace('.', '/') + CLASS_SUFFIX));
+                out.write(e.getValue());
+                out.closeEntry();
+            }
+        } catch (final IOException e) {
+            Files.deleteIfExists(partial.toPath());
+            throw e;
+        }
+        Files.move(partial.toPath(), new File(directory, key + ".jar").toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uhn.fhir.model.api.annotation.Child;
+import ca.uhn.fhir.model.api.annotation.Description;
+import ca.uhn.fhir.model.api.annotation.Extension;
+import ca.uhn.fhir.model.api.annotation.ResourceDef;
+import ca.uhn.fhir.util.ElementUtil;
+
+/**
+ * Writes the source straight to the output, without building a syntax tree or running a formatter. The source is
+ * equivalent to what the {@link RoasterSourceEmitter} produces, and formatted the same way in most places.
+ */
+public final class DirectSourceEmitter implements SourceEmitter {
+
+    @Override
+    public void emit(final ClassModel model, final Appendable out) throws IOException {
+        final Imports imports = new Imports(model);
+        if (model.getPackageName() != null && !model.getPackageName().isEmpty()) {
+            out.append("package ").append(model.getPackageName()).append(";\n\n");
+        }
+        for (final String name : imports.imported) {
+            out.append("import ").append(name).append(";\n");
+        }
+        if (!imports.imported.isEmpty()) {
+            out.append('\n');
+        }
+
+        out.append('@').append(imports.name(ResourceDef.class))
+                .append("(name = ").append(quote(model.getResourceName()))
+                .append(", id = ").append(quote(model.getResourceId())).append(")\n");
+        out.append("public class ").append(model.getName()).append(" extends ").append(imports.name(TypeRef.of(model.getSuperClass()))).append(" {\n");
+        if (!model.getFields().isEmpty()) {
+            out.append('\n');
+        }
+
+        for (final FieldModel field : model.getFields()) {
+            emitField(field, imports, out);
+        }
+        for (final EnumModel enumModel : model.getEnums()) {
+            out.append("\n\tpublic enum ").append(enumModel.getName()).append(" {\n\t\t");
+            final List<String> constants = enumModel.getConstants();
+            for (int i = 0; i < constants.size(); i++) {
+                out.append(i > 0 ? ", " : "").append(constants.get(i));
+            }
+            out.append("\n\t}\n");
+        }
+        for (final MethodModel method : model.getMethods()) {
+            out.append('\n');
+            emitMethod(model, method, imports, out);
+        }
+        out.append("}\n");
+    }
+
+    private static void emitField(final FieldModel field, final Imports imports, final Appendable out) throws IOException {
+        if (field.getTodo() != null) {
+            out.append("\t/**\n\t * TODO: ").append(field.getTodo()).append("\n\t * @deprecated ").append(field.getTodo()).append("\n\t */\n");
+        }
+        if (field.isExtension()) {
+            out.append("\t@").append(imports.name(Extension.class))
+                    .append("(definedLocally = false, isModifier = false, url = ").append(quote(field.getExtensionUrl())).append(")\n");
+        }
+        final String child = imports.name(Child.class);
+        out.append("\t@").append(child).append("(name = ").append(quote(field.getChildName())).append(", min = ").append(String.valueOf(field.getMin()));
+        if ("*".equals(field.getMax())) {
+            out.append(", max = ").append(child).append(".MAX_UNLIMITED");
+        } else if (field.getMax() != null && !field.getMax().isEmpty()) {
+            out.append(", max = ").append(field.getMax());
+        }
+        out.append(", order = ").append(child).append(field.isExtension() ? ".ORDER_UNKNOWN" : ".REPLACE_PARENT")
+                .append(", summary = ").append(String.valueOf(field.isSummary()))
+                .append(", modifier = ").append(String.valueOf(field.isModifier()));
+        final List<Class<?>> types = field.getChildTypes();
+        if (!types.isEmpty()) {
+            out.append(", type = ").append(types.size() > 1 ? "{" : "");
+            for (int i = 0; i < types.size(); i++) {
+                out.append(i > 0 ? ", " : "").append(imports.name(TypeRef.of(types.get(i)))).append(".class");
+            }
+            out.append(types.size() > 1 ? "}" : "");
+        }
+        out.append(")\n");
+
+        out.append("\t@").append(imports.name(Description.class));
+        if (field.getShortDefinition() != null || field.getFormalDefinition() != null) {
+            out.append('(');
+            if (field.getShortDefinition() != null) {
+                out.append("shortDefinition = ").append(quote(field.getShortDefinition()));
+            }
+            if (field.getFormalDefinition() != null) {
+                out.append(field.getShortDefinition() != null ? ", " : "").append("formalDefinition = ").append(quote(field.getFormalDefinition()));
+            }
+            out.append(')');
+        }
+        out.append('\n');
+        out.append("\tprivate ").append(imports.name(field.getType())).append(' ').append(field.getName()).append(";\n");
+    }
+
+    private static void emitMethod(final ClassModel model, final MethodModel method, final Imports imports, final Appendable out) throws IOException {
+        if (method.isOverride()) {
+            out.append("\t@Override\n");
+        }
+        if (method.isDeprecated()) {
+            out.append("\t@Deprecated\n");
+        }
+        final String returnType = method.getKind() == MethodModel.Kind.SETTER ? model.getName() : imports.name(method.getReturnType());
+        out.append("\tpublic ").append(returnType).append(' ').append(method.getName()).append('(');
+        if (method.getParameterType() != null) {
+            out.append(imports.name(method.getParameterType())).append(" theValue");
+        }
+        out.append(") {\n");
+
+        final String field = method.getField() != null ? method.getField().getName() : null;
+        final String getList = "get" + method.getListAccessor() + "()";
+        switch (method.getKind()) {
+            case IS_EMPTY:
+                out.append("\t\treturn super.isEmpty()");
+                if (method.isFieldByField()) {
+                    for (final FieldModel f : method.getFields()) {
+                        out.append("\n\t\t\t\t&& ");
+                        if (f.getType().isType(List.class)) {
+                            out.append(imports.name(ElementUtil.class)).append(".isEmpty(").append(f.getName()).append(')');
+                        } else {
+                            out.append('(').append(f.getName()).append(" == null || ").append(f.getName()).append(".isEmpty())");
+                        }
+                    }
+                } else if (!method.getFields().isEmpty()) {
+                    out.append(" && ").append(imports.name(ElementUtil.class)).append(".isEmpty(");
+                    for (int i = 0; i < method.getFields().size(); i++) {
+                        out.append(i > 0 ? ", " : "").append(method.getFields().get(i).getName());
+                    }
+                    out.append(')');
+                }
+                out.append(";\n");
+                break;
+            case GETTER:
+                out.append("\t\treturn ").append(field).append(";\n");
+                break;
+            case LIST_GETTER:
+                out.append("\t\tif (").append(field).append(" == null) {\n")
+                        .append("\t\t\t").append(field).append(" = new java.util.ArrayList<>(")
+                        .append(method.getInitialCapacity() >= 0 ? String.valueOf(method.getInitialCapacity()) : "").append(");\n")
+                        .append("\t\t}\n")
+                        .append("\t\treturn ").append(field).append(";\n");
+                break;
+            case ELEMENT_GETTER:
+                out.append("\t\tif (").append(field).append(" == null) {\n")
+                        .append("\t\t\t").append(field).append(" = new ").append(imports.name(method.getReturnType())).append("();\n")
+                        .append("\t\t}\n")
+                        .append("\t\treturn ").append(field).append(";\n");
+                break;
+            case FIRST_REP:
+                out.append("\t\tif (").append(getList).append(".isEmpty()) {\n")
+                        .append("\t\t\treturn add").append(method.getListAccessor()).append("();\n")
+                        .append("\t\t}\n")
+                        .append("\t\treturn ").append(getList).append(".get(0);\n");
+                break;
+            case ADDER:
+                final String elementType = imports.name(method.getElementType());
+                out.append("\t\t").append(elementType).append(" newType = new ").append(elementType).append("();\n")
+                        .append("\t\t").append(getList).append(".add(newType);\n")
+                        .append("\t\treturn newType;\n");
+                break;
+            case SETTER:
+                out.append("\t\t").append(field).append(" = theValue;\n")
+                        .append("\t\treturn this;\n");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown method kind " + method.getKind());
+        }
+        out.append("\t}\n");
+    }
+
+    static String quote(final String value) {
+        final StringBuilder b = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    b.append("\\\"");
+                    break;
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                case '\r':
+                    b.append("\\r");
+                    break;
+                case '\t':
+                    b.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x7f) {
+                        b.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        b.append(c);
+                    }
+            }
+        }
+        return b.append('"').toString();
+    }
+
+    /**
+     * Decides which types are imported, in order of first use, and how each type is written. A type is written with
+     * its qualified name when another type with the same simple name is imported, or when it would clash with the
+     * class itself or one of its nested enums.
+     */
+    private static final class Imports {
+        private final String packageName;
+        private final Map<String, String> simpleNames = new HashMap<>();
+        private final Set<String> imported = new LinkedHashSet<>();
+
+        private Imports(final ClassModel model) {
+            packageName = model.getPackageName() == null ? "" : model.getPackageName();
+            simpleNames.put(model.getName(), model.getQualifiedName());
+            for (final EnumModel enumModel : model.getEnums()) {
+                simpleNames.put(enumModel.getName(), model.getQualifiedName() + "." + enumModel.getName());
+            }
+            add(TypeRef.of(model.getSuperClass()));
+            add(TypeRef.of(ResourceDef.class));
+            for (final FieldModel field : model.getFields()) {
+                add(field.getType());
+                if (field.isExtension()) {
+                    add(TypeRef.of(Extension.class));
+                }
+                add(TypeRef.of(Child.class));
+                for (final Class<?> type : field.getChildTypes()) {
+                    add(TypeRef.of(type));
+                }
+                add(TypeRef.of(Description.class));
+            }
+            for (final MethodModel method : model.getMethods()) {
+                if (method.getKind() == MethodModel.Kind.IS_EMPTY) {
+                    for (final FieldModel field : method.getFields()) {
+                        if (!method.isFieldByField() || field.getType().isType(List.class)) {
+                            add(TypeRef.of(ElementUtil.class));
+                            break;
+                        }
+                    }
+                }
+                if (method.getKind() != MethodModel.Kind.SETTER) {
+                    add(method.getReturnType());
+                }
+                if (method.getParameterType() != null) {
+                    add(method.getParameterType());
+                }
+            }
+        }
+
+        private void add(final TypeRef type) {
+            final String packageOfType = type.getPackageName();
+            final boolean primitive = type.getType() != null && (type.getType().isPrimitive() || type.getType().isArray());
+            if (!primitive && !packageOfType.isEmpty() && !simpleNames.containsKey(type.getSimpleName())) {
+                simpleNames.put(type.getSimpleName(), type.getName());
+                if (!packageOfType.equals("java.lang") && !packageOfType.equals(packageName)) {
+                    imported.add(type.getName());
+                }
+            }
+            for (final TypeRef argument : type.getArguments()) {
+                add(argument);
+            }
+        }
+
+        String name(final Class<?> type) {
+            return name(TypeRef.of(type));
+        }
+
+        String name(final TypeRef type) {
+            final String raw = type.getName().equals(simpleNames.get(type.getSimpleName())) || type.getPackageName().isEmpty()
+                    || type.getType() != null && type.getType().isPrimitive() ? type.getSimpleName() : type.getName();
+            if (type.getArguments().isEmpty()) {
+                return raw;
+            }
+            final StringBuilder b = new StringBuilder(raw).append('<');
+            for (int i = 0; i < type.getArguments().size(); i++) {
+                b.append(i > 0 ? ", " : "").append(name(type.getArguments().get(i)));
+            }
+            return b.append('>').toString();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes each output to its own file below a source root. The content is compared with the file on disk when it is
+ * written, and only the outputs that differ are written, on {@link #flush()} or, for
+ * {@link #writeThrough(String, byte[])}, right away.
+ */
+public final class DirectoryOutputSink implements OutputSink {
+
+    private final File root;
+    private final Map<String, byte[]> pending = new LinkedHashMap<>();
+    private final Set<File> directories = new HashSet<>();
+
+    public DirectoryOutputSink(final File root) {
+        this.root = root.getAbsoluteFile();
+    }
+
+    @Override
+    public File getRoot() {
+        return root;
+    }
+
+    @Override
+    public boolean exists(final String path) {
+        if (pending.containsKey(path)) {
+            return pending.get(path) != null;
+        }
+        return file(path).isFile();
+    }
+
+    @Override
+    public boolean write(final String path, final byte[] content) throws IOException {
+        final File file = file(path);
+        // The length is known without reading the file, and settles most changes
+        if (file.length() == content.length && file.isFile() && Arrays.equals(content, Files.readAllBytes(file.toPath()))) {
+            pending.remove(path);
+            return false;
+        }
+        pending.put(path, content);
+        return true;
+    }
+
+    @Override
+    public boolean writeThrough(final String path, final byte[] content) throws IOException {
+        if (!write(path, content)) {
+            return false;
+        }
+        writeFile(file(path), pending.remove(path));
+        return true;
+    }
+
+    @Override
+    public void delete(final String path) throws IOException {
+        pending.put(path, null);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        try {
+            for (final Map.Entry<String, byte[]> output : pending.entrySet()) {
+                final File file = file(output.getKey());
+                if (output.getValue() == null) {
+                    Files.deleteIfExists(file.toPath());
+                    continue;
+                }
+                writeFile(file, output.getValue());
+            }
+        } finally {
+            pending.clear();
+        }
+    }
+
+    private void writeFile(final File file, final byte[] content) throws IOException {
+        final File dir = file.getParentFile();
+        if (directories.add(dir) && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir);
+        }
+        Files.write(file.toPath(), content);
+    }
+
+    private File file(final String path) {
+        return new File(root, path.replace('/', File.separatorChar));
+    }
+}
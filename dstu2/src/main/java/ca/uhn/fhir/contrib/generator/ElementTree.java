@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.dstu3.model.ElementDefinition;
+
+/**
+ * The elements of a differential as a tree. An element hangs off the element named by its id without the last
+ * segment, a slice ({@code identifier:BSN}) off the element it slices and a re-slice ({@code identifier:BSN/a}) off the
+ * slice it refines. Elements without a usable id are placed by their path, in the slice opened last for that path.
+ * <p>
+ * Built in one pass over the differential. Elements the differential leaves out, but whose descendants it constrains,
+ * are in the tree without an {@link ElementDefinition}.
+ */
+final class ElementTree {
+
+    private final Node root;
+
+    private ElementTree(final Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @param type the profiled type, the first segment of every path
+     */
+    static ElementTree build(final String type, final List<ElementDefinition> elements) {
+        final Node root = new Node(null, type, null);
+        final Map<String, String> openSlices = new HashMap<>();
+        for (final ElementDefinition element : elements) {
+            final List<String[]> segments = segments(element, openSlices);
+            if (segments.isEmpty() || !type.equals(segments.get(0)[0])) {
+                continue;
+            }
+            Node node = root;
+            for (int i = 0; i < segments.size(); i++) {
+                final String[] segment = segments.get(i);
+                if (i > 0) {
+                    node = node.child(segment[0]);
+                }
+                if (segment[1] != null) {
+                    node = node.slice(segment[1]);
+                }
+            }
+            node.element = element;
+        }
+        return new ElementTree(root);
+    }
+
+    Node getRoot() {
+        return root;
+    }
+
+    /**
+     * Splits the element's id into {@code {name, sliceName}} pairs, or derives them from the path if the id does not
+     * match the path.
+     */
+    private static List<String[]> segments(final ElementDefinition element, final Map<String, String> openSlices) {
+        final String path = element.getPath();
+        if (path == null) {
+            return Collections.emptyList();
+        }
+        final String id = element.getId();
+        if (id != null) {
+            final List<String[]> segments = new ArrayList<>();
+            final StringBuilder idPath = new StringBuilder(id.length());
+            for (final String part : id.split("\\.")) {
+                final int colon = part.indexOf(':');
+                final String name = colon == -1 ? part : part.substring(0, colon);
+                segments.add(new String[]{name, colon == -1 ? null : part.substring(colon + 1)});
+                idPath.append(idPath.length() == 0 ? "" : ".").append(name);
+            }
+            if (idPath.toString().equals(path)) {
+                openSlice(element, openSlices);
+                return segments;
+            }
+        }
+
+        final String[] names = path.split("\\.");
+        final List<String[]> segments = new ArrayList<>(names.length);
+        final StringBuilder prefix = new StringBuilder(path.length());
+        for (int i = 0; i < names.length; i++) {
+            prefix.append(i == 0 ? "" : ".").append(names[i]);
+            final boolean last = i == names.length - 1;
+            final String slice = last ? element.getSliceName() : openSlices.get(prefix.toString());
+            segments.add(new String[]{names[i], slice});
+        }
+        openSlice(element, openSlices);
+        return segments;
+    }
+
+    /**
+     * Remembers the slice a slice element opens, for the elements without an id that follow it.
+     */
+    private static void openSlice(final ElementDefinition element, final Map<String, String> openSlices) {
+        if (element.getSliceName() != null) {
+            openSlices.put(element.getPath(), element.getSliceName());
+        } else if (element.hasSlicing()) {
+            openSlices.remove(element.getPath());
+        }
+    }
+
+    static final class Node {
+        private final Node parent;
+        private final String name;
+        private final String sliceName;
+        private ElementDefinition element;
+        private final Map<String, Node> children = new LinkedHashMap<>();
+        private final Map<String, Node> slices = new LinkedHashMap<>();
+
+        private Node(final Node parent, final String name, final String sliceName) {
+            this.parent = parent;
+            this.name = name;
+            this.sliceName = sliceName;
+        }
+
+        /**
+         * @return the last path segment, e.g. {@code system} or {@code value[x]}
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return the name of this slice, or null if this is not a slice
+         */
+        String getSliceName() {
+            return sliceName;
+        }
+
+        /**
+         * @return the constraints on this element, or null if the differential only constrains its descendants
+         */
+        ElementDefinition getElement() {
+            return element;
+        }
+
+        /**
+         * @return the path of the element, without slice names
+         */
+        String getPath() {
+            if (parent == null) {
+                return name;
+            }
+            return sliceName != null ? parent.getPath() : parent.getPath() + "." + name;
+        }
+
+        Collection<Node> getChildren() {
+            return Collections.unmodifiableCollection(children.values());
+        }
+
+        /**
+         * @return the slices of this element, or the re-slices of this slice
+         */
+        Collection<Node> getSlices() {
+            return Collections.unmodifiableCollection(slices.values());
+        }
+
+        /**
+         * @return the descendant at the dotted path below this node, e.g. {@code code.coding.system}, or null
+         */
+        Node find(final String relativePath) {
+            Node node = this;
+            for (final String segment : relativePath.split("\\.")) {
+                node = node.children.get(segment);
+                if (node == null) {
+                    return null;
+                }
+            }
+            return node;
+        }
+
+        /**
+         * @return whether the differential slices this element, either by defining the slicing or by adding slices to
+         * a slicing defined in the base
+         */
+        boolean isSliced() {
+            return !slices.isEmpty() || element != null && element.hasSlicing() && !element.getSlicing().getDiscriminator().isEmpty();
+        }
+
+        private Node child(final String childName) {
+            Node child = children.get(childName);
+            if (child == null) {
+                child = new Node(this, childName, null);
+                children.put(childName, child);
+            }
+            return child;
+        }
+
+        private Node slice(final String name) {
+            final int slash = name.indexOf('/');
+            if (slash != -1) {
+                return slice(name.substring(0, slash)).slice(name.substring(slash + 1));
+            }
+            Node slice = slices.get(name);
+            if (slice == null) {
+                slice = new Node(this, this.name, name);
+                slices.put(name, slice);
+            }
+            return slice;
+        }
+    }
+}
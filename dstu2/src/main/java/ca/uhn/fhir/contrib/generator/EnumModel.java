@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An enum nested in a generated class, listing the slices of a sliced element.
+ */
+public final class EnumModel {
+
+    private final String name;
+    private final List<String> constants = new ArrayList<>();
+
+    EnumModel(final String name) {
+        this.name = name;
+    }
+
+    void addConstant(final String constant) {
+        constants.add(constant);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getConstants() {
+        return Collections.unmodifiableList(constants);
+    }
+}
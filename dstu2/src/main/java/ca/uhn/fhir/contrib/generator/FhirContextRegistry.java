@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Holds one lazily built {@link FhirContext} per FHIR version.
+ * <p>
+ * Building a context scans the whole HAPI model, so the providers look their context up here instead of creating
+ * their own. Contexts are thread safe and shared by everyone using the registry. Parsers are not, but are cheap once
+ * the context exists, so every call creates a new one. Nothing is kept per thread, so the registry does not hold on
+ * to the threads, or the class loaders, of the pools it is used from, such as build tool workers.
+ */
+public final class FhirContextRegistry {
+
+    private static final FhirContextRegistry SHARED = new FhirContextRegistry();
+
+    private final ConcurrentMap<FhirVersionEnum, FhirContext> contexts = new ConcurrentHashMap<>();
+
+    /**
+     * @return the registry shared by the whole JVM
+     */
+    public static FhirContextRegistry shared() {
+        return SHARED;
+    }
+
+    public FhirContext getContext(final FhirVersionEnum version) {
+        FhirContext context = contexts.get(version);
+        if (context == null) {
+            context = contexts.computeIfAbsent(version, FhirContext::new);
+        }
+        return context;
+    }
+
+    /**
+     * @return a new JSON parser, for the calling thread to use
+     */
+    public IParser getJsonParser(final FhirVersionEnum version) {
+        return getContext(version).newJsonParser();
+    }
+
+    /**
+     * @return a new XML parser, for the calling thread to use
+     */
+    public IParser getXmlParser(final FhirVersionEnum version) {
+        return getContext(version).newXmlParser();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.dstu3.model.Enumerations.FHIRAllTypes;
+
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+
+/**
+ * Maps FHIR type codes (primitive, complex and resource) to their {@code org.hl7.fhir.dstu3.model} classes.
+ * <p>
+ * The index for every code known to the dstu3 model is built once, the first time it is used, and never changes.
+ * Codes outside the model are probed once and the outcome, found or not, is remembered, so no lookup ever pays for a
+ * {@link ClassNotFoundException} twice.
+ */
+final class FhirTypeIndex {
+
+    private static final String STU3_PACKAGE = "org.hl7.fhir.dstu3.model";
+
+    private static final Class<?> NOT_FOUND = Void.class;
+
+    private final Map<String, Class<?>> known;
+    private final ConcurrentMap<String, Class<?>> unknown = new ConcurrentHashMap<>();
+    private final Function<String, Class<?>> probe;
+
+    /**
+     * @param probe looks up a code outside the model, returning null if there is no class for it
+     */
+    FhirTypeIndex(final FhirContext context, final Function<String, Class<?>> probe) {
+        this.probe = probe;
+        final Map<String, Class<?>> index = new HashMap<>();
+        for (final FHIRAllTypes type : FHIRAllTypes.values()) {
+            if (type == FHIRAllTypes.NULL) {
+                continue;
+            }
+            final Class<?> cls = resolve(context, type.toCode());
+            if (cls != null) {
+                index.put(type.toCode(), cls);
+            }
+        }
+        known = Collections.unmodifiableMap(index);
+    }
+
+    static FhirTypeIndex get() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * @return the model class for the type code, or null if there is none
+     */
+    Class<?> getType(final String code) {
+        if (code == null) {
+            return null;
+        }
+        final Class<?> cls = known.get(code);
+        if (cls != null) {
+            return cls;
+        }
+        Class<?> probed = unknown.get(code);
+        if (probed == null) {
+            probed = unknown.computeIfAbsent(code, key -> {
+                final Class<?> found = probe.apply(key);
+                return found == null ? NOT_FOUND : found;
+            });
+        }
+        return probed == NOT_FOUND ? null : probed;
+    }
+
+    private static Class<?> resolve(final FhirContext context, final String code) {
+        final BaseRuntimeElementDefinition<?> element = context.getElementDefinition(code);
+        if (element != null) {
+            return element.getImplementingClass();
+        }
+        // Primitive types get a Type suffix
+        final Class<?> cls = probe(code);
+        return cls != null ? cls : forName(StringUtils.capitalize(code) + "Type");
+    }
+
+    /**
+     * Looks a code up by the naming convention of complex types and resources, which are named after their code.
+     * This is the lookup the generator used before there was an index, so codes outside the model resolve as they
+     * always did.
+     *
+     * @return the class, or null if there is none
+     */
+    static Class<?> probe(final String code) {
+        final Class<?> cls = forName(StringUtils.capitalize(code));
+        return cls != null ? cls : forName(code);
+    }
+
+    private static Class<?> forName(final String name) {
+        try {
+            return Class.forName(STU3_PACKAGE + "." + name);
+        } catch (final ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static final class Holder {
+        private static final FhirTypeIndex INSTANCE = new FhirTypeIndex(FhirContextRegistry.shared().getContext(FhirVersionEnum.DSTU3),
+                FhirTypeIndex::probe);
+    }
+}
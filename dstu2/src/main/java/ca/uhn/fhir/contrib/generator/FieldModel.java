@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A field of a generated class, with what goes into its {@code @Child}, {@code @Extension} and {@code @Description}
+ * annotations.
+ */
+public final class FieldModel {
+
+    private final String name;
+    private final boolean extension;
+    private TypeRef type;
+    private String extensionUrl;
+    private String childName;
+    private int min;
+    private String max;
+    private boolean summary;
+    private boolean modifier;
+    private List<Class<?>> childTypes = Collections.emptyList();
+    private String shortDefinition;
+    private String formalDefinition;
+    private String todo;
+
+    FieldModel(final String name, final boolean extension) {
+        this.name = name;
+        this.extension = extension;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true for a field holding an extension, false for a field replacing one of the resource
+     */
+    public boolean isExtension() {
+        return extension;
+    }
+
+    public TypeRef getType() {
+        return type;
+    }
+
+    void setType(final TypeRef type) {
+        this.type = type;
+    }
+
+    /**
+     * @return the canonical URL of the extension, or null if the field is not an extension
+     */
+    public String getExtensionUrl() {
+        return extensionUrl;
+    }
+
+    void setExtensionUrl(final String extensionUrl) {
+        this.extensionUrl = extensionUrl;
+    }
+
+    public String getChildName() {
+        return childName;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * @return the maximum cardinality as in the definition: a number, {@code *}, or null or empty if it has none
+     */
+    public String getMax() {
+        return max;
+    }
+
+    public boolean isSummary() {
+        return summary;
+    }
+
+    public boolean isModifier() {
+        return modifier;
+    }
+
+    void setChild(final String childName, final int min, final String max, final boolean summary, final boolean modifier) {
+        this.childName = childName;
+        this.min = min;
+        this.max = max;
+        this.summary = summary;
+        this.modifier = modifier;
+    }
+
+    /**
+     * @return the {@code type} of the {@code @Child} annotation, empty for extensions
+     */
+    public List<Class<?>> getChildTypes() {
+        return childTypes;
+    }
+
+    void setChildTypes(final List<Class<?>> childTypes) {
+        this.childTypes = Collections.unmodifiableList(childTypes);
+    }
+
+    public String getShortDefinition() {
+        return shortDefinition;
+    }
+
+    public String getFormalDefinition() {
+        return formalDefinition;
+    }
+
+    void setDescription(final String shortDefinition, final String formalDefinition) {
+        this.shortDefinition = shortDefinition;
+        this.formalDefinition = formalDefinition;
+    }
+
+    /**
+     * @return what a developer has to fix by hand in the generated field, or null
+     */
+    public String getTodo() {
+        return todo;
+    }
+
+    void setTodo(final String todo) {
+        this.todo = todo;
+    }
+
+    /**
+     * @return true if the profile removes the element, i.e. its cardinality is 0..0
+     */
+    public boolean isProhibited() {
+        return min == 0 && "0".equals(max);
+    }
+}
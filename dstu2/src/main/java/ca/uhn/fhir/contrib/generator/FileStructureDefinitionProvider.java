@@ -16,24 +16,33 @@
 package ca.uhn.fhir.contrib.generator;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
 
 import org.hl7.fhir.dstu3.model.ElementDefinition;
 import org.hl7.fhir.dstu3.model.StructureDefinition;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
-
+/**
+ * Reads a profile from a file, and the definitions it references from {@code <name>.xml} or {@code <name>.json} next
+ * to it, where name is the last segment of the referenced URL. Either format may be used for any file.
+ */
 public class FileStructureDefinitionProvider implements StructureDefinitionProvider {
-    private final FhirContext context;
+    private final FhirContextRegistry contexts;
     private final String outPackage;
     private final File structureFile;
 
     public FileStructureDefinitionProvider(final String outPackage, final File structureFile) {
+        this(outPackage, structureFile, FhirContextRegistry.shared());
+    }
+
+    public FileStructureDefinitionProvider(final String outPackage, final File structureFile, final FhirContextRegistry contexts) {
         this.outPackage = outPackage;
         this.structureFile = structureFile;
-        context = FhirContext.forDstu3();
+        this.contexts = contexts;
     }
 
     @Override
@@ -43,22 +52,51 @@ public class FileStructureDefinitionProvider implements StructureDefinitionProvi
 
     @Override
     public StructureDefinition getDefinition() throws IOException {
-        final IParser parser = context.newJsonParser();
-        return parser.parseResource(StructureDefinition.class, fileToContentString(structureFile));
+        return parse(structureFile);
     }
 
     @Override
     public StructureDefinition provideReferenceDefinition(final ElementDefinition element) throws IOException {
-        final String fileStr = element.getTypeFirstRep().getProfile().substring(element.getTypeFirstRep().getProfile().lastIndexOf('/') + 1) + ".xml";
-        final File file = new File(structureFile.getParent(), fileStr);
+        final File file = getReferenceFile(element.getTypeFirstRep().getProfile());
         if (!file.isFile()) {
-            throw new NullPointerException("File not not found: " + file.getAbsolutePath());
+            throw new FileNotFoundException("File not found: " + file.getAbsolutePath());
+        }
+        return parse(file);
+    }
+
+    public File getStructureFile() {
+        return structureFile;
+    }
+
+    /**
+     * @return the file the definition with the given canonical URL is read from; the {@code .xml} candidate if neither
+     * exists
+     */
+    public File getReferenceFile(final String profileUrl) {
+        final List<File> candidates = getReferenceFileCandidates(profileUrl);
+        final File xmlFile = candidates.get(0);
+        final File jsonFile = candidates.get(1);
+        return !xmlFile.isFile() && jsonFile.isFile() ? jsonFile : xmlFile;
+    }
+
+    /**
+     * @return the files the definition with the given canonical URL may be read from, whether they exist or not
+     */
+    public List<File> getReferenceFileCandidates(final String profileUrl) {
+        final String name = profileUrl.substring(profileUrl.lastIndexOf('/') + 1);
+        return Arrays.asList(new File(structureFile.getParent(), name + ".xml"), new File(structureFile.getParent(), name + ".json"));
+    }
+
+    private StructureDefinition parse(final File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return StructureDefinitionReader.read(in, contexts);
         }
-        final IParser parser = context.newXmlParser();
-        return parser.parseResource(StructureDefinition.class, fileToContentString(file));
     }
 
-    private String fileToContentString(final File file) throws IOException {
-        return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    @Override
+    public String toString() {
+        return "FileStructureDefinitionProvider{" +
+                "structureFile=" + structureFile +
+                '}';
     }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loads classes generated at runtime, such as the class files written by the {@link BytecodeEmitter}. Classes are
+ * defined when they are first loaded, so nested classes that are never used are never defined.
+ * <p>
+ * Classes of one loader can refer to each other; use a new loader to replace a class that was already loaded.
+ */
+public final class GeneratedClassLoader extends ClassLoader {
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final Map<String, byte[]> classFiles = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a loader whose parent is the loader of the generator, so the generated classes see HAPI FHIR.
+     */
+    public GeneratedClassLoader() {
+        this(GeneratedClassLoader.class.getClassLoader());
+    }
+
+    public GeneratedClassLoader(final ClassLoader parent) {
+        super(parent);
+    }
+
+    /**
+     * @param classes class files by binary class name
+     */
+    public void add(final Map<String, byte[]> classes) {
+        classFiles.putAll(classes);
+    }
+
+    /**
+     * Adds the class files and loads the first of them.
+     *
+     * @param classes class files by binary class name, in an order that starts with the class to load
+     */
+    public Class<?> define(final Map<String, byte[]> classes) throws ClassNotFoundException {
+        if (classes.isEmpty()) {
+            throw new IllegalArgumentException("No classes to define");
+        }
+        add(classes);
+        return loadClass(classes.keySet().iterator().next());
+    }
+
+    @Override
+    protected Class<?> findClass(final String name) throws ClassNotFoundException {
+        final byte[] classFile = classFiles.remove(name);
+        if (classFile == null) {
+            throw new ClassNotFoundException(name);
+        }
+        return defineClass(name, classFile, 0, classFile.length);
+    }
+}
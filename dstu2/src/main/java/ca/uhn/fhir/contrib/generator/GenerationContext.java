@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.dstu3.model.StructureDefinition;
+
+/**
+ * State of a single profile conversion. The {@link Generator} itself holds no per-profile state, it creates one
+ * context per profile, so a generator can convert several profiles at the same time.
+ */
+final class GenerationContext {
+    final StructureDefinitionProvider resolver;
+    final StructureDefinition definition;
+    final ClassModel model;
+    final Map<String, ResourceParser.FieldInfo> fieldInfo;
+
+    final List<FieldModel> existingFieldsChanged = new ArrayList<>();
+    final List<FieldModel> extensionFieldsAdded = new ArrayList<>();
+    final Set<String> referencedProfiles = new LinkedHashSet<>();
+    final Set<String> enumNames = new HashSet<>();
+    /** Time spent resolving extension types so far */
+    long extensionNanos;
+
+    GenerationContext(final StructureDefinitionProvider resolver, final StructureDefinition definition,
+                      final ClassModel model, final Map<String, ResourceParser.FieldInfo> fieldInfo) {
+        this.resolver = resolver;
+        this.definition = definition;
+        this.model = model;
+        this.fieldInfo = fieldInfo;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+/**
+ * Told what a {@link Generator} spends its time on, per profile. Set one through
+ * {@link GeneratorOptions#withListener(GenerationListener)}; {@link GenerationMetrics} collects everything into a
+ * report.
+ * <p>
+ * Profiles are converted in parallel, so the methods are called from several threads at once. They are called on the
+ * converting thread and should return quickly.
+ */
+public interface GenerationListener {
+
+    /** Does nothing */
+    GenerationListener NONE = new GenerationListener() {
+    };
+
+    enum Phase {
+        /** Reading and parsing the profile through its provider */
+        PARSE,
+        /** Reflecting over the HAPI class of the profiled resource */
+        REFLECT,
+        /** Walking the differential and building the class, without resolving extensions */
+        ELEMENT_WALK,
+        /** Resolving the value types of the referenced extensions, including reading their definitions */
+        EXTENSION_RESOLUTION,
+        /** Turning the class into source or bytecode */
+        RENDER,
+        /** Writing the generated files */
+        WRITE
+    }
+
+    enum Cache {
+        /** Referenced definitions in the {@link StructureDefinitionRegistry} */
+        EXTENSION_DEFINITION,
+        /** Fields and accessors of HAPI classes in the {@link ResourceParser} */
+        RESOURCE_METADATA
+    }
+
+    /**
+     * A phase of converting the profile is over. Phases that run more than once per profile are reported once, with
+     * their total time.
+     */
+    default void phase(final StructureDefinitionProvider profile, final Phase phase, final long nanos) {
+    }
+
+    default void cacheAccess(final StructureDefinitionProvider profile, final Cache cache, final boolean hit) {
+    }
+
+    /**
+     * @param differential the number of elements in the differential of the profile
+     * @param fields       the number of fields of the generated class that replace fields of the HAPI class
+     * @param extensions   the number of extension fields of the generated class
+     */
+    default void elements(final StructureDefinitionProvider profile, final int differential, final int fields, final int extensions) {
+    }
+
+    /**
+     * The profile was converted, or failed to convert.
+     *
+     * @param nanos the time the whole conversion took
+     */
+    default void finished(final StructureDefinitionProvider profile, final boolean success, final long nanos) {
+    }
+}
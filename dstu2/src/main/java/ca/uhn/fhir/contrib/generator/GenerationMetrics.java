@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects what the listener is told into one summary per profile, and writes the summaries as JSON. Profiles are told
+ * apart by their file, or by the string form of providers that do not read a file. Thread safe.
+ */
+public final class GenerationMetrics implements GenerationListener {
+
+    private final ConcurrentMap<String, Profile> profiles = new ConcurrentHashMap<>();
+
+    @Override
+    public void phase(final StructureDefinitionProvider profile, final Phase phase, final long nanos) {
+        final Profile p = profile(profile);
+        synchronized (p) {
+            final Long previous = p.phases.get(phase);
+            p.phases.put(phase, previous == null ? nanos : previous + nanos);
+        }
+    }
+
+    @Override
+    public void cacheAccess(final StructureDefinitionProvider profile, final Cache cache, final boolean hit) {
+        final Profile p = profile(profile);
+        synchronized (p) {
+            final int[] counts = p.caches.computeIfAbsent(cache, c -> new int[2]);
+            counts[hit ? 0 : 1]++;
+        }
+    }
+
+    @Override
+    public void elements(final StructureDefinitionProvider profile, final int differential, final int fields, final int extensions) {
+        final Profile p = profile(profile);
+        synchronized (p) {
+            p.differential = differential;
+            p.fields = fields;
+            p.extensions = extensions;
+        }
+    }
+
+    @Override
+    public void finished(final StructureDefinitionProvider profile, final boolean success, final long nanos) {
+        final Profile p = profile(profile);
+        synchronized (p) {
+            p.success = success;
+            p.totalNanos += nanos;
+        }
+    }
+
+    /**
+     * @return the profiles seen so far, the slowest first
+     */
+    public List<Profile> getProfiles() {
+        final List<Profile> sorted = new ArrayList<>(profiles.values());
+        sorted.sort((a, b) -> Long.compare(b.getTotalNanos(), a.getTotalNanos()));
+        return sorted;
+    }
+
+    /**
+     * Writes the profiles, the slowest first, and the totals over all of them. Times are in milliseconds.
+     */
+    public void writeJson(final Appendable out) throws IOException {
+        final List<Profile> sorted = getProfiles();
+        final Map<Phase, Long> phases = new EnumMap<>(Phase.class);
+        final Map<Cache, int[]> caches = new EnumMap<>(Cache.class);
+        long total = 0;
+        int failures = 0;
+        out.append("{\n  \"profiles\": [");
+        for (int i = 0; i < sorted.size(); i++) {
+            final Profile p = sorted.get(i);
+            synchronized (p) {
+                out.append(i == 0 ? "\n" : ",\n").append("    {\"name\": ");
+                string(out, p.name);
+                out.append(", \"success\": ").append(String.valueOf(p.success));
+                out.append(", \"totalMs\": ").append(millis(p.totalNanos));
+                out.append(", \"elements\": {\"differential\": ").append(String.valueOf(p.differential))
+                        .append(", \"fields\": ").append(String.valueOf(p.fields))
+                        .append(", \"extensions\": ").append(String.valueOf(p.extensions)).append('}');
+                writePhases(out, p.phases);
+                writeCaches(out, p.caches);
+                out.append('}');
+                total += p.totalNanos;
+                failures += p.success ? 0 : 1;
+                for (final Map.Entry<Phase, Long> e : p.phases.entrySet()) {
+                    phases.merge(e.getKey(), e.getValue(), Long::sum);
+                }
+                for (final Map.Entry<Cache, int[]> e : p.caches.entrySet()) {
+                    final int[] counts = caches.computeIfAbsent(e.getKey(), c -> new int[2]);
+                    counts[0] += e.getValue()[0];
+                    counts[1] += e.getValue()[1];
+                }
+            }
+        }
+        out.append(sorted.isEmpty() ? "],\n" : "\n  ],\n");
+        out.append("  \"totals\": {\"profiles\": ").append(String.valueOf(sorted.size()))
+                .append(", \"failures\": ").append(String.valueOf(failures))
+                .append(", \"totalMs\": ").append(millis(total));
+        writePhases(out, phases);
+        writeCaches(out, caches);
+        out.append("}\n}\n");
+    }
+
+    private Profile profile(final StructureDefinitionProvider provider) {
+        final String name = provider instanceof FileStructureDefinitionProvider
+                ? ((FileStructureDefinitionProvider) provider).getStructureFile().getPath()
+                : String.valueOf(provider);
+        return profiles.computeIfAbsent(name, Profile::new);
+    }
+
+    private static void writePhases(final Appendable out, final Map<Phase, Long> phases) throws IOException {
+        out.append(", \"phasesMs\": {");
+        String separator = "";
+        for (final Map.Entry<Phase, Long> e : phases.entrySet()) {
+            out.append(separator).append('"').append(e.getKey().name()).append("\": ").append(millis(e.getValue()));
+            separator = ", ";
+        }
+        out.append('}');
+    }
+
+    private static void writeCaches(final Appendable out, final Map<Cache, int[]> caches) throws IOException {
+        out.append(", \"caches\": {");
+        String separator = "";
+        for (final Map.Entry<Cache, int[]> e : caches.entrySet()) {
+            out.append(separator).append('"').append(e.getKey().name()).append("\": {\"hits\": ")
+                    .append(String.valueOf(e.getValue()[0])).append(", \"misses\": ").append(String.valueOf(e.getValue()[1])).append('}');
+            separator = ", ";
+        }
+        out.append('}');
+    }
+
+    private static String millis(final long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static void string(final Appendable out, final String value) throws IOException {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * What was measured for one profile.
+     */
+    public static final class Profile {
+        private final String name;
+        private final Map<Phase, Long> phases = new EnumMap<>(Phase.class);
+        private final Map<Cache, int[]> caches = new EnumMap<>(Cache.class);
+        private int differential;
+        private int fields;
+        private int extensions;
+        private boolean success;
+        private long totalNanos;
+
+        private Profile(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public synchronized long getPhaseNanos(final Phase phase) {
+            final Long nanos = phases.get(phase);
+            return nanos == null ? 0 : nanos;
+        }
+
+        public synchronized Map<Phase, Long> getPhases() {
+            return Collections.unmodifiableMap(new EnumMap<>(phases));
+        }
+
+        public synchronized int getHits(final Cache cache) {
+            final int[] counts = caches.get(cache);
+            return counts == null ? 0 : counts[0];
+        }
+
+        public synchronized int getMisses(final Cache cache) {
+            final int[] counts = caches.get(cache);
+            return counts == null ? 0 : counts[1];
+        }
+
+        public synchronized int getDifferentialElements() {
+            return differential;
+        }
+
+        public synchronized int getFields() {
+            return fields;
+        }
+
+        public synchronized int getExtensions() {
+            return extensions;
+        }
+
+        public synchronized boolean isSuccess() {
+            return success;
+        }
+
+        public synchronized long getTotalNanos() {
+            return totalNanos;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.jboss.forge.roaster.Roaster;
+import org.jboss.forge.roaster.model.source.JavaClassSource;
+
+/**
+ * Outcome of converting one profile in a batch. Either the generated class or the error that stopped the conversion.
+ */
+public final class GenerationResult {
+    private final StructureDefinitionProvider provider;
+    private final ClassModel model;
+    private final String source;
+    private JavaClassSource javaClass;
+    private final Throwable error;
+    private final Set<String> referencedProfiles;
+
+    private GenerationResult(final StructureDefinitionProvider provider, final ClassModel model, final String source,
+                             final JavaClassSource javaClass, final Throwable error, final Set<String> referencedProfiles) {
+        this.provider = provider;
+        this.model = model;
+        this.source = source;
+        this.javaClass = javaClass;
+        this.error = error;
+        this.referencedProfiles = referencedProfiles;
+    }
+
+    /**
+     * @param javaClass the Roaster class the source was printed from, or null if it was not built with Roaster
+     */
+    static GenerationResult success(final StructureDefinitionProvider provider, final ClassModel model, final String source,
+                                    final JavaClassSource javaClass, final Set<String> referencedProfiles) {
+        return new GenerationResult(provider, model, source, javaClass, null, Collections.unmodifiableSet(new LinkedHashSet<>(referencedProfiles)));
+    }
+
+    static GenerationResult failure(final StructureDefinitionProvider provider, final Throwable error) {
+        return new GenerationResult(provider, null, null, null, error, Collections.<String>emptySet());
+    }
+
+    public StructureDefinitionProvider getProvider() {
+        return provider;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * @return the generated class, or null if the conversion failed
+     */
+    public ClassModel getModel() {
+        return model;
+    }
+
+    /**
+     * @return the simple name of the generated class, or null if the conversion failed
+     */
+    public String getClassName() {
+        return model != null ? model.getName() : null;
+    }
+
+    /**
+     * @return the Java source of the generated class, or null if the conversion failed
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return the generated class as a Roaster AST, or null if the conversion failed. Unless the class was emitted by
+     * the {@link RoasterSourceEmitter}, the source is parsed on the first call, which is slow.
+     */
+    public synchronized JavaClassSource getJavaClass() {
+        if (javaClass == null && source != null) {
+            javaClass = Roaster.parse(JavaClassSource.class, source);
+        }
+        return javaClass;
+    }
+
+    /**
+     * @return the error that stopped the conversion, or null if it succeeded; an {@link Error} such as a
+     * {@link LinkageError} from a model class a profile names is reported here too
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return the canonical URLs of the definitions, such as extensions, the profile referenced
+     */
+    public Set<String> getReferencedProfiles() {
+        return referencedProfiles;
+    }
+
+    @Override
+    public String toString() {
+        return "GenerationResult{" +
+                "provider=" + provider +
+                ", javaClass=" + getClassName() +
+                ", error=" + error +
+                '}';
+    }
+}
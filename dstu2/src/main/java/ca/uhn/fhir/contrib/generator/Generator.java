@@ -16,180 +16,349 @@
 package ca.uhn.fhir.contrib.generator;
 
 import java.io.IOException;
-import java.lang.reflect.Method;
-import java.lang.reflect.ParameterizedType;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.dstu3.model.ElementDefinition;
 import org.hl7.fhir.dstu3.model.ElementDefinition.TypeRefComponent;
 import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.StructureDefinition;
-import org.hl7.fhir.dstu3.model.UriType;
 import org.hl7.fhir.exceptions.FHIRException;
-import org.jboss.forge.roaster.Roaster;
-import org.jboss.forge.roaster.model.source.AnnotationSource;
-import org.jboss.forge.roaster.model.source.FieldSource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.jboss.forge.roaster.model.source.JavaClassSource;
-import org.jboss.forge.roaster.model.source.JavaEnumSource;
-import org.jboss.forge.roaster.model.source.MethodSource;
 
 import com.google.common.base.Function;
-import com.google.common.base.Joiner;
-import com.google.common.base.Strings;
 import com.google.common.collect.FluentIterable;
 
 import ca.uhn.fhir.model.api.IDatatype;
 import ca.uhn.fhir.model.api.IResource;
-import ca.uhn.fhir.model.api.annotation.Child;
-import ca.uhn.fhir.model.api.annotation.Description;
-import ca.uhn.fhir.model.api.annotation.Extension;
-import ca.uhn.fhir.model.api.annotation.ResourceDef;
 import ca.uhn.fhir.model.primitive.BoundCodeDt;
-import ca.uhn.fhir.util.ElementUtil;
 
 public class Generator {
 
-    private static final String STU3_PACKAGE = "org.hl7.fhir.dstu3.model";
-    private static final String STU3_RESOURCE_PACKAGE = STU3_PACKAGE + "";
-    private static final String STU3_COMPOSITE_PACKAGE = STU3_PACKAGE + ".composite";
-    
     public static final String HL7_FHIR_REFERENCE_URL_START = "http://hl7.org/fhir";
+    /** The capacity of an {@code ArrayList} after its first element is added */
+    private static final int SMALL_LIST_CAPACITY = 10;
+
+    private final ResourceParser resourceParser = new ResourceParser();
+    private final StructureDefinitionRegistry definitions;
+    private final GeneratorOptions options;
+    private final Executor prefetchExecutor;
+
+    public Generator() {
+        this(new StructureDefinitionRegistry());
+    }
+
+    /**
+     * @param definitions resolves referenced extension definitions; share one registry to parse every extension once
+     *                    per batch
+     */
+    public Generator(final StructureDefinitionRegistry definitions) {
+        this(definitions, GeneratorOptions.defaults());
+    }
+
+    public Generator(final StructureDefinitionRegistry definitions, final GeneratorOptions options) {
+        this.definitions = definitions;
+        this.options = options;
+        this.prefetchExecutor = options.getPrefetchConcurrency() > 0 ? new BoundedExecutor(options.getPrefetchConcurrency()) : null;
+    }
 
     public static JavaClassSource generate(final StructureDefinitionProvider resolver) throws Exception {
-        return new Generator().convertDefinitionToJavaFile(resolver);
+        return new Generator().convert(resolver);
+    }
+
+    /**
+     * Converts a single profile. The generator keeps no state between conversions, so this may be called from several
+     * threads at once.
+     * <p>
+     * Unless the generator uses the {@link RoasterSourceEmitter}, the source is parsed to build the returned class;
+     * use {@link #generateResult(StructureDefinitionProvider)} to get the source directly.
+     */
+    public JavaClassSource convert(final StructureDefinitionProvider resolver) throws Exception {
+        return emit(resolver).getJavaClass();
     }
 
-    private JavaClassSource convertDefinitionToJavaFile(final StructureDefinitionProvider resolver) throws Exception {
+    /**
+     * Converts a single profile like {@link #convert(StructureDefinitionProvider)}, but reports a failure in the result
+     * instead of throwing it, including errors such as a {@link LinkageError} from a model class the profile names.
+     * Only a {@link VirtualMachineError} is thrown, as the JVM cannot be relied on after one. The result also tells
+     * which profiles the conversion resolved.
+     */
+    public GenerationResult generateResult(final StructureDefinitionProvider resolver) {
+        final long start = System.nanoTime();
+        GenerationResult result;
+        try {
+            result = emit(resolver);
+        } catch (final VirtualMachineError e) {
+            throw e;
+        } catch (final Throwable e) {
+            result = GenerationResult.failure(resolver, e);
+        }
+        options.getListener().finished(resolver, result.isSuccess(), System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Converts the profiles in parallel on the common {@link ForkJoinPool}.
+     *
+     * @see #generateAll(Collection, Executor)
+     */
+    public List<GenerationResult> generateAll(final Collection<? extends StructureDefinitionProvider> resolvers) {
+        return generateAll(resolvers, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Converts the profiles in parallel on the given executor. A failing profile does not stop the others, its error is
+     * reported in its result instead.
+     *
+     * @return one result per profile, in the iteration order of {@code resolvers}
+     */
+    public List<GenerationResult> generateAll(final Collection<? extends StructureDefinitionProvider> resolvers, final Executor executor) {
+        final List<CompletableFuture<GenerationResult>> futures = new ArrayList<>(resolvers.size());
+        for (final StructureDefinitionProvider resolver : resolvers) {
+            futures.add(CompletableFuture.supplyAsync(new ConvertTask(resolver), executor));
+        }
+        final List<GenerationResult> results = new ArrayList<>(futures.size());
+        for (final CompletableFuture<GenerationResult> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    /**
+     * Converts the profiles as they are iterated, on the given executor, like {@link #generateAll(Collection, Executor)}.
+     * At most {@code maxInFlight} profiles are converting or waiting to be consumed at any time, and each result is
+     * handed to the consumer on the calling thread, in iteration order, and not kept afterwards. So however many
+     * profiles there are, only a few definitions and generated classes are in memory at once.
+     */
+    public void generateEach(final Iterable<? extends StructureDefinitionProvider> resolvers, final Executor executor, final int maxInFlight,
+                             final Consumer<GenerationResult> consumer) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive, was: " + maxInFlight);
+        }
+        final Deque<CompletableFuture<GenerationResult>> inFlight = new ArrayDeque<>(maxInFlight);
+        for (final StructureDefinitionProvider resolver : resolvers) {
+            if (inFlight.size() == maxInFlight) {
+                consumer.accept(inFlight.poll().join());
+            }
+            inFlight.add(CompletableFuture.supplyAsync(new ConvertTask(resolver), executor));
+        }
+        while (!inFlight.isEmpty()) {
+            consumer.accept(inFlight.poll().join());
+        }
+    }
+
+    /**
+     * Converts a single profile straight to class files, without writing or compiling source.
+     *
+     * @return the class files by binary class name, the profile class first
+     * @see BytecodeEmitter
+     */
+    public Map<String, byte[]> generateBytecode(final StructureDefinitionProvider resolver) throws Exception {
+        final ClassModel model = convertDefinitionToModel(resolver).model;
+        final long start = System.nanoTime();
+        final Map<String, byte[]> classes = new BytecodeEmitter().emit(model);
+        options.getListener().phase(resolver, GenerationListener.Phase.RENDER, System.nanoTime() - start);
+        return classes;
+    }
+
+    /**
+     * Converts a single profile straight to bytecode and loads the class with the given loader.
+     */
+    public Class<? extends IBaseResource> generateClass(final StructureDefinitionProvider resolver, final GeneratedClassLoader loader) throws Exception {
+        return loader.define(generateBytecode(resolver)).asSubclass(IBaseResource.class);
+    }
+
+    private GenerationResult emit(final StructureDefinitionProvider resolver) throws Exception {
+        final GenerationContext ctx = convertDefinitionToModel(resolver);
+        final SourceEmitter emitter = options.getEmitter();
+        final long start = System.nanoTime();
+        final GenerationResult result;
+        if (emitter instanceof RoasterSourceEmitter) {
+            final JavaClassSource javaClass = ((RoasterSourceEmitter) emitter).toJavaClass(ctx.model);
+            result = GenerationResult.success(resolver, ctx.model, javaClass.toString(), javaClass, ctx.referencedProfiles);
+        } else {
+            final StringBuilder source = new StringBuilder(16 * 1024);
+            emitter.emit(ctx.model, source);
+            result = GenerationResult.success(resolver, ctx.model, source.toString(), null, ctx.referencedProfiles);
+        }
+        options.getListener().phase(resolver, GenerationListener.Phase.RENDER, System.nanoTime() - start);
+        return result;
+    }
+
+    private GenerationContext convertDefinitionToModel(final StructureDefinitionProvider resolver) throws Exception {
+        final GenerationListener listener = options.getListener();
+        long start = System.nanoTime();
         final StructureDefinition def = resolver.getDefinition();
-        final JavaClassSource javaClass = Roaster.create(JavaClassSource.class);
-        final Class<? extends IResource> superClass = (Class<? extends IResource>) Class.forName(STU3_RESOURCE_PACKAGE + "." + def.getType());
-        javaClass.setPackage(resolver.getOutPackage()).setName(convertNameToValidJavaIdentifier(def.getName())).extendSuperType(superClass);
-        addClassResourceDefAnnotation(def, javaClass);
-        final Map<String, ResourceParser.FieldInfo> fieldInfo = new ResourceParser().parseResource(superClass);
-
-        final StructureDefinition.StructureDefinitionDifferentialComponent dif = def.getDifferential();
-        final List<ElementDefinition> elements = dif.getElement();
-        for (final ElementDefinition element : elements) {
-            if (element.getPath().indexOf('.') != -1) {
-                //Element name is (path minus the constrained name). E.g. Path for field Subject on Observations is Observation.subject, which we resolve to subject
-                String elementName = element.getPath().substring(def.getType().length() + 1);
-                if (elementName.endsWith("[x]")) {
-                    elementName = elementName.substring(0, elementName.indexOf("[x]"));
+        listener.phase(resolver, GenerationListener.Phase.PARSE, System.nanoTime() - start);
+        start = System.nanoTime();
+        final Class<?> resourceType = FhirTypeIndex.get().getType(def.getType());
+        if (resourceType == null) {
+            throw new ClassNotFoundException("No dstu3 model class for " + def.getType());
+        }
+        final List<ElementDefinition> elements = def.getDifferential().getElement();
+        final ElementTree tree = ElementTree.build(def.getType(), elements);
+        // Started before the reflection, so the round trips overlap with it and with each other
+        prefetchExtensions(tree, resolver);
+        final long treeNanos = System.nanoTime() - start;
+        final Class<? extends IResource> superClass = (Class<? extends IResource>) resourceType;
+        final ClassModel model = new ClassModel(resolver.getOutPackage(), convertNameToValidJavaIdentifier(def.getName()), superClass,
+                def.getType(), def.getId(), def.getUrl());
+        start = System.nanoTime();
+        listener.cacheAccess(resolver, GenerationListener.Cache.RESOURCE_METADATA, ResourceParser.isCached(superClass));
+        final Map<String, ResourceParser.FieldInfo> fieldInfo = resourceParser.parseResource(superClass);
+        listener.phase(resolver, GenerationListener.Phase.REFLECT, System.nanoTime() - start);
+        final GenerationContext ctx = new GenerationContext(resolver, def, model, fieldInfo);
+
+        start = System.nanoTime();
+
+        for (final ElementTree.Node node : tree.getRoot().getChildren()) {
+            //Element name is (path minus the constrained name). E.g. Path for field Subject on Observations is Observation.subject, which we resolve to subject
+            String elementName = node.getName();
+            if (elementName.endsWith("[x]")) {
+                elementName = elementName.substring(0, elementName.indexOf("[x]"));
+            }
+            if (elementName.equals("extension")) {
+                for (final ElementTree.Node slice : node.getSlices()) {
+                    if (slice.getElement() != null) {
+                        addExtensionField(ctx, slice.getElement());
+                    }
                 }
-                if (elementName.equals("extension")) {
-                    addExtensionField(javaClass, element, resolver);
-                } else {
-                    addField(javaClass, fieldInfo, element, elementName);
+            } else {
+                addSliceEnums(ctx, node);
+                if (node.getElement() != null) {
+                    addField(ctx, node.getElement(), elementName);
                 }
             }
         }
-        addSliceFields(resolver, javaClass);
-        final List<FieldSource<JavaClassSource>> allFields = new ArrayList<>();
-        allFields.addAll(existingFieldsChanged);
-        allFields.addAll(extensionFieldsAdded);
-        addIsEmptyMethod(javaClass, allFields);
-        addSettersAndGettersForFields(javaClass, existingFieldsChanged, false, superClass, fieldInfo);
-        addSettersAndGettersForFields(javaClass, extensionFieldsAdded, true, superClass, fieldInfo);
-        return javaClass;
+        final List<FieldModel> allFields = new ArrayList<>();
+        allFields.addAll(ctx.existingFieldsChanged);
+        allFields.addAll(ctx.extensionFieldsAdded);
+        model.addMethod(MethodModel.isEmpty(allFields, options.isLeanAccessors()));
+        addSettersAndGettersForFields(ctx, ctx.existingFieldsChanged);
+        addSettersAndGettersForFields(ctx, ctx.extensionFieldsAdded);
+        listener.phase(resolver, GenerationListener.Phase.ELEMENT_WALK, System.nanoTime() - start + treeNanos - ctx.extensionNanos);
+        listener.phase(resolver, GenerationListener.Phase.EXTENSION_RESOLUTION, ctx.extensionNanos);
+        listener.elements(resolver, elements.size(), ctx.existingFieldsChanged.size(), ctx.extensionFieldsAdded.size());
+        return ctx;
     }
 
-    private void addSettersAndGettersForFields(final JavaClassSource javaClass, final List<FieldSource<JavaClassSource>> fieldsAdded, final boolean isExtension, final Class<?> superClass, final Map<String, ResourceParser.FieldInfo> fieldInfo) {
-        for (final FieldSource<JavaClassSource> field : fieldsAdded) {
+    /**
+     * Starts resolving the extensions the walk will add fields for, at most {@code prefetchConcurrency} at a time, so
+     * the walk does not wait for one round trip after another.
+     */
+    private void prefetchExtensions(final ElementTree tree, final StructureDefinitionProvider resolver) {
+        final ElementTree.Node extension = tree.getRoot().find("extension");
+        if (prefetchExecutor == null || extension == null) {
+            return;
+        }
+        final List<ElementDefinition> slices = new ArrayList<>(extension.getSlices().size());
+        for (final ElementTree.Node slice : extension.getSlices()) {
+            if (slice.getElement() != null) {
+                slices.add(slice.getElement());
+            }
+        }
+        definitions.prefetch(slices, resolver, prefetchExecutor);
+    }
+
+    private void addSettersAndGettersForFields(final GenerationContext ctx, final List<FieldModel> fieldsAdded) {
+        for (final FieldModel field : fieldsAdded) {
             final String fieldName = StringUtils.capitalize(field.getName().substring(2)); // Remove my
-            final ResourceParser.FieldInfo existingField = fieldInfo.get(fieldName.toLowerCase());
-            String genericType = null;
-            if (field.getType().getTypeArguments().size() == 1) {
-                genericType = field.getType().getTypeArguments().get(0).getName();
-            } else if (field.getType().getTypeArguments().size() > 1){
-                genericType = IDatatype.class.getName();
+            final ResourceParser.FieldInfo existingField = ctx.fieldInfo.get(fieldName.toLowerCase());
+            if (existingField == null) {
+                //Extensions and slicing
+                continue;
             }
-            String type = field.getType().getName();
-            String bodyGetSimple = "return " + field.getName() + ";";
-            if (field.getType().isType(List.class)) {
-                bodyGetSimple = "if (" + field.getName() + " == null) {\n" +
-                        "   " + field.getName() + " = new java.util.ArrayList<>();\n" +
-                        "}\n" +
-                        bodyGetSimple;
-
-                type = type + "<" + genericType + ">";
+            final TypeRef fieldType = field.getType();
+            TypeRef genericType = null;
+            if (fieldType.getArguments().size() == 1) {
+                genericType = fieldType.getArguments().get(0);
+            } else if (fieldType.getArguments().size() > 1) {
+                genericType = TypeRef.of(IDatatype.class);
             }
-            final AnnotationSource<JavaClassSource> childAnnotation = field.getAnnotation(Child.class);
-            final String min = childAnnotation.getStringValue("min");
-            final String max = childAnnotation.getStringValue("max");
-            final boolean deprecate = "0".equals(min) && "0".equals(max);
-            if (existingField != null) {
-                for (final Method method : existingField.getMethods()) {
-                    final String simpleType = genericType != null ? genericType : field.getType().getName();
-                    if (method.getName().startsWith("get") && method.getName().endsWith("FirstRep")) {
-                        final String body = "if (get"+existingField.getOrigFieldName()+"().isEmpty()) {\n" +
-                                "    return add"+existingField.getOrigFieldName()+"();\n" +
-                                "}\n" +
-                                "return get"+existingField.getOrigFieldName()+"().get(0);";
-                        addGetMethod(javaClass, method.getName(), simpleType, body, deprecate);
-                    } else if (method.getName().startsWith("get") && method.getName().endsWith("Element")) {
-                        final String body = "if ("+field.getName()+" == null) {\n" +
-                                "     "+field.getName()+" = new "+type+"();\n" +
-                                "    \n" +
-                                "return "+field.getName()+";";
-                        addGetMethod(javaClass, method.getName(), type, body, deprecate);
-                    } else if (method.getName().startsWith("get")) {
-                        addGetMethod(javaClass, method.getName(), type, bodyGetSimple, deprecate);
-                    } else if (method.getName().startsWith("set")) {
-                        final String bodySet = field.getName() + " = theValue;\nreturn this;";
-                        final MethodSource<JavaClassSource> methodSet = javaClass.addMethod().setName("set" + fieldName).setPublic()
-                                .setReturnType(javaClass.getName()).setBody(bodySet);
-                        methodSet.addParameter(type, "theValue");
-                        methodSet.addAnnotation(Override.class);
-                        if (deprecate) {
-                            methodSet.addAnnotation(Deprecated.class);
-                        }
-                    } else if (method.getName().startsWith("add") && method.getParameterTypes().length == 0) {
-                        final String body = simpleType + " newType = new "+simpleType+"();\n" +
-                                "    get"+existingField.getOrigFieldName()+"().add(newType);\n" +
-                                "return newType;";
-                        addGetMethod(javaClass, method.getName(), simpleType, body, deprecate);
-                    }
+            final boolean isList = fieldType.isType(List.class);
+            final TypeRef type = isList && genericType != null
+                    ? fieldType.withArguments(Collections.singletonList(genericType))
+                    : fieldType.withArguments(Collections.<TypeRef>emptyList());
+            final TypeRef simpleType = genericType != null ? genericType : type;
+            final String listAccessor = StringUtils.capitalize(existingField.getOrigFieldName());
+            final boolean deprecate = field.isProhibited();
+            for (final ResourceParser.Accessor accessor : existingField.getAccessors()) {
+                if (accessor.getName().startsWith("get") && accessor.getName().endsWith("FirstRep")) {
+                    ctx.model.addMethod(MethodModel.listElement(MethodModel.Kind.FIRST_REP, accessor.getName(), field, simpleType, listAccessor, deprecate));
+                } else if (accessor.getName().startsWith("get") && accessor.getName().endsWith("Element")) {
+                    ctx.model.addMethod(MethodModel.getter(MethodModel.Kind.ELEMENT_GETTER, accessor.getName(), field, type, deprecate));
+                } else if (accessor.getName().startsWith("get")) {
+                    ctx.model.addMethod(isList
+                            ? MethodModel.listGetter(accessor.getName(), field, type, initialCapacity(field), deprecate)
+                            : MethodModel.getter(MethodModel.Kind.GETTER, accessor.getName(), field, type, deprecate));
+                } else if (accessor.getName().startsWith("set")) {
+                    ctx.model.addMethod(MethodModel.setter("set" + fieldName, field, type, TypeRef.named(ctx.model.getQualifiedName()), deprecate));
+                } else if (accessor.getName().startsWith("add") && accessor.getParameterCount() == 0) {
+                    ctx.model.addMethod(MethodModel.listElement(MethodModel.Kind.ADDER, accessor.getName(), field, simpleType, listAccessor, deprecate));
                 }
-                continue;
             }
-            //Extensions and slicing
         }
     }
 
-    private void addGetMethod(final JavaClassSource javaClass, final String methodName, final String type, final String body, final boolean deprecate) {
-        final MethodSource<JavaClassSource> method = javaClass.addMethod().setName(methodName).setPublic().setReturnType(type).setBody(body);
-        if (deprecate) {
-            method.addAnnotation(Deprecated.class);
+    /**
+     * With lean accessors, lists of an element allowing only a few repetitions are created with room for just those.
+     */
+    private int initialCapacity(final FieldModel field) {
+        if (!options.isLeanAccessors() || field.getMax() == null || !field.getMax().matches("\\d{1,2}")) {
+            return -1;
         }
+        final int max = Integer.parseInt(field.getMax());
+        return max < SMALL_LIST_CAPACITY ? max : -1;
     }
 
-    private void addIsEmptyMethod(final JavaClassSource javaClass, final List<FieldSource<JavaClassSource>> fieldsAdded) {
-        final String types = Joiner.on(',').join(FluentIterable.from(fieldsAdded).transform(new FieldSourceGetNameFunction()));
-        final String body = "return super.isEmpty() && ElementUtil.isEmpty(" + types + ");";
-        final MethodSource<JavaClassSource> method = javaClass.addMethod().setName("isEmpty").setPublic().setReturnType("boolean").setBody(body);
-        method.addAnnotation(Override.class);
-        javaClass.addImport(ElementUtil.class);
+    /**
+     * Adds an enum listing the slices for every sliced element at or below the node, including slicing nested in
+     * slices.
+     */
+    private void addSliceEnums(final GenerationContext ctx, final ElementTree.Node node) {
+        if (node.isSliced()) {
+            final ElementDefinition element = node.getElement();
+            String enumName = element != null && StringUtils.isNotBlank(element.getShort()) ? element.getShort() : null;
+            if (enumName == null) {
+                // Unnamed slicing, e.g. Patient.contact.relationship, is named after its path
+                enumName = StringUtils.capitalize(node.getPath().substring(ctx.definition.getType().length() + 1).replace('.', ' '));
+                if (node.getSliceName() != null) {
+                    enumName += " " + node.getSliceName();
+                }
+            }
+            final EnumModel enumModel = new EnumModel(uniqueEnumName(ctx, convertNameToValidJavaIdentifier(enumName) + "Type"));
+            for (final ElementTree.Node slice : node.getSlices()) {
+                enumModel.addConstant(convertNameToValidJavaIdentifier(slice.getSliceName()).toUpperCase());
+                // TODO: fix slicing, the fixed values of the slice (code.coding.system, code.coding.code, value[x]) are children of the slice node
+            }
+            ctx.model.addEnum(enumModel);
+        }
+        for (final ElementTree.Node child : node.getChildren()) {
+            addSliceEnums(ctx, child);
+        }
+        for (final ElementTree.Node slice : node.getSlices()) {
+            addSliceEnums(ctx, slice);
+        }
     }
 
-    private void addSliceFields(final StructureDefinitionProvider resolver, final JavaClassSource javaClass) {
-        for (final Map.Entry<String, CompositeValue> i : slicePathToValues.entrySet()) {
-            final JavaEnumSource enumClass = Roaster.create(JavaEnumSource.class);
-            final String enumName = slicedPathToEnumType.get(i.getKey());
-            enumClass.setPackage(resolver.getOutPackage()).setName(convertNameToValidJavaIdentifier(enumName) + "Type");
-            for (final CompositeValueField value : i.getValue().getFields()) {
-                enumClass.addEnumConstant().setName(convertNameToValidJavaIdentifier(value.name).toUpperCase());
-                // TODO: fix slicing
-                //System.out.println(value.fixedCode + " " + value.name + " " + value.type + " " + value.url);
-            }
-            javaClass.addNestedType(enumClass);
+    private static String uniqueEnumName(final GenerationContext ctx, final String name) {
+        String unique = name;
+        for (int i = 2; !ctx.enumNames.add(unique); i++) {
+            unique = name + i;
         }
+        return unique;
     }
 
     private String convertNameToValidJavaIdentifier(final String enumName) {
@@ -200,95 +369,55 @@ public class Generator {
         return b.toString().replaceAll("[ \\.\\?]", "");
     }
 
-    private final Set<String> sliced = new HashSet<>();
-    private final Map<String, String> slicedPathToEnumType = new HashMap<>();
-    private final Map<String, CompositeValue> slicePathToValues = new HashMap<>();
-    private CompositeValue lastSlicedValue = null;
-    private CompositeValueField lastSlicedValueField = null;
-    private final List<FieldSource<JavaClassSource>> existingFieldsChanged = new ArrayList<>();
-    private final List<FieldSource<JavaClassSource>> extensionFieldsAdded = new ArrayList<>();
-
-    private void addField(final JavaClassSource javaClass, final Map<String, ResourceParser.FieldInfo> fieldInfo, final ElementDefinition element, final String elementName) {
-        if (!element.getSlicing().getDiscriminator().isEmpty()) {
-            sliced.add(element.getPath());
-            slicedPathToEnumType.put(element.getPath(), element.getShort());
-            lastSlicedValue = new CompositeValue(element.getPath(), element.getSlicing().getDescription());
-            slicePathToValues.put(element.getPath(), lastSlicedValue);
-        } else {
-            // The ElementDefinition is part of the last slice.
-            if (lastSlicedValue != null && element.getPath().startsWith(lastSlicedValue.path)) {
-                if (element.getPath().equals(lastSlicedValue.path)) {
-                    // This defines the name of slice.
-                    lastSlicedValueField = new CompositeValueField(element.getSliceName());
-                    lastSlicedValue.fields.add(lastSlicedValueField);
-                } else if (element.getPath().equals(lastSlicedValue.path + ".code.coding.system")) {
-                    lastSlicedValueField.url = ((UriType) element.getFixed()).getValue();
-                } else if (element.getPath().equals(lastSlicedValue.path + ".code.coding.code")) {
-                    lastSlicedValueField.fixedCode = String.valueOf(element.getFixed());
-                } else if (element.getPath().equals(lastSlicedValue.path + ".value[x]")) {
-                    lastSlicedValueField.type = String.valueOf(element.getFixed());
-                }
-                return;
-            } else if (elementName.indexOf('.') != -1) {
-                //Dont know why we need theese sub elements. (.code and .code.system etc..)
-                return;
-            }
+    private void addField(final GenerationContext ctx, final ElementDefinition element, final String elementName) {
+        final ResourceParser.FieldInfo inheritedField = ctx.fieldInfo.get(elementName.toLowerCase());
+        if (inheritedField == null) {
+            throw new IllegalStateException("No field " + elementName + " on " + ctx.model.getSuperClass().getSimpleName() + " for " + element.getPath());
         }
-
-        final ResourceParser.FieldInfo inheritedField = fieldInfo.get(elementName.toLowerCase());
-        final FieldSource<JavaClassSource> field = javaClass.addField().setName("my" + StringUtils.capitalize(elementName)).setPrivate();
-        existingFieldsChanged.add(field);
+        final FieldModel field = new FieldModel("my" + StringUtils.capitalize(elementName), false);
+        ctx.model.addField(field);
+        ctx.existingFieldsChanged.add(field);
+        final List<Class<?>> fieldType = FluentIterable.from(element.getType()).transform(new TypeClassFunction(inheritedField)).toList();
         if (Collection.class.isAssignableFrom(inheritedField.getType())) {
-            final List<Class<?>> cl = FluentIterable.from(element.getType()).transform(new TypeClassFunction(inheritedField)).toList();
-            if (cl.size() == 0) {
-                setFieldTypeGeneric(javaClass, inheritedField, field);
+            if (fieldType.size() == 0) {
+                field.setType(genericType(inheritedField));
             } else {
-                final String args = Joiner.on(',').join(FluentIterable.from(cl).transform(new ClassToSimpleNameFunction()));
-                field.setType(inheritedField.getType().getCanonicalName() + "<" + args + ">");
+                field.setType(TypeRef.of(inheritedField.getType(), fieldType));
             }
         } else {
             if (element.getBinding() != null && isBindingStrengthNotExample(element.getBinding()) && element.getBinding().getValueSet() instanceof Reference) {
                 final Reference ref = (Reference) element.getBinding().getValueSet();
-                if (ref.getReference().startsWith(HL7_FHIR_REFERENCE_URL_START)) {	
+                if (ref.getReference().startsWith(HL7_FHIR_REFERENCE_URL_START)) {
 //                    if (BoundCodeableConcept.class.isAssignableFrom(inheritedField.getType())) {
-//                        setFieldTypeGeneric(javaClass, inheritedField, field);
+//                        field.setType(genericType(inheritedField));
 //                    } else 
                     	if (BoundCodeDt.class.isAssignableFrom(inheritedField.getType())) {
-                        setFieldTypeGeneric(javaClass, inheritedField, field);
+                        field.setType(genericType(inheritedField));
                     } else {
-                        field.setType(inheritedField.getType());
+                        field.setType(TypeRef.of(inheritedField.getType()));
                     }
                 } else {
-                    field.setType(inheritedField.getType());
+                    field.setType(TypeRef.of(inheritedField.getType()));
                 }
             } else {
-                field.setType(inheritedField.getType());
+                field.setType(TypeRef.of(inheritedField.getType()));
             }
         }
 
-        final List<Class<?>> fieldType = FluentIterable.from(element.getType()).transform(new TypeClassFunction(inheritedField)).toList();
-        final AnnotationSource<JavaClassSource> childAnnotation = addFieldChildAnnotation(element, elementName, field, false);
-        childAnnotation.setClassArrayValue("type", fieldType.toArray(new Class[fieldType.size()]));
-        addFieldDescriptionAnnotation(element, field);
+        setChild(element, elementName, field);
+        field.setChildTypes(fieldType);
+        setDescription(element, field);
     }
 
-    private void setFieldTypeGeneric(final JavaClassSource javaClass, final ResourceParser.FieldInfo originalField, final FieldSource<JavaClassSource> field) {
-        final Class<?> typeClass = (Class<?>) ((ParameterizedType) originalField.getGenericType()).getActualTypeArguments()[0];
-        field.setType(originalField.getType().getCanonicalName() + "<" + typeClass.getSimpleName() + ">");
-        javaClass.addImport(typeClass);
+    private TypeRef genericType(final ResourceParser.FieldInfo originalField) {
+        return TypeRef.of(originalField.getType(), Collections.<Class<?>>singletonList(originalField.getElementType()));
     }
 
     private boolean isBindingStrengthNotExample(final ElementDefinition.ElementDefinitionBindingComponent binding) {
         return binding.getStrength() == null || !binding.getStrength().equals("example");
     }
 
-    private void addClassResourceDefAnnotation(final StructureDefinition def, final JavaClassSource javaClass) {
-        javaClass.addAnnotation(ResourceDef.class)
-                .setStringValue("name", def.getType())
-                .setStringValue("id", def.getId());
-    }
-
-    private void addExtensionField(final JavaClassSource javaClass, final ElementDefinition element, final StructureDefinitionProvider resolver) throws Exception {
+    private void addExtensionField(final GenerationContext ctx, final ElementDefinition element) throws Exception {
         if (element.getType().size() > 1) {
             throw new IllegalStateException("WTF");
         } else {
@@ -299,72 +428,37 @@ public class Generator {
             if (element.getSliceName() == null) {
                 return;
             }
-            final FieldSource<JavaClassSource> field = javaClass.addField().setName(element.getSliceName()).setPrivate();
-            extensionFieldsAdded.add(field);
-            final Class<?> extensionType = getExtensionType(element, resolver);
+            final FieldModel field = new FieldModel(element.getSliceName(), true);
+            ctx.model.addField(field);
+            ctx.extensionFieldsAdded.add(field);
+            if (element.getTypeFirstRep().getProfile() != null) {
+                ctx.referencedProfiles.add(element.getTypeFirstRep().getProfile());
+            }
+            final long start = System.nanoTime();
+            final Class<?> extensionType = getExtensionType(element, ctx.resolver);
+            ctx.extensionNanos += System.nanoTime() - start;
             if (extensionType != null) {
-                field.setType(extensionType);
+                field.setType(TypeRef.of(extensionType));
             } else {
-                field.setType(Roaster.parse("public class " + StringUtils.capitalize(element.getSliceName()) + " {}"));
-                final String errMsg = "Replace " + StringUtils.capitalize(element.getSliceName()) + ".class with correct extension name";
-                addTodoAndDeprecationAnnotation(field, errMsg);
+                field.setType(TypeRef.named(StringUtils.capitalize(element.getSliceName())));
+                field.setTodo("Replace " + StringUtils.capitalize(element.getSliceName()) + ".class with correct extension name");
             }
-            addFieldExtensionAnnotation(element, field);
-            addFieldChildAnnotation(element, element.getSliceName(), field, true);
-            addFieldDescriptionAnnotation(element, field);
+            field.setExtensionUrl(element.getTypeFirstRep().getProfile());
+            setChild(element, element.getSliceName(), field);
+            setDescription(element, field);
         }
     }
 
-    private void addFieldExtensionAnnotation(final ElementDefinition element, final FieldSource<JavaClassSource> field) {
-        field.addAnnotation(Extension.class)
-                .setLiteralValue("definedLocally", "false")
-                .setLiteralValue("isModifier", "false")
-                .setStringValue("url", element.getTypeFirstRep().getProfile());
-    }
-
-    private void addTodoAndDeprecationAnnotation(final FieldSource<JavaClassSource> field, final String errMsg) {
-        field.getJavaDoc().addTagValue("TODO:", errMsg);
-        field.getJavaDoc().addTagValue("@deprecated", errMsg);
-    }
-
     private Class<?> getExtensionType(final ElementDefinition element, final StructureDefinitionProvider resolver) throws IOException, FHIRException {
-        final StructureDefinition def = resolver.provideReferenceDefinition(element);
-        for (final ElementDefinition el : def.getDifferential().getElement()) {
-//        	final int uppercardinality = el.getMaxValueIntegerType() != null ? el.getMaxValueIntegerType().getValue() : 0;
-//        	System.out.println(uppercardinality);
-            if (el.getPath().startsWith("Extension.value") && !el.getPath().startsWith("Extension.value[x]")) {
-                return getSTU3ClassType(el.getTypeFirstRep());
-            }
-            //Sub extensions
-            else if(el.getPath().startsWith("Extension.extension") && el.getPath().contains("value"))
-            {
-            		return getSTU3ClassType(el.getTypeFirstRep());
-            }
-        }
-        throw new IllegalArgumentException("Could not find extension type(s) for : " + element);
+        return definitions.getExtensionType(element, resolver, options.getListener());
     }
 
-    private AnnotationSource<JavaClassSource> addFieldChildAnnotation(final ElementDefinition element, final String name, final FieldSource<JavaClassSource> field, final boolean isExtension) {
-        final AnnotationSource<JavaClassSource> childAnnotation = field.addAnnotation(Child.class);
-        childAnnotation.setStringValue("name", name);
-        childAnnotation.setLiteralValue("min", element.getMin() + "");
-        childAnnotation.setLiteralValue("max", "*".equals(element.getMax()) ? "Child.MAX_UNLIMITED" : Strings.isNullOrEmpty(element.getMax()) ? "" : element.getMax());
-        childAnnotation.setLiteralValue("order", isExtension ? "Child.ORDER_UNKNOWN" : "Child.REPLACE_PARENT");
-        childAnnotation.setLiteralValue("summary", element.getIsSummaryElement() != null ? "true" : "false");
-        childAnnotation.setLiteralValue("modifier", element.getIsModifierElement() != null ? "true" : "false");
-
-        return childAnnotation;
+    private void setChild(final ElementDefinition element, final String name, final FieldModel field) {
+        field.setChild(name, element.getMin(), element.getMax(), element.getIsSummaryElement() != null, element.getIsModifierElement() != null);
     }
 
-    private void addFieldDescriptionAnnotation(final ElementDefinition element, final FieldSource<JavaClassSource> field) {
-        final AnnotationSource<JavaClassSource> descriptionAnnotation = field.addAnnotation(Description.class);
-        if (element.getShort() != null) {
-            descriptionAnnotation.setStringValue("shortDefinition", element.getShort());
-        }
-        if (element.getDefinition() != null) {
-            descriptionAnnotation.setStringValue("formalDefinition", element.getDefinition());
-        }
-
+    private void setDescription(final ElementDefinition element, final FieldModel field) {
+        field.setDescription(element.getShort(), element.getDefinition());
     }
 
     private static class TypeClassFunction implements Function<ElementDefinition.TypeRefComponent, Class<?>> {
@@ -385,8 +479,8 @@ public class Generator {
     private static Class<?> getClassFromType(@Nullable final ElementDefinition.TypeRefComponent input, final ResourceParser.FieldInfo originalField) {
         switch (input.getCode()) {
             case "BackboneElement":
-                if (originalField.getGenericType() instanceof ParameterizedType) {
-                    return (Class<?>) ((ParameterizedType) originalField.getGenericType()).getActualTypeArguments()[0];
+                if (originalField.getElementType() != null) {
+                    return originalField.getElementType();
                 } else {
                     return originalField.getType();
                 }
@@ -399,57 +493,24 @@ public class Generator {
         }
     }
 
-    private static Class<?> getSTU3ClassType(@Nullable final ElementDefinition.TypeRefComponent input) {
-        try {
-            try {
-                return Class.forName(STU3_RESOURCE_PACKAGE + "." + StringUtils.capitalize(input.getCode()));
-            } catch (final ClassNotFoundException ee) {
-                return Class.forName(STU3_RESOURCE_PACKAGE + "." + input.getCode());
-            }
-        } catch (final ClassNotFoundException e) {
-            throw new IllegalStateException("Cannot locate class", e);
-        }
-    }
-
-    private static class ClassToSimpleNameFunction implements Function<Class<?>, String> {
-        @Nullable
-        @Override
-        public String apply(@Nullable final Class<?> input) {
-            return input.getSimpleName();
+    static Class<?> getSTU3ClassType(@Nullable final ElementDefinition.TypeRefComponent input) {
+        final Class<?> cls = FhirTypeIndex.get().getType(input.getCode());
+        if (cls == null) {
+            throw new IllegalStateException("Cannot locate class for type " + input.getCode());
         }
+        return cls;
     }
 
-    private static class CompositeValue {
-        public String description;
-        public String path;
-        public List<CompositeValueField> fields = new ArrayList<>();
+    private class ConvertTask implements Supplier<GenerationResult> {
+        private final StructureDefinitionProvider resolver;
 
-        public CompositeValue(final String path, final String description) {
-            this.path = path;
-            this.description = description;
+        private ConvertTask(final StructureDefinitionProvider resolver) {
+            this.resolver = resolver;
         }
 
-        public List<CompositeValueField> getFields() {
-            return fields;
-        }
-    }
-
-    private static class CompositeValueField {
-        public String url;
-        public String name;
-        public String type;
-        public String fixedCode;
-
-        public CompositeValueField(final String name) {
-            this.name = name;
-        }
-    }
-
-    private static class FieldSourceGetNameFunction implements Function<FieldSource<JavaClassSource>, String> {
-        @Nullable
         @Override
-        public String apply(@Nullable final FieldSource<JavaClassSource> input) {
-            return input.getName();
+        public GenerationResult get() {
+            return generateResult(resolver);
         }
     }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+/**
+ * Settings of a {@link Generator}. Instances are immutable, the {@code with} methods return a modified copy.
+ */
+public final class GeneratorOptions {
+
+    private static final GeneratorOptions DEFAULTS = new GeneratorOptions(new DirectSourceEmitter(), GenerationListener.NONE, false, null, 8);
+
+    private final SourceEmitter emitter;
+    private final GenerationListener listener;
+    private final boolean leanAccessors;
+    private final String registryClass;
+    private final int prefetchConcurrency;
+
+    private GeneratorOptions(final SourceEmitter emitter, final GenerationListener listener, final boolean leanAccessors,
+                             final String registryClass, final int prefetchConcurrency) {
+        this.emitter = emitter;
+        this.listener = listener;
+        this.leanAccessors = leanAccessors;
+        this.registryClass = registryClass;
+        this.prefetchConcurrency = prefetchConcurrency;
+    }
+
+    /**
+     * @return the default settings: source is written by the {@link DirectSourceEmitter}, nobody listens, accessors are
+     * generated like HAPI's own, no registry class is written, and up to 8 extension definitions are prefetched at a
+     * time
+     */
+    public static GeneratorOptions defaults() {
+        return DEFAULTS;
+    }
+
+    public SourceEmitter getEmitter() {
+        return emitter;
+    }
+
+    public GeneratorOptions withEmitter(final SourceEmitter emitter) {
+        if (emitter == null) {
+            throw new IllegalArgumentException("emitter must not be null");
+        }
+        return new GeneratorOptions(emitter, listener, leanAccessors, registryClass, prefetchConcurrency);
+    }
+
+    public GenerationListener getListener() {
+        return listener;
+    }
+
+    public GeneratorOptions withListener(final GenerationListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        return new GeneratorOptions(emitter, listener, leanAccessors, registryClass, prefetchConcurrency);
+    }
+
+    public boolean isLeanAccessors() {
+        return leanAccessors;
+    }
+
+    /**
+     * @param leanAccessors whether the generated classes avoid garbage in their accessors: {@code isEmpty()} checks the
+     *                      fields one by one instead of passing them to {@code ElementUtil.isEmpty(Object...)}, which
+     *                      allocates an array per call, and list getters create lists sized for the maximum cardinality
+     *                      of the element when that is small
+     */
+    public GeneratorOptions withLeanAccessors(final boolean leanAccessors) {
+        return new GeneratorOptions(emitter, listener, leanAccessors, registryClass, prefetchConcurrency);
+    }
+
+    public String getRegistryClass() {
+        return registryClass;
+    }
+
+    /**
+     * @param registryClass the simple name of the {@link ProfileRegistrySource registry class} a batch writes next to
+     *                      the generated classes, or null to write none
+     */
+    public GeneratorOptions withRegistryClass(final String registryClass) {
+        return new GeneratorOptions(emitter, listener, leanAccessors, registryClass, prefetchConcurrency);
+    }
+
+    public int getPrefetchConcurrency() {
+        return prefetchConcurrency;
+    }
+
+    /**
+     * @param prefetchConcurrency how many of the extension definitions a profile references are fetched at the same
+     *                            time before its elements are walked, or 0 to fetch each one when the walk reaches it
+     */
+    public GeneratorOptions withPrefetchConcurrency(final int prefetchConcurrency) {
+        if (prefetchConcurrency < 0) {
+            throw new IllegalArgumentException("prefetchConcurrency must not be negative");
+        }
+        return new GeneratorOptions(emitter, listener, leanAccessors, registryClass, prefetchConcurrency);
+    }
+}
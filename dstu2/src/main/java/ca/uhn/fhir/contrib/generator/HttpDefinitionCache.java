@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Persistent cache for StructureDefinitions downloaded over HTTP.
+ * <p>
+ * Bodies are stored once under the SHA-256 of their content, and each URL points to its current body together with
+ * the ETag and Last-Modified the server sent. A cached URL is revalidated with a conditional request, so an unchanged
+ * definition costs a 304 instead of a download. If the server cannot be reached, does not answer in time, or answers
+ * with a server error or 429 Too Many Requests, the cached copy is used. In offline mode the network is never touched
+ * and only cached URLs can be served.
+ */
+public class HttpDefinitionCache {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10_000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30_000;
+
+    private static final String URL = "url";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "lastModified";
+    private static final String BODY = "body";
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final File blobDirectory;
+    private final File urlDirectory;
+    private final boolean offline;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    public HttpDefinitionCache(final File directory) {
+        this(directory, false);
+    }
+
+    public HttpDefinitionCache(final File directory, final boolean offline) {
+        this(directory, offline, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param connectTimeoutMillis how long to wait for a connection, must be positive
+     * @param readTimeoutMillis    how long to wait for the server between reads, must be positive
+     */
+    public HttpDefinitionCache(final File directory, final boolean offline, final int connectTimeoutMillis, final int readTimeoutMillis) {
+        if (connectTimeoutMillis <= 0 || readTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Timeouts must be positive: " + connectTimeoutMillis + ", " + readTimeoutMillis);
+        }
+        this.blobDirectory = new File(directory, "blobs");
+        this.urlDirectory = new File(directory, "urls");
+        this.offline = offline;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * Opens the content of the URL, from the cache if it is still current.
+     *
+     * @throws FileNotFoundException in offline mode, if the URL has not been cached
+     */
+    public InputStream open(final URL url) throws IOException {
+        if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) {
+            return url.openStream();
+        }
+        final File metadataFile = new File(urlDirectory, sha256(url.toString().getBytes(StandardCharsets.UTF_8)) + ".properties");
+        final Properties metadata = readMetadata(metadataFile);
+        final File cached = metadata != null ? new File(blobDirectory, metadata.getProperty(BODY)) : null;
+        final boolean hasCached = cached != null && cached.isFile();
+
+        if (offline) {
+            if (!hasCached) {
+                throw new FileNotFoundException("Offline and not cached: " + url);
+            }
+            return new FileInputStream(cached);
+        }
+
+        final HttpURLConnection connection;
+        final int status;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(connectTimeoutMillis);
+            connection.setReadTimeout(readTimeoutMillis);
+            if (hasCached) {
+                setIfPresent(connection, "If-None-Match", metadata.getProperty(ETAG));
+                setIfPresent(connection, "If-Modified-Since", metadata.getProperty(LAST_MODIFIED));
+            }
+            status = connection.getResponseCode();
+        } catch (final IOException e) {
+            if (hasCached) {
+                return new FileInputStream(cached);
+            }
+            throw e;
+        }
+
+        if (hasCached && (status == HttpURLConnection.HTTP_NOT_MODIFIED || isTransientError(status))) {
+            connection.disconnect();
+            return new FileInputStream(cached);
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("Unexpected HTTP status " + status + " for " + url);
+        }
+        final File body;
+        try {
+            body = store(connection);
+        } catch (final IOException e) {
+            if (hasCached) {
+                return new FileInputStream(cached);
+            }
+            throw e;
+        }
+        final Properties updated = new Properties();
+        updated.setProperty(URL, url.toString());
+        updated.setProperty(BODY, body.getName());
+        setIfPresent(updated, ETAG, connection.getHeaderField("ETag"));
+        setIfPresent(updated, LAST_MODIFIED, connection.getHeaderField("Last-Modified"));
+        writeMetadata(metadataFile, updated);
+        return new FileInputStream(body);
+    }
+
+    /**
+     * @return whether the server may answer the same request later, so the cached copy is better than failing
+     */
+    private static boolean isTransientError(final int status) {
+        return status >= HttpURLConnection.HTTP_INTERNAL_ERROR || status == TOO_MANY_REQUESTS
+                || status == HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+    }
+
+    /**
+     * Streams the response body to disk and moves it to its content hash.
+     */
+    private File store(final URLConnection connection) throws IOException {
+        mkdirs(blobDirectory);
+        final File partial = File.createTempFile("download", ".part", blobDirectory);
+        final MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(connection.getInputStream(), digest);
+             OutputStream out = new FileOutputStream(partial)) {
+            IOUtils.copy(in, out);
+        } catch (final IOException e) {
+            Files.deleteIfExists(partial.toPath());
+            throw e;
+        }
+        final File body = new File(blobDirectory, Hex.encodeHexString(digest.digest()));
+        Files.move(partial.toPath(), body.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return body;
+    }
+
+    private static Properties readMetadata(final File metadataFile) throws IOException {
+        if (!metadataFile.isFile()) {
+            return null;
+        }
+        final Properties metadata = new Properties();
+        try (InputStream in = new FileInputStream(metadataFile)) {
+            metadata.load(in);
+        }
+        return metadata.getProperty(BODY) != null ? metadata : null;
+    }
+
+    private void writeMetadata(final File metadataFile, final Properties metadata) throws IOException {
+        mkdirs(urlDirectory);
+        final File partial = File.createTempFile("metadata", ".part", urlDirectory);
+        try (OutputStream out = new FileOutputStream(partial)) {
+            metadata.store(out, null);
+        }
+        Files.move(partial.toPath(), metadataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void setIfPresent(final URLConnection connection, final String header, final String value) {
+        if (value != null) {
+            connection.setRequestProperty(header, value);
+        }
+    }
+
+    private static void setIfPresent(final Properties properties, final String key, final String value) {
+        if (value != null) {
+            properties.setProperty(key, value);
+        }
+    }
+
+    private static void mkdirs(final File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Could not create cache directory " + directory.getAbsolutePath());
+        }
+    }
+
+    private static String sha256(final byte[] bytes) {
+        return Hex.encodeHexString(newDigest().digest(bytes));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import org.hl7.fhir.dstu3.model.ElementDefinition;
+import org.hl7.fhir.dstu3.model.StructureDefinition;
+
+/**
+ * Keeps a set of generated classes up to date with their profiles. One instance is meant to live as long as the
+ * process: the HAPI context, the parsed extension definitions and the file fingerprints stay warm between updates, so
+ * an update after a small edit only pays for the profiles the edit affects.
+ * <p>
+ * An input may also be a Bundle or NDJSON file of definitions (see {@link PackageIndex#isBundle(File)}), such as a
+ * whole implementation guide. Every resource profile in it is converted, resolving the extensions it references from
+ * the same file, and the bundle is regenerated as a whole when it changes.
+ */
+public final class IncrementalGenerator {
+
+    /** Conversions of a bundle's profiles running or waiting to be written, enough to keep the executor busy */
+    private static final int BUNDLE_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final String packageName;
+    private final String packagePath;
+    private final OutputSink sink;
+    private final Executor executor;
+    private final StructureDefinitionRegistry definitions = new StructureDefinitionRegistry();
+    private final Generator generator;
+    private final GenerationListener listener;
+    private final String registryClass;
+    private final IncrementalState state;
+    private final File bundleIndexes;
+    private final Map<File, String> referenceUrls = new ConcurrentHashMap<>();
+    /** The profiles whose last conversion failed, by the files of the definitions they reference */
+    private final Map<File, Set<File>> failedDependents = new ConcurrentHashMap<>();
+
+    /**
+     * @param outputDirectory the source root the classes are written to, in subdirectories for the package
+     * @param stateFile       where the state is kept between runs
+     * @param executor        runs the conversions
+     */
+    public IncrementalGenerator(final String packageName, final File outputDirectory, final File stateFile, final Executor executor) {
+        this(packageName, outputDirectory, stateFile, executor, GeneratorOptions.defaults());
+    }
+
+    public IncrementalGenerator(final String packageName, final File outputDirectory, final File stateFile, final Executor executor,
+                                final GeneratorOptions options) {
+        this(packageName, new DirectoryOutputSink(outputDirectory), stateFile, executor, options);
+    }
+
+    /**
+     * @param sink receives the classes, in subdirectories for the package
+     */
+    public IncrementalGenerator(final String packageName, final OutputSink sink, final File stateFile, final Executor executor,
+                                final GeneratorOptions options) {
+        this.packageName = packageName;
+        this.packagePath = packageName.isEmpty() ? "" : packageName.replace('.', '/') + "/";
+        this.sink = sink;
+        this.generator = new Generator(definitions, options);
+        this.listener = options.getListener();
+        this.registryClass = options.getRegistryClass();
+        this.executor = executor;
+        // Lean accessors change the output, so switching them converts everything again
+        this.state = IncrementalState.load(stateFile, packageName + "\t" + location(packagePath).getPath() + (options.isLeanAccessors() ? "\tlean" : ""));
+        this.bundleIndexes = new File(stateFile.getAbsoluteFile().getParentFile(), "bundles");
+    }
+
+    /**
+     * Tells the generator that files changed on disk. Their fingerprints are computed again, and the definitions
+     * previously read from them are forgotten.
+     *
+     * @return the recorded profiles that depend on one of the files, and the profiles that failed to convert and
+     * reference one of them
+     */
+    public Set<File> changed(final Collection<File> files) {
+        final Set<File> affected = new LinkedHashSet<>();
+        for (final File file : files) {
+            final File key = file.getAbsoluteFile();
+            state.invalidate(key);
+            final String url = referenceUrls.get(key);
+            if (url != null) {
+                definitions.invalidate(url);
+            }
+            affected.addAll(state.getInputsDependingOn(key));
+            final Set<File> failed = failedDependents.remove(key);
+            if (failed != null) {
+                affected.addAll(failed);
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * Makes the generated classes match the given profiles: converts the profiles that are new or out of date and
+     * deletes the classes of profiles that are no longer in the set. Files holding definitions that do not constrain
+     * a resource, such as extensions, are skipped, as the profiles next to them only reference them. The state is
+     * saved afterwards.
+     *
+     * @return the results of the profiles that were converted: those of profile files in the order of {@code inputs},
+     * then those of each bundle
+     */
+    public List<GenerationResult> update(final Collection<File> inputs) throws IOException {
+        final List<GenerationResult> results = new ArrayList<>();
+        update(inputs, results::add);
+        return results;
+    }
+
+    /**
+     * Like {@link #update(Collection)}, but hands each result to the consumer once its class is written instead of
+     * collecting them, so the profiles of a large bundle are let go one at a time.
+     */
+    public void update(final Collection<File> inputs, final Consumer<GenerationResult> results) throws IOException {
+        final Set<File> current = new LinkedHashSet<>();
+        for (final File input : inputs) {
+            current.add(input.getAbsoluteFile());
+        }
+        for (final File recorded : state.getInputs()) {
+            if (!current.contains(recorded)) {
+                deleteUnclaimed(state.remove(recorded));
+            }
+        }
+
+        final List<File> stale = new ArrayList<>();
+        final List<FileStructureDefinitionProvider> providers = new ArrayList<>();
+        final List<File> bundles = new ArrayList<>();
+        for (final File input : current) {
+            if (!state.isUpToDate(input, output -> sink.exists(path(output)))) {
+                if (PackageIndex.isBundle(input)) {
+                    bundles.add(input);
+                } else if (!PackageIndex.isSupportingDefinition(input)) {
+                    // Extensions and datatype profiles are left out, they are read when a profile references them
+                    stale.add(input);
+                    providers.add(new FileStructureDefinitionProvider(packageName, input));
+                }
+            }
+        }
+        if (stale.isEmpty() && bundles.isEmpty()) {
+            writeRegistry();
+            sink.flush();
+            return;
+        }
+
+        try {
+            if (!stale.isEmpty()) {
+                final List<GenerationResult> converted = generator.generateAll(providers, executor);
+                for (int i = 0; i < converted.size(); i++) {
+                    record(stale.get(i), providers.get(i), converted.get(i));
+                    results.accept(converted.get(i));
+                }
+            }
+            for (final File bundle : bundles) {
+                updateBundle(bundle, results);
+            }
+            writeRegistry();
+            sink.flush();
+        } finally {
+            state.save();
+        }
+    }
+
+    /**
+     * Converts every resource profile in the bundle, writing each class through the sink as soon as it is done, so
+     * only a few of the bundle's profiles and classes are in memory at any time. Like a profile file, the bundle is
+     * only recorded if every profile in it converts.
+     */
+    private void updateBundle(final File bundle, final Consumer<GenerationResult> results) throws IOException {
+        final PackageIndex index = PackageIndex.open(bundle, bundleIndexes);
+        final List<StructureDefinitionProvider> providers = new ArrayList<>();
+        for (final String url : new TreeSet<>(index.getUrls())) {
+            // The bundle changed, so may the extensions read from it before
+            definitions.invalidate(url);
+            if (PackageIndex.isResourceProfile(url, index.getType(url))) {
+                providers.add(new PackageStructureDefinitionProvider(packageName, index, url));
+            }
+        }
+        final Set<File> previous = new HashSet<>(state.remove(bundle));
+        final BundleWriter writer = new BundleWriter(results);
+        generator.generateEach(providers, executor, BUNDLE_IN_FLIGHT, writer);
+        if (writer.error != null) {
+            throw writer.error;
+        }
+        if (writer.failed) {
+            return;
+        }
+        state.record(bundle, writer.outputs, Collections.<File>emptyList());
+        for (final Map.Entry<String, String> profile : writer.profiles.entrySet()) {
+            state.recordProfile(bundle, profile.getValue(), profile.getKey());
+        }
+        previous.removeAll(writer.outputs);
+        deleteUnclaimed(previous);
+    }
+
+    /**
+     * Writes the registry class, listing every recorded profile, if the options ask for one.
+     */
+    private void writeRegistry() throws IOException {
+        if (registryClass != null) {
+            final String source = ProfileRegistrySource.render(packageName, registryClass, state.getProfiles());
+            sink.write(packagePath + registryClass + ".java", source.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void record(final File input, final FileStructureDefinitionProvider provider, final GenerationResult result) throws IOException {
+        final Set<File> previous = new HashSet<>(state.remove(input));
+        if (!result.isSuccess()) {
+            // Not recorded, so the profile is converted again on the next update even if it does not change
+            recordFailure(input, provider);
+            return;
+        }
+        final String path = packagePath + result.getClassName() + ".java";
+        final long start = System.nanoTime();
+        sink.write(path, result.getSource().getBytes(StandardCharsets.UTF_8));
+        listener.phase(provider, GenerationListener.Phase.WRITE, System.nanoTime() - start);
+
+        final List<File> dependencies = new ArrayList<>();
+        for (final String url : result.getReferencedProfiles()) {
+            final File file = provider.getReferenceFile(url).getAbsoluteFile();
+            referenceUrls.put(file, url);
+            dependencies.add(file);
+        }
+        final File output = location(path);
+        state.record(input, Collections.singleton(output), dependencies);
+        state.recordProfile(input, result.getClassName(), result.getModel().getProfileUrl());
+        previous.remove(output);
+        deleteUnclaimed(previous);
+    }
+
+    /**
+     * Remembers the files of the extensions a failed profile references, which may be what it failed on, so a change
+     * to one of them reports the profile as affected and forgets what was read from it.
+     */
+    private void recordFailure(final File input, final FileStructureDefinitionProvider provider) {
+        final StructureDefinition definition;
+        try {
+            definition = provider.getDefinition();
+        } catch (final IOException | RuntimeException e) {
+            // The profile itself cannot be read, so only a change to it can fix the conversion
+            return;
+        }
+        for (final ElementDefinition element : definition.getDifferential().getElement()) {
+            for (final ElementDefinition.TypeRefComponent type : element.getType()) {
+                if (!"Extension".equals(type.getCode()) || type.getProfile() == null) {
+                    continue;
+                }
+                for (final File candidate : provider.getReferenceFileCandidates(type.getProfile())) {
+                    final File file = candidate.getAbsoluteFile();
+                    referenceUrls.put(file, type.getProfile());
+                    failedDependents.computeIfAbsent(file, key -> ConcurrentHashMap.<File>newKeySet()).add(input);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes outputs that no recorded profile produces any more.
+     */
+    private void deleteUnclaimed(final Collection<File> outputs) throws IOException {
+        final Set<File> claimed = new HashSet<>();
+        for (final File input : state.getInputs()) {
+            claimed.addAll(state.outputsOf(input));
+        }
+        for (final File output : outputs) {
+            if (!claimed.contains(output)) {
+                sink.delete(path(output));
+            }
+        }
+    }
+
+    /**
+     * @return how the state identifies the output at the path of the sink
+     */
+    private File location(final String path) {
+        return new File(sink.getRoot(), path.replace('/', File.separatorChar));
+    }
+
+    private String path(final File location) {
+        return sink.getRoot().toPath().relativize(location.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Writes the classes of a bundle as their results come in, on the thread that updates.
+     */
+    private final class BundleWriter implements Consumer<GenerationResult> {
+        private final Consumer<GenerationResult> results;
+        private final Set<File> outputs = new LinkedHashSet<>();
+        private final Map<String, String> profiles = new LinkedHashMap<>();
+        private boolean failed;
+        private IOException error;
+
+        private BundleWriter(final Consumer<GenerationResult> results) {
+            this.results = results;
+        }
+
+        @Override
+        public void accept(final GenerationResult result) {
+            if (!result.isSuccess()) {
+                failed = true;
+            } else if (error == null) {
+                final String path = packagePath + result.getClassName() + ".java";
+                final long start = System.nanoTime();
+                try {
+                    sink.writeThrough(path, result.getSource().getBytes(StandardCharsets.UTF_8));
+                } catch (final IOException e) {
+                    error = e;
+                }
+                listener.phase(result.getProvider(), GenerationListener.Phase.WRITE, System.nanoTime() - start);
+                outputs.add(location(path));
+                profiles.put(result.getModel().getProfileUrl(), result.getClassName());
+            }
+            results.accept(result);
+        }
+    }
+}
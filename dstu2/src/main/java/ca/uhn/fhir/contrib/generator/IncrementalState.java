@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Remembers, between builds, what each input profile produced and which definition files it was generated from, so a
+ * build only regenerates the profiles whose own file or one of whose referenced extension files changed.
+ * <p>
+ * Files are fingerprinted by the SHA-256 of their content, so touching a file without changing it does not trigger a
+ * regeneration. Each file is hashed at most once per instance.
+ * <p>
+ * This class only depends on the JDK, so build plugins can use it without loading the generator and its dependencies.
+ */
+public final class IncrementalState {
+
+    private static final String HEADER = "#incremental-state";
+    private static final int VERSION = 2;
+    private static final String ABSENT = "-";
+
+    private final File stateFile;
+    private final String configuration;
+    private final Map<File, Entry> entries = new LinkedHashMap<>();
+    private final Map<File, String> fingerprints = new ConcurrentHashMap<>();
+
+    private IncrementalState(final File stateFile, final String configuration) {
+        this.stateFile = stateFile;
+        this.configuration = hex(sha256().digest(configuration.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Loads the state saved by an earlier build. The state is discarded, so everything is regenerated, if it is
+     * missing, unreadable or was saved for a different configuration (such as another package or output directory).
+     */
+    public static IncrementalState load(final File stateFile, final String configuration) {
+        final IncrementalState state = new IncrementalState(stateFile, configuration);
+        if (stateFile.isFile()) {
+            try {
+                state.read();
+            } catch (final IOException | RuntimeException e) {
+                state.entries.clear();
+            }
+        }
+        return state;
+    }
+
+    private void read() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(stateFile.toPath(), StandardCharsets.UTF_8)) {
+            final String header = reader.readLine();
+            if (header == null || !header.equals(HEADER + "\t" + VERSION + "\t" + configuration)) {
+                return;
+            }
+            Entry entry = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] columns = line.split("\t");
+                switch (columns[0]) {
+                    case "I":
+                        entry = new Entry(columns[2]);
+                        entries.put(new File(columns[1]), entry);
+                        break;
+                    case "O":
+                        entry.outputs.add(new File(columns[1]));
+                        break;
+                    case "D":
+                        entry.dependencies.put(new File(columns[1]), columns[2]);
+                        break;
+                    case "P":
+                        entry.profiles.put(columns[2], columns[1]);
+                        break;
+                    default:
+                        throw new IOException("Unexpected line in " + stateFile + ": " + line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the state atomically, so an interrupted build leaves the previous state behind.
+     */
+    public synchronized void save() throws IOException {
+        final File dir = stateFile.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir);
+        }
+        final File tmp = new File(dir, stateFile.getName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER + "\t" + VERSION + "\t" + configuration + "\n");
+            for (final Map.Entry<File, Entry> e : entries.entrySet()) {
+                writer.write("I\t" + e.getKey().getPath() + "\t" + e.getValue().fingerprint + "\n");
+                for (final File output : e.getValue().outputs) {
+                    writer.write("O\t" + output.getPath() + "\n");
+                }
+                for (final Map.Entry<File, String> dependency : e.getValue().dependencies.entrySet()) {
+                    writer.write("D\t" + dependency.getKey().getPath() + "\t" + dependency.getValue() + "\n");
+                }
+                for (final Map.Entry<String, String> profile : e.getValue().profiles.entrySet()) {
+                    writer.write("P\t" + profile.getValue() + "\t" + profile.getKey() + "\n");
+                }
+            }
+        }
+        Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return true if the input, every definition file it was generated from and all its outputs are unchanged since
+     * the input was last recorded
+     */
+    public boolean isUpToDate(final File input) throws IOException {
+        return isUpToDate(input, File::isFile);
+    }
+
+    /**
+     * @param outputExists tells whether a recorded output still exists, for outputs that are not plain files, such as
+     *                     the entries of an {@link ArchiveOutputSink}
+     */
+    public synchronized boolean isUpToDate(final File input, final Predicate<File> outputExists) throws IOException {
+        final Entry entry = entries.get(key(input));
+        if (entry == null || !entry.fingerprint.equals(fingerprint(input))) {
+            return false;
+        }
+        for (final File output : entry.outputs) {
+            if (!outputExists.test(output)) {
+                return false;
+            }
+        }
+        for (final Map.Entry<File, String> dependency : entry.dependencies.entrySet()) {
+            if (!dependency.getValue().equals(fingerprint(dependency.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records a successful generation of the input, replacing what was recorded for it before.
+     *
+     * @param dependencies the definition files the input was generated from, existing or not; a missing file that
+     *                     appears later makes the input stale
+     */
+    public synchronized void record(final File input, final Collection<File> outputs, final Collection<File> dependencies) throws IOException {
+        final Entry entry = new Entry(fingerprint(input));
+        for (final File output : outputs) {
+            entry.outputs.add(key(output));
+        }
+        for (final File dependency : dependencies) {
+            entry.dependencies.put(key(dependency), fingerprint(dependency));
+        }
+        entries.put(key(input), entry);
+    }
+
+    /**
+     * Records a class generated for a recorded input and the canonical URL of its profile, for the
+     * {@link ProfileRegistrySource registry class}. An input such as a Bundle may record several. Does nothing if the
+     * input is not recorded or has no URL.
+     */
+    public synchronized void recordProfile(final File input, final String className, final String profileUrl) {
+        final Entry entry = entries.get(key(input));
+        if (entry != null && profileUrl != null) {
+            entry.profiles.put(profileUrl, className);
+        }
+    }
+
+    /**
+     * @return the simple name of the class generated for each recorded profile, by canonical URL, sorted by URL
+     */
+    public synchronized Map<String, String> getProfiles() {
+        final Map<String, String> profiles = new TreeMap<>();
+        for (final Entry entry : entries.values()) {
+            profiles.putAll(entry.profiles);
+        }
+        return profiles;
+    }
+
+    /**
+     * Forgets the input.
+     *
+     * @return the outputs recorded for it, which the caller should delete if nothing else produces them
+     */
+    public synchronized Set<File> remove(final File input) {
+        final Entry entry = entries.remove(key(input));
+        return entry != null ? entry.outputs : Collections.<File>emptySet();
+    }
+
+    public synchronized Set<File> getInputs() {
+        return new LinkedHashSet<>(entries.keySet());
+    }
+
+    public synchronized Set<File> outputsOf(final File input) {
+        final Entry entry = entries.get(key(input));
+        return entry != null ? Collections.unmodifiableSet(new LinkedHashSet<>(entry.outputs)) : Collections.<File>emptySet();
+    }
+
+    /**
+     * @return the recorded inputs that were generated from the given definition file
+     */
+    public synchronized Set<File> getInputsDependingOn(final File dependency) {
+        final File key = key(dependency);
+        final Set<File> inputs = new LinkedHashSet<>();
+        for (final Map.Entry<File, Entry> e : entries.entrySet()) {
+            if (e.getValue().dependencies.containsKey(key)) {
+                inputs.add(e.getKey());
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Takes over everything recorded in the other state, such as a fragment recorded by a parallel worker.
+     */
+    public void merge(final IncrementalState other) {
+        final Map<File, Entry> copy;
+        synchronized (other) {
+            copy = new LinkedHashMap<>(other.entries);
+        }
+        synchronized (this) {
+            entries.putAll(copy);
+        }
+        fingerprints.putAll(other.fingerprints);
+    }
+
+    /**
+     * Drops the memoized fingerprint of a file that changed while this instance is in use.
+     */
+    public void invalidate(final File file) {
+        fingerprints.remove(key(file));
+    }
+
+    private String fingerprint(final File file) throws IOException {
+        final File key = key(file);
+        final String known = fingerprints.get(key);
+        if (known != null) {
+            return known;
+        }
+        final String fingerprint;
+        if (key.isFile()) {
+            try (InputStream in = new FileInputStream(key)) {
+                fingerprint = sha256(in);
+            }
+        } else {
+            fingerprint = ABSENT;
+        }
+        fingerprints.put(key, fingerprint);
+        return fingerprint;
+    }
+
+    private static String sha256(final InputStream in) throws IOException {
+        final MessageDigest digest = sha256();
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, n);
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static File key(final File file) {
+        return file.getAbsoluteFile();
+    }
+
+    private static final class Entry {
+        private final String fingerprint;
+        private final Set<File> outputs = new LinkedHashSet<>();
+        private final Map<File, String> dependencies = new LinkedHashMap<>();
+        /** Class names by profile URL */
+        private final Map<String, String> profiles = new LinkedHashMap<>();
+
+        private Entry(final String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+}
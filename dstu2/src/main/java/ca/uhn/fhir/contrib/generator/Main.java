@@ -16,28 +16,270 @@
 package ca.uhn.fhir.contrib.generator;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import org.jboss.forge.roaster.model.source.JavaClassSource;
-
+/**
+ * Command line front end. Converts the given profiles once, or with {@code --watch} keeps running and converts them
+ * again whenever they, or the extension definitions they reference, change.
+ */
 public class Main {
 
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: Main [options] <profile file, bundle or directory>...",
+            "  -p, --package <name>     package of the generated classes (required)",
+            "  -o, --output <dir>       source root the classes are written to, or a .jar or .zip file to write them into",
+            "                           as one source archive (default: .)",
+            "  -i, --include <glob>     file names to convert in directories, may be repeated (default: *.xml, *.json,",
+            "                           *.ndjson); a JSON Bundle or NDJSON file converts every resource profile in it,",
+            "                           and extensions and other definitions that do not constrain a resource are skipped",
+            "  -t, --threads <n>        number of profiles converted at the same time (default: number of processors)",
+            "  -e, --emitter <name>     how source is written: direct, or roaster for the JDT based writer (default: direct)",
+            "  -l, --lean               generate accessors that allocate less: isEmpty() checks field by field, and lists",
+            "                           are sized for the maximum cardinality",
+            "  -r, --registry <name>    also write a class of that name listing every generated class by profile URL, to",
+            "                           register and scan them all at startup",
+            "  -s, --state <file>       where to remember what was generated (default: .fhir-generator/state.tsv)",
+            "  -w, --watch              keep running and convert profiles again when they change",
+            "      --debounce <ms>      with --watch, how long to wait for more changes before converting (default: 150)",
+            "  -h, --help               show this help");
+
+    public static void main(final String[] args) throws Exception {
+        final Options options;
+        try {
+            options = Options.parse(args);
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options.help) {
+            System.out.println(USAGE);
+            return;
+        }
+        System.exit(run(options, System.out) ? 0 : 1);
+    }
+
+    /**
+     * @return false if a profile could not be converted; only returns in watch mode if interrupted
+     */
+    static boolean run(final Options options, final PrintStream out) throws IOException, InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(options.threads);
+        try {
+            final OutputSink sink = OutputSink.forPath(options.outputDirectory);
+            final IncrementalGenerator generator = new IncrementalGenerator(options.packageName, sink, options.stateFile, executor,
+                    GeneratorOptions.defaults().withEmitter(options.emitter).withLeanAccessors(options.lean)
+                            .withRegistryClass(options.registryClass));
+            final long start = System.nanoTime();
+            final Report report = new Report(out);
+            generator.update(options.findProfiles(), report);
+            final boolean success = report.print(start);
+            if (!options.watch) {
+                return success;
+            }
+            out.println("Watching " + options.inputs + " for changes");
+            new ProfileWatcher(generator, options::findProfiles, options.inputs, options.debounceMillis, out).run();
+            return success;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Counts the results as they come, and prints the failures straight away, so no result is kept.
+     */
+    static final class Report implements Consumer<GenerationResult> {
+        private final PrintStream out;
+        private int converted;
+        private int failures;
+
+        Report(final PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void accept(final GenerationResult result) {
+            if (result.isSuccess()) {
+                converted++;
+            } else {
+                failures++;
+                out.println("Could not convert " + result.getProvider() + ": " + result.getError());
+            }
+        }
+
+        /**
+         * Reports an error that stopped the update before every profile was converted.
+         */
+        void stopped(final Exception error) {
+            failures++;
+            out.println("Update stopped: " + error);
+        }
 
-	public static void main(final String [] args) throws Exception {
-		final String someOutputPackageName = "ca.uhn.fhir.contrib.generator.generated";
-		final String [] fileNames = {"nl-core-patient.json"};
-		
-		final String someReadingDirectory = new File(".").getAbsolutePath() + "/src/test/resources";
-		final String someWritingDirectory = new File(".").getAbsolutePath() + "/src/test/java/" + someOutputPackageName.replaceAll("\\.", "/");
-		new File(someWritingDirectory).mkdirs();
-		
-        for (final String s : fileNames) {
-            final StructureDefinitionProvider provider = new FileStructureDefinitionProvider(
-                    someOutputPackageName,
-                    new File(someReadingDirectory, s));
-            final JavaClassSource javaClass = Generator.generate(provider);
-            Files.write(new File(new File(someWritingDirectory), javaClass.getName()+".java").toPath(), javaClass.toString().getBytes("UTF-8"));
-        }
-        System.out.println("Success");
+        /**
+         * @return false if a profile could not be converted
+         */
+        boolean print(final long start) {
+            out.println("Converted " + converted + " profiles" + (failures > 0 ? ", " + failures + " failed" : "")
+                    + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+            return failures == 0;
+        }
+    }
+
+    static final class Options {
+        String packageName;
+        File outputDirectory = new File(".");
+        File stateFile = new File(".fhir-generator", "state.tsv");
+        final List<File> inputs = new ArrayList<>();
+        final List<PathMatcher> includes = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        SourceEmitter emitter = new DirectSourceEmitter();
+        boolean lean;
+        String registryClass;
+        boolean watch;
+        long debounceMillis = 150;
+        boolean help;
+
+        static Options parse(final String[] args) {
+            final Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                switch (arg) {
+                    case "-p":
+                    case "--package":
+                        options.packageName = value(args, ++i, arg);
+                        break;
+                    case "-o":
+                    case "--output":
+                        options.outputDirectory = new File(value(args, ++i, arg));
+                        break;
+                    case "-i":
+                    case "--include":
+                        options.includes.add(FileSystems.getDefault().getPathMatcher("glob:" + value(args, ++i, arg)));
+                        break;
+                    case "-t":
+                    case "--threads":
+                        options.threads = positive(value(args, ++i, arg), arg);
+                        break;
+                    case "-e":
+                    case "--emitter":
+                        options.emitter = emitter(value(args, ++i, arg));
+                        break;
+                    case "-l":
+                    case "--lean":
+                        options.lean = true;
+                        break;
+                    case "-r":
+                    case "--registry":
+                        options.registryClass = value(args, ++i, arg);
+                        break;
+                    case "-s":
+                    case "--state":
+                        options.stateFile = new File(value(args, ++i, arg));
+                        break;
+                    case "-w":
+                    case "--watch":
+                        options.watch = true;
+                        break;
+                    case "--debounce":
+                        options.debounceMillis = positive(value(args, ++i, arg), arg);
+                        break;
+                    case "-h":
+                    case "--help":
+                        options.help = true;
+                        return options;
+                    default:
+                        if (arg.startsWith("-")) {
+                            throw new IllegalArgumentException("Unknown option: " + arg);
+                        }
+                        options.inputs.add(new File(arg));
+                }
+            }
+            if (options.packageName == null) {
+                throw new IllegalArgumentException("Missing --package");
+            }
+            if (options.inputs.isEmpty()) {
+                throw new IllegalArgumentException("No profiles given");
+            }
+            if (options.includes.isEmpty()) {
+                options.includes.add(FileSystems.getDefault().getPathMatcher("glob:*.{xml,json,ndjson}"));
+            }
+            return options;
+        }
+
+        /**
+         * @return the profile files given directly, and the matching files below the given directories
+         */
+        Collection<File> findProfiles() {
+            final Set<File> profiles = new LinkedHashSet<>();
+            for (final File input : inputs) {
+                if (input.isDirectory()) {
+                    try (Stream<Path> files = Files.walk(input.toPath())) {
+                        profiles.addAll(files.filter(p -> Files.isRegularFile(p) && included(p.getFileName()))
+                                .sorted()
+                                .map(Path::toFile)
+                                .collect(Collectors.toList()));
+                    } catch (final IOException e) {
+                        throw new IllegalStateException("Could not list " + input, e);
+                    }
+                } else if (input.isFile()) {
+                    profiles.add(input);
+                }
+            }
+            return profiles;
+        }
+
+        private boolean included(final Path name) {
+            for (final PathMatcher include : includes) {
+                if (include.matches(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String value(final String[] args, final int i, final String option) {
+            if (i >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            return args[i];
+        }
+
+        private static SourceEmitter emitter(final String name) {
+            switch (name) {
+                case "direct":
+                    return new DirectSourceEmitter();
+                case "roaster":
+                    return new RoasterSourceEmitter();
+                default:
+                    throw new IllegalArgumentException("Unknown emitter: " + name);
+            }
+        }
+
+        private static int positive(final String value, final String option) {
+            try {
+                final int n = Integer.parseInt(value);
+                if (n > 0) {
+                    return n;
+                }
+            } catch (final NumberFormatException e) {
+                // Reported below
+            }
+            throw new IllegalArgumentException(option + " must be a positive number, was: " + value);
+        }
     }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A method of a generated class. Methods are described by what they do, not by their body, so every emitter can
+ * implement them in its own way.
+ */
+public final class MethodModel {
+
+    public enum Kind {
+        /** {@code isEmpty()}, checking the superclass and every field of the class, see {@link #isFieldByField()} */
+        IS_EMPTY,
+        /** Returns the field */
+        GETTER,
+        /** Returns the list in the field, creating an empty list first if the field is null, see {@link #getInitialCapacity()} */
+        LIST_GETTER,
+        /** Returns the field, creating an instance of the field type first if the field is null */
+        ELEMENT_GETTER,
+        /** Returns the first element of the list, adding one first if the list is empty */
+        FIRST_REP,
+        /** Creates an element, adds it to the list and returns it */
+        ADDER,
+        /** Sets the field and returns {@code this} */
+        SETTER
+    }
+
+    private final Kind kind;
+    private final String name;
+    private final TypeRef returnType;
+    private final TypeRef parameterType;
+    private final FieldModel field;
+    private final List<FieldModel> fields;
+    private final TypeRef elementType;
+    private final String listAccessor;
+    private final boolean override;
+    private final boolean deprecated;
+    private final boolean fieldByField;
+    private final int initialCapacity;
+
+    private MethodModel(final Kind kind, final String name, final TypeRef returnType, final TypeRef parameterType, final FieldModel field,
+                        final List<FieldModel> fields, final TypeRef elementType, final String listAccessor, final boolean override,
+                        final boolean deprecated, final boolean fieldByField, final int initialCapacity) {
+        this.kind = kind;
+        this.name = name;
+        this.returnType = returnType;
+        this.parameterType = parameterType;
+        this.field = field;
+        this.fields = fields;
+        this.elementType = elementType;
+        this.listAccessor = listAccessor;
+        this.override = override;
+        this.deprecated = deprecated;
+        this.fieldByField = fieldByField;
+        this.initialCapacity = initialCapacity;
+    }
+
+    static MethodModel isEmpty(final List<FieldModel> fields) {
+        return isEmpty(fields, false);
+    }
+
+    /**
+     * @param fieldByField whether to check the fields one by one instead of passing them all to
+     *                     {@code ElementUtil.isEmpty(Object...)}
+     */
+    static MethodModel isEmpty(final List<FieldModel> fields, final boolean fieldByField) {
+        return new MethodModel(Kind.IS_EMPTY, "isEmpty", TypeRef.of(boolean.class), null, null, Collections.unmodifiableList(fields),
+                null, null, true, false, fieldByField, -1);
+    }
+
+    /**
+     * @param kind {@link Kind#GETTER}, {@link Kind#LIST_GETTER} or {@link Kind#ELEMENT_GETTER}
+     */
+    static MethodModel getter(final Kind kind, final String name, final FieldModel field, final TypeRef type, final boolean deprecated) {
+        return new MethodModel(kind, name, type, null, field, null, null, null, false, deprecated, false, -1);
+    }
+
+    /**
+     * @param initialCapacity the capacity of the list the getter creates, or -1 for the default of {@code ArrayList}
+     */
+    static MethodModel listGetter(final String name, final FieldModel field, final TypeRef type, final int initialCapacity, final boolean deprecated) {
+        return new MethodModel(Kind.LIST_GETTER, name, type, null, field, null, null, null, false, deprecated, false, initialCapacity);
+    }
+
+    static MethodModel setter(final String name, final FieldModel field, final TypeRef type, final TypeRef declaringClass, final boolean deprecated) {
+        return new MethodModel(Kind.SETTER, name, declaringClass, type, field, null, null, null, true, deprecated, false, -1);
+    }
+
+    /**
+     * @param kind         {@link Kind#ADDER} or {@link Kind#FIRST_REP}
+     * @param elementType  the type of the list elements
+     * @param listAccessor the property name of the list, e.g. {@code Identifier} for {@code getIdentifier()}
+     */
+    static MethodModel listElement(final Kind kind, final String name, final FieldModel field, final TypeRef elementType,
+                                   final String listAccessor, final boolean deprecated) {
+        return new MethodModel(kind, name, elementType, null, field, null, elementType, listAccessor, false, deprecated, false, -1);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public TypeRef getReturnType() {
+        return returnType;
+    }
+
+    /**
+     * @return the field the method works on, null for {@link Kind#IS_EMPTY}
+     */
+    public FieldModel getField() {
+        return field;
+    }
+
+    /**
+     * @return the fields checked by {@link Kind#IS_EMPTY}
+     */
+    public List<FieldModel> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return the type of the list elements for {@link Kind#ADDER} and {@link Kind#FIRST_REP}
+     */
+    public TypeRef getElementType() {
+        return elementType;
+    }
+
+    /**
+     * @return the property name used to reach the list for {@link Kind#ADDER} and {@link Kind#FIRST_REP}
+     */
+    public String getListAccessor() {
+        return listAccessor;
+    }
+
+    /**
+     * @return the parameter type of a {@link Kind#SETTER}, null for other methods
+     */
+    public TypeRef getParameterType() {
+        return parameterType;
+    }
+
+    public boolean isOverride() {
+        return override;
+    }
+
+    public boolean isDeprecated() {
+        return deprecated;
+    }
+
+    /**
+     * @return whether {@link Kind#IS_EMPTY} checks the fields one by one: lists with {@code ElementUtil.isEmpty(List)},
+     * other fields with a null check and their own {@code isEmpty()}
+     */
+    public boolean isFieldByField() {
+        return fieldByField;
+    }
+
+    /**
+     * @return the capacity of the list a {@link Kind#LIST_GETTER} creates, or -1 for the default of {@code ArrayList}
+     */
+    public int getInitialCapacity() {
+        return initialCapacity;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where generated sources go. Paths are relative to the source root and separated by {@code /}, e.g.
+ * {@code com/example/SimplePatient.java}. Writes may be held back until {@link #flush()}, and a write of the content
+ * already there changes nothing, so unchanged classes keep their timestamps and do not trigger a recompilation.
+ * <p>
+ * Implementations are not thread safe.
+ *
+ * @see DirectoryOutputSink
+ * @see ArchiveOutputSink
+ */
+public interface OutputSink {
+
+    /**
+     * @return the source root directory, or the archive file; the outputs are identified as paths below it
+     */
+    File getRoot();
+
+    /**
+     * @return whether the sink holds the path, counting writes not yet flushed
+     */
+    boolean exists(String path);
+
+    /**
+     * @return false if the path already held this content
+     */
+    boolean write(String path, byte[] content) throws IOException;
+
+    /**
+     * Like {@link #write(String, byte[])}, but the content is not held in memory until {@link #flush()}, so a caller
+     * writing many outputs one after the other only holds the one it is writing.
+     *
+     * @return false if the path already held this content
+     */
+    boolean writeThrough(String path, byte[] content) throws IOException;
+
+    void delete(String path) throws IOException;
+
+    /**
+     * Carries out the writes and deletes held back so far.
+     */
+    void flush() throws IOException;
+
+    /**
+     * @return a sink writing into the archive if the file name ends with {@code .jar} or {@code .zip}, otherwise one
+     * writing files below the directory
+     */
+    static OutputSink forPath(final File file) throws IOException {
+        final String name = file.getName().toLowerCase();
+        return name.endsWith(".jar") || name.endsWith(".zip") ? new ArchiveOutputSink(file) : new DirectoryOutputSink(file);
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.dstu3.model.StructureDefinition;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Offline index of the StructureDefinitions in an implementation guide package ({@code .tgz} with the standard
+ * {@code package/} layout), in a directory tree of {@code .json} and {@code .xml} files, or in a single JSON Bundle or
+ * {@code .ndjson} file.
+ * <p>
+ * Opening a source scans it once for the canonical URL of every StructureDefinition and records where its content
+ * lives as a file, offset and length. The index is written to disk and reused for as long as the source is
+ * unchanged. A package is unpacked to a plain tar file, so every definition is a contiguous region of one file; the
+ * resources of a Bundle or NDJSON file already are. Definitions are only parsed when asked for, straight from a
+ * memory-mapped view of that region, so a Bundle of hundreds of profiles is never held in memory as a whole.
+ */
+public final class PackageIndex {
+
+    private static final String INDEX_FILE = "index.tsv";
+    private static final String TAR_FILE = "package.tar";
+    private static final String HEADER = "#sd-index\t1\t";
+    private static final String PACKAGE_DIR = "package/";
+    private static final int TAR_BLOCK = 512;
+
+    private final File root;
+    private final Map<String, Entry> entries;
+    private final FhirContextRegistry contexts;
+    private final ConcurrentMap<File, MappedByteBuffer> mapped = new ConcurrentHashMap<>();
+
+    private PackageIndex(final File root, final Map<String, Entry> entries, final FhirContextRegistry contexts) {
+        this.root = root;
+        this.entries = entries;
+        this.contexts = contexts;
+    }
+
+    /**
+     * Opens the source, keeping its index in a directory of its own below the cache directory, so the source may be
+     * read-only and several sources may share one cache directory.
+     */
+    public static PackageIndex open(final File source, final File cacheDirectory) throws IOException {
+        final File absolute = source.getAbsoluteFile();
+        return open(absolute, new File(cacheDirectory, absolute.getName() + "-" + Integer.toHexString(absolute.getPath().hashCode())),
+                FhirContextRegistry.shared());
+    }
+
+    /**
+     * @param indexDirectory where the index, and the unpacked tar file of a package, are kept; nothing is written next
+     *                       to the source
+     * @throws IOException if the source is a file that is neither a package ({@code .tgz}) nor a Bundle or NDJSON file
+     */
+    public static PackageIndex open(final File source, final File indexDirectory, final FhirContextRegistry contexts) throws IOException {
+        if (!source.exists()) {
+            throw new FileNotFoundException("Package not found: " + source.getAbsolutePath());
+        }
+        final boolean isBundle = isBundle(source);
+        final boolean isPackage = source.isFile() && !isBundle;
+        if (isPackage && !isPackageFile(source.getName())) {
+            throw new IOException("Not a package (.tgz), directory, Bundle or NDJSON file: " + source.getAbsolutePath());
+        }
+        if (!indexDirectory.isDirectory() && !indexDirectory.mkdirs()) {
+            throw new IOException("Could not create index directory " + indexDirectory.getAbsolutePath());
+        }
+        final File root = isPackage ? new File(indexDirectory, TAR_FILE) : source;
+        final String fingerprint = source.isFile() ? source.length() + ":" + source.lastModified() : fingerprintDirectory(source);
+        final File indexFile = new File(indexDirectory, INDEX_FILE);
+
+        Map<String, Entry> entries = readIndex(indexFile, fingerprint, root);
+        if (entries == null) {
+            entries = isBundle ? scanBundle(source) : isPackage ? scanPackage(source, root) : scanDirectory(source);
+            writeIndex(indexFile, fingerprint, root, entries);
+        }
+        return new PackageIndex(root, Collections.unmodifiableMap(entries), contexts);
+    }
+
+    /**
+     * @return whether the file is read as a Bundle: an {@code .ndjson} file, or a {@code .json} file holding a Bundle
+     */
+    public static boolean isBundle(final File file) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        if (isNdjson(file.getName())) {
+            return true;
+        }
+        if (!isJson(file.getName())) {
+            return false;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return "Bundle".equals(scanResourceType(in));
+        }
+    }
+
+    /**
+     * Reads just enough of a profile file to tell whether it holds a StructureDefinition that is referenced rather than
+     * converted: an extension, a datatype profile or the base definition of a resource. Files the scan cannot tell
+     * about, such as a profile without a type, are left for the generator to report on.
+     */
+    public static boolean isSupportingDefinition(final File file) throws IOException {
+        final String[] urlAndType;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            urlAndType = isXml(file.getName()) ? scanXml(in) : isJson(file.getName()) ? scanJson(in) : null;
+        }
+        return urlAndType != null && urlAndType[1] != null && !isResourceProfile(urlAndType[0], urlAndType[1]);
+    }
+
+    /**
+     * @return whether the definition constrains a resource, leaving out extensions, datatype profiles and the base
+     * definitions of the resources themselves
+     */
+    static boolean isResourceProfile(final String url, final String type) {
+        final Class<?> cls = FhirTypeIndex.get().getType(type);
+        return cls != null && IBaseResource.class.isAssignableFrom(cls)
+                && !url.equals(Generator.HL7_FHIR_REFERENCE_URL_START + "/StructureDefinition/" + type);
+    }
+
+    public boolean contains(final String url) {
+        return entries.containsKey(url);
+    }
+
+    public Set<String> getUrls() {
+        return entries.keySet();
+    }
+
+    /**
+     * @return the type constrained or defined by the StructureDefinition, e.g. Patient or Extension, or null if the
+     * index does not know
+     */
+    public String getType(final String url) {
+        final Entry entry = entries.get(url);
+        return entry != null ? entry.type : null;
+    }
+
+    /**
+     * Parses the StructureDefinition with the given canonical URL.
+     */
+    public StructureDefinition getDefinition(final String url) throws IOException {
+        final Entry entry = entries.get(url);
+        if (entry == null) {
+            throw new FileNotFoundException("StructureDefinition not found in " + root.getAbsolutePath() + ": " + url);
+        }
+        final ByteBuffer content = map(entry.file);
+        content.position((int) entry.offset);
+        content.limit((int) (entry.offset + entry.length));
+        final IParser parser = entry.xml ? contexts.getXmlParser(FhirVersionEnum.DSTU3) : contexts.getJsonParser(FhirVersionEnum.DSTU3);
+        try (Reader reader = new InputStreamReader(new ByteBufferInputStream(content.slice()), StandardCharsets.UTF_8)) {
+            return parser.parseResource(StructureDefinition.class, reader);
+        }
+    }
+
+    private ByteBuffer map(final File file) throws IOException {
+        MappedByteBuffer buffer = mapped.get(file);
+        if (buffer == null) {
+            try (FileChannel channel = FileChannel.open(file.toPath())) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Cannot map files larger than 2GB: " + file.getAbsolutePath());
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            final MappedByteBuffer existing = mapped.putIfAbsent(file, buffer);
+            if (existing != null) {
+                buffer = existing;
+            }
+        }
+        // Each reader gets its own position and limit
+        return buffer.duplicate();
+    }
+
+    private static String fingerprintDirectory(final File directory) {
+        final List<File> files = new ArrayList<>();
+        listDefinitionFiles(directory, files);
+        long hash = 17;
+        for (final File file : files) {
+            hash = 31 * hash + file.getPath().hashCode();
+            hash = 31 * hash + file.length();
+            hash = 31 * hash + file.lastModified();
+        }
+        return files.size() + ":" + Long.toHexString(hash);
+    }
+
+    private static void listDefinitionFiles(final File directory, final List<File> files) {
+        final File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (final File child : children) {
+            if (child.isDirectory() && !child.getName().startsWith(".")) {
+                listDefinitionFiles(child, files);
+            } else if (isJson(child.getName()) || isXml(child.getName())) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static Map<String, Entry> scanDirectory(final File directory) throws IOException {
+        final List<File> files = new ArrayList<>();
+        listDefinitionFiles(directory, files);
+        final Map<String, Entry> entries = new HashMap<>();
+        for (final File file : files) {
+            final boolean xml = isXml(file.getName());
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                final String[] urlAndType = xml ? scanXml(in) : scanJson(in);
+                if (urlAndType != null) {
+                    entries.put(urlAndType[0], new Entry(urlAndType[1], file, 0, file.length(), xml));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Indexes the StructureDefinitions of a Bundle or NDJSON file where they are in the file.
+     */
+    private static Map<String, Entry> scanBundle(final File file) throws IOException {
+        final Map<String, Entry> entries = new HashMap<>();
+        try (InputStream in = new FileInputStream(file)) {
+            BundleScanner.scan(in, isNdjson(file.getName()), (offset, content) -> {
+                final String[] urlAndType = scanJson(new ByteArrayInputStream(content));
+                if (urlAndType != null) {
+                    entries.put(urlAndType[0], new Entry(urlAndType[1], file, offset, content.length, false));
+                }
+            });
+        }
+        return entries;
+    }
+
+    /**
+     * Unpacks the package to a tar file and indexes its {@code package/*.json} StructureDefinitions.
+     */
+    private static Map<String, Entry> scanPackage(final File tgz, final File tar) throws IOException {
+        final File partial = new File(tar.getPath() + ".part");
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(tgz)))) {
+            Files.copy(in, partial.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (final ZipException e) {
+            Files.deleteIfExists(partial.toPath());
+            throw new IOException("Not a gzip compressed package: " + tgz.getAbsolutePath(), e);
+        }
+        Files.move(partial.toPath(), tar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        final Map<String, Entry> entries = new HashMap<>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(tar))) {
+            final byte[] header = new byte[TAR_BLOCK];
+            long offset = 0;
+            String longName = null;
+            while (IOUtils.read(in, header) == TAR_BLOCK && header[0] != 0) {
+                offset += TAR_BLOCK;
+                final long size = parseOctal(header, 124, 12);
+                final char type = (char) header[156];
+                final long padded = (size + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK;
+                String name = longName != null ? longName : tarName(header);
+                longName = null;
+                if (type == 'L') {
+                    // GNU long name, the name of the next entry is the content of this one
+                    final byte[] nameBytes = new byte[(int) size];
+                    IOUtils.readFully(in, nameBytes);
+                    longName = new String(nameBytes, StandardCharsets.UTF_8).trim();
+                    IOUtils.skipFully(in, padded - size);
+                } else if ((type == '0' || type == 0) && isIndexedPackageFile(name)) {
+                    final byte[] content = new byte[(int) size];
+                    IOUtils.readFully(in, content);
+                    final String[] urlAndType = scanJson(new ByteArrayInputStream(content));
+                    if (urlAndType != null) {
+                        entries.put(urlAndType[0], new Entry(urlAndType[1], tar, offset, size, false));
+                    }
+                    IOUtils.skipFully(in, padded - size);
+                } else {
+                    IOUtils.skipFully(in, padded);
+                }
+                offset += padded;
+            }
+        }
+        return entries;
+    }
+
+    private static boolean isIndexedPackageFile(final String name) {
+        return name.startsWith(PACKAGE_DIR) && name.indexOf('/', PACKAGE_DIR.length()) == -1 && isJson(name)
+                && !name.endsWith("package.json") && !name.endsWith(".index.json");
+    }
+
+    private static String tarName(final byte[] header) {
+        final String name = cString(header, 0, 100);
+        final boolean ustar = cString(header, 257, 5).equals("ustar");
+        final String prefix = ustar ? cString(header, 345, 155) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    private static String cString(final byte[] bytes, final int offset, final int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static long parseOctal(final byte[] bytes, final int offset, final int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final byte b = bytes[i];
+            if (b >= '0' && b <= '7') {
+                value = value * 8 + (b - '0');
+            } else if (value > 0 || (b != ' ' && b != 0)) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Reads just enough of a JSON resource to find its canonical URL and type.
+     *
+     * @return url and type, or null if the resource is not a StructureDefinition
+     */
+    private static String[] scanJson(final InputStream in) throws IOException {
+        final JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        try {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            reader.beginObject();
+            String resourceType = null;
+            String url = null;
+            String type = null;
+            while (reader.hasNext() && (resourceType == null || url == null || type == null)) {
+                final String name = reader.nextName();
+                if (reader.peek() == JsonToken.STRING && ("resourceType".equals(name) || "url".equals(name) || "type".equals(name))) {
+                    final String value = reader.nextString();
+                    if ("resourceType".equals(name)) {
+                        resourceType = value;
+                        if (!"StructureDefinition".equals(resourceType)) {
+                            return null;
+                        }
+                    } else if ("url".equals(name)) {
+                        url = value;
+                    } else {
+                        type = value;
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            return "StructureDefinition".equals(resourceType) && url != null ? new String[]{url, type} : null;
+        } catch (final IllegalStateException | MalformedJsonException | EOFException e) {
+            // Not JSON we understand, or cut short, so not a StructureDefinition we can index
+            return null;
+        }
+    }
+
+    /**
+     * @return the resourceType of a JSON resource, or null if it has none
+     */
+    private static String scanResourceType(final InputStream in) throws IOException {
+        final JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        try {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if ("resourceType".equals(name) && reader.peek() == JsonToken.STRING) {
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+            return null;
+        } catch (final IllegalStateException | MalformedJsonException | EOFException e) {
+            // Not JSON, which is for the parser to report
+            return null;
+        }
+    }
+
+    private static String[] scanXml(final InputStream in) throws IOException {
+        try {
+            final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            try {
+                int depth = 0;
+                String url = null;
+                String type = null;
+                while (reader.hasNext() && (url == null || type == null)) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        depth++;
+                        if (depth == 1 && !"StructureDefinition".equals(reader.getLocalName())) {
+                            return null;
+                        } else if (depth == 2 && "url".equals(reader.getLocalName())) {
+                            url = reader.getAttributeValue(null, "value");
+                        } else if (depth == 2 && ("type".equals(reader.getLocalName()) || "constrainedType".equals(reader.getLocalName()))) {
+                            type = reader.getAttributeValue(null, "value");
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        depth--;
+                    }
+                }
+                return url != null ? new String[]{url, type} : null;
+            } finally {
+                reader.close();
+            }
+        } catch (final XMLStreamException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, Entry> readIndex(final File indexFile, final String fingerprint, final File root) throws IOException {
+        if (!indexFile.isFile() || !root.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            if (!(HEADER + fingerprint).equals(reader.readLine())) {
+                return null;
+            }
+            final Map<String, Entry> entries = new HashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split("\t", -1);
+                final File file = root.isFile() ? root : new File(root, parts[2]);
+                entries.put(parts[0], new Entry(parts[1].isEmpty() ? null : parts[1], file, Long.parseLong(parts[3]),
+                        Long.parseLong(parts[4]), Boolean.parseBoolean(parts[5])));
+            }
+            return entries;
+        }
+    }
+
+    private static void writeIndex(final File indexFile, final String fingerprint, final File root, final Map<String, Entry> entries) throws IOException {
+        final File partial = new File(indexFile.getPath() + ".part");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(partial), StandardCharsets.UTF_8))) {
+            writer.write(HEADER + fingerprint + "\n");
+            for (final Map.Entry<String, Entry> i : entries.entrySet()) {
+                final Entry entry = i.getValue();
+                final String path = root.isFile() ? "" : root.toURI().relativize(entry.file.toURI()).getPath();
+                writer.write(i.getKey() + "\t" + (entry.type != null ? entry.type : "") + "\t" + path + "\t"
+                        + entry.offset + "\t" + entry.length + "\t" + entry.xml + "\n");
+            }
+        }
+        Files.move(partial.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static boolean isPackageFile(final String name) {
+        return name.endsWith(".tgz") || name.endsWith(".tar.gz");
+    }
+
+    private static boolean isJson(final String name) {
+        return name.endsWith(".json");
+    }
+
+    private static boolean isNdjson(final String name) {
+        return name.endsWith(".ndjson");
+    }
+
+    private static boolean isXml(final String name) {
+        return name.endsWith(".xml");
+    }
+
+    private static final class Entry {
+        private final String type;
+        private final File file;
+        private final long offset;
+        private final long length;
+        private final boolean xml;
+
+        private Entry(final String type, final File file, final long offset, final long length, final boolean xml) {
+            this.type = type;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.xml = xml;
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
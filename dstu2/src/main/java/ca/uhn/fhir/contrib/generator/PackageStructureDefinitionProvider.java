@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.IOException;
+
+import org.hl7.fhir.dstu3.model.ElementDefinition;
+import org.hl7.fhir.dstu3.model.StructureDefinition;
+
+/**
+ * Provides a profile and the definitions it references from a {@link PackageIndex}, without going to the network.
+ */
+public class PackageStructureDefinitionProvider implements StructureDefinitionProvider {
+    private final String outPackage;
+    private final PackageIndex index;
+    private final String profileUrl;
+
+    public PackageStructureDefinitionProvider(final String outPackage, final PackageIndex index, final String profileUrl) {
+        this.outPackage = outPackage;
+        this.index = index;
+        this.profileUrl = profileUrl;
+    }
+
+    @Override
+    public String getOutPackage() {
+        return outPackage;
+    }
+
+    @Override
+    public StructureDefinition getDefinition() throws IOException {
+        return index.getDefinition(profileUrl);
+    }
+
+    @Override
+    public StructureDefinition provideReferenceDefinition(final ElementDefinition element) throws IOException {
+        return index.getDefinition(element.getTypeFirstRep().getProfile());
+    }
+
+    @Override
+    public String toString() {
+        return "PackageStructureDefinitionProvider{" +
+                "profileUrl='" + profileUrl + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.apache.commons.codec.binary.Hex;
+import org.hl7.fhir.dstu3.model.DomainResource;
+import org.hl7.fhir.dstu3.model.ElementDefinition;
+import org.hl7.fhir.dstu3.model.StructureDefinition;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.model.api.annotation.ResourceDef;
+
+/**
+ * Converts profiles to source with a {@link Generator}, compiles the source in memory with the system Java compiler
+ * and loads the classes. It is the alternative to {@link Generator#generateClass} for when the classes should be
+ * exactly what javac makes of the generated source.
+ * <p>
+ * The compiled classes are kept in a {@link CompiledClassCache} under a hash of the profile, the extension
+ * definitions it references and the output package, so profiles that did not change are loaded from the cache
+ * instead of being converted and compiled again. Profiles that are not cached are compiled together in one compiler
+ * invocation. Each profile is loaded once per instance.
+ * <p>
+ * Needs a JDK; on a JRE there is no system compiler.
+ */
+public class ProfileCompiler {
+
+    /** Changes whenever the generated classes for the same input change */
+    private static final String CACHE_FORMAT = "1";
+    private static final String EXTENSION_PATH_SUFFIX = ".extension";
+
+    private final JavaCompiler compiler;
+    private final StructureDefinitionRegistry definitions = new StructureDefinitionRegistry();
+    private final Generator generator = new Generator(definitions);
+    private final CompiledClassCache cache;
+    private final ClassLoader parent;
+    private final ConcurrentMap<String, Class<? extends IBaseResource>> loaded = new ConcurrentHashMap<>();
+
+    public ProfileCompiler(final CompiledClassCache cache) {
+        this(cache, ProfileCompiler.class.getClassLoader());
+    }
+
+    /**
+     * @param parent the parent of the loaders of the compiled classes, must see HAPI FHIR
+     */
+    public ProfileCompiler(final CompiledClassCache cache, final ClassLoader parent) {
+        this.compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No system Java compiler, compiling profiles needs a JDK");
+        }
+        this.cache = cache;
+        this.parent = parent;
+    }
+
+    public Class<? extends IBaseResource> load(final StructureDefinitionProvider provider) throws IOException {
+        return loadAll(Collections.singletonList(provider)).get(0);
+    }
+
+    /**
+     * Loads the classes of all profiles, compiling those that are not cached in one go.
+     *
+     * @return the classes in the order of {@code providers}
+     * @throws IllegalStateException if a profile could not be converted or its source did not compile; nothing from
+     *                               the batch is cached then
+     */
+    public List<Class<? extends IBaseResource>> loadAll(final List<? extends StructureDefinitionProvider> providers) throws IOException {
+        final List<String> keys = new ArrayList<>(providers.size());
+        final Map<String, StructureDefinitionProvider> missing = new LinkedHashMap<>();
+        for (final StructureDefinitionProvider provider : providers) {
+            final String key = key(provider);
+            keys.add(key);
+            if (!loaded.containsKey(key) && cache.get(key) == null) {
+                missing.put(key, provider);
+            }
+        }
+        if (!missing.isEmpty()) {
+            compile(missing);
+        }
+
+        final GeneratedClassLoader loader = new GeneratedClassLoader(parent);
+        final List<Class<? extends IBaseResource>> classes = new ArrayList<>(providers.size());
+        for (final String key : keys) {
+            Class<? extends IBaseResource> type = loaded.get(key);
+            if (type == null) {
+                try {
+                    type = loader.define(cache.get(key)).asSubclass(IBaseResource.class);
+                } catch (final ClassNotFoundException e) {
+                    throw new IllegalStateException("Compiled class missing for key " + key, e);
+                }
+                final Class<? extends IBaseResource> other = loaded.putIfAbsent(key, type);
+                type = other != null ? other : type;
+            }
+            classes.add(type);
+        }
+        return classes;
+    }
+
+    private void compile(final Map<String, StructureDefinitionProvider> profiles) throws IOException {
+        final List<String> keys = new ArrayList<>(profiles.keySet());
+        final List<GenerationResult> results = generator.generateAll(new ArrayList<>(profiles.values()));
+        final List<SourceFile> sources = new ArrayList<>(results.size());
+        final StringBuilder failures = new StringBuilder();
+        for (final GenerationResult result : results) {
+            if (result.isSuccess()) {
+                sources.add(new SourceFile(result.getModel().getQualifiedName(), result.getSource()));
+            } else {
+                failures.append("\n  ").append(result.getProvider()).append(": ").append(result.getError());
+            }
+        }
+        if (failures.length() > 0) {
+            throw new IllegalStateException("Could not convert profiles:" + failures);
+        }
+
+        final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        final StandardJavaFileManager standard = compiler.getStandardFileManager(diagnostics, Locale.ROOT, StandardCharsets.UTF_8);
+        final MemoryFileManager fileManager = new MemoryFileManager(standard);
+        try {
+            final List<String> options = Arrays.asList("-classpath", classpath(), "-proc:none", "-g", "-nowarn");
+            final Boolean success = compiler.getTask(null, fileManager, diagnostics, options, null, sources).call();
+            if (!Boolean.TRUE.equals(success)) {
+                final StringBuilder message = new StringBuilder("Could not compile profiles:");
+                for (final Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                    if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                        message.append("\n  ").append(diagnostic.getSource() != null ? diagnostic.getSource().getName() + ":" : "")
+                                .append(diagnostic.getLineNumber()).append(": ").append(diagnostic.getMessage(Locale.ROOT));
+                    }
+                }
+                throw new IllegalStateException(message.toString());
+            }
+        } finally {
+            standard.close();
+        }
+
+        for (int i = 0; i < sources.size(); i++) {
+            final String className = sources.get(i).className;
+            final Map<String, byte[]> classes = new LinkedHashMap<>();
+            classes.put(className, fileManager.classes.get(className).toByteArray());
+            for (final Map.Entry<String, ByteArrayOutputStream> e : fileManager.classes.entrySet()) {
+                if (e.getKey().startsWith(className + "$")) {
+                    classes.put(e.getKey(), e.getValue().toByteArray());
+                }
+            }
+            cache.put(keys.get(i), classes);
+        }
+    }
+
+    /**
+     * Hashes everything the generated classes depend on: the profile, the definitions of the extensions it references,
+     * the output package, and the Java version the classes are compiled for.
+     */
+    private String key(final StructureDefinitionProvider provider) throws IOException {
+        final StructureDefinition definition = provider.getDefinition();
+        final MessageDigest digest = newDigest();
+        update(digest, CACHE_FORMAT);
+        update(digest, System.getProperty("java.specification.version"));
+        update(digest, provider.getOutPackage());
+        update(digest, encode(definition));
+        for (final ElementDefinition element : definition.getDifferential().getElement()) {
+            final String profile = element.getTypeFirstRep().getProfile();
+            if (profile != null && element.getPath().endsWith(EXTENSION_PATH_SUFFIX)) {
+                update(digest, profile);
+                try {
+                    update(digest, encode(definitions.getReferenceDefinition(element, provider)));
+                } catch (final IOException | RuntimeException e) {
+                    // Missing extensions are reported when the profile is converted
+                    update(digest, "-");
+                }
+            }
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    private static String encode(final StructureDefinition definition) {
+        return FhirContextRegistry.shared().getJsonParser(FhirVersionEnum.DSTU3).encodeResourceToString(definition);
+    }
+
+    private static void update(final MessageDigest digest, final String value) {
+        digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * The class path of this JVM plus the locations HAPI FHIR was loaded from, which differ from it inside application
+     * servers and build tool workers.
+     */
+    private static String classpath() {
+        final Set<String> entries = new LinkedHashSet<>();
+        for (final Class<?> type : Arrays.asList(ResourceDef.class, IBaseResource.class, DomainResource.class, ProfileCompiler.class)) {
+            final CodeSource source = type.getProtectionDomain().getCodeSource();
+            if (source != null && source.getLocation() != null) {
+                try {
+                    entries.add(new File(source.getLocation().toURI()).getPath());
+                } catch (final URISyntaxException | IllegalArgumentException e) {
+                    // Not a file, javac cannot use it
+                }
+            }
+        }
+        entries.addAll(Arrays.asList(System.getProperty("java.class.path", "").split(File.pathSeparator)));
+        entries.remove("");
+        return String.join(File.pathSeparator, entries);
+    }
+
+    private static final class SourceFile extends SimpleJavaFileObject {
+        private final String className;
+        private final String source;
+
+        private SourceFile(final String className, final String source) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.className = className;
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(final boolean ignoreEncodingErrors) {
+            return source;
+        }
+    }
+
+    /**
+     * Keeps the class files javac writes in memory.
+     */
+    private static final class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<String, ByteArrayOutputStream> classes = new ConcurrentHashMap<>();
+
+        private MemoryFileManager(final StandardJavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(final Location location, final String className, final JavaFileObject.Kind kind,
+                                                   final FileObject sibling) {
+            return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    classes.put(className, out);
+                    return out;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Writes the registry class of a batch: a class next to the generated profile classes that lists each of them by the
+ * canonical URL of its profile. At startup, an application calls its {@code newContext()} or {@code register(context)}
+ * to have HAPI scan every generated class in one go and use it for resources claiming its profile, instead of scanning
+ * each class on the first request that meets it.
+ * <p>
+ * The registry names every type by its qualified name, so profile classes called {@code List} or {@code Map} do not
+ * clash with it.
+ * <p>
+ * The Gradle task writes the registry itself once its workers are done, with only this module, and none of its
+ * dependencies, on its classpath, so this class uses nothing but the JDK.
+ */
+public final class ProfileRegistrySource {
+
+    private ProfileRegistrySource() {
+    }
+
+    /**
+     * @param profiles the simple name of the class generated for each profile, by canonical URL, as recorded by
+     *                 {@link IncrementalState#getProfiles()}
+     */
+    public static String render(final String packageName, final String className, final Map<String, String> profiles) {
+        final StringBuilder out = new StringBuilder(2048 + profiles.size() * 96);
+        if (packageName != null && !packageName.isEmpty()) {
+            out.append("package ").append(packageName).append(";\n\n");
+        }
+        out.append("/**\n * The classes generated from profiles into this package, by canonical URL of the profile.\n */\n");
+        out.append("public final class ").append(className).append(" {\n\n");
+        out.append("\tprivate static final java.util.Map<String, Class<? extends org.hl7.fhir.instance.model.api.IBaseResource>> PROFILES;\n\n");
+        out.append("\tstatic {\n");
+        out.append("\t\tfinal java.util.Map<String, Class<? extends org.hl7.fhir.instance.model.api.IBaseResource>> profiles = new java.util.LinkedHashMap<>(")
+                .append(String.valueOf(profiles.size() * 4 / 3 + 1)).append(");\n");
+        for (final Map.Entry<String, String> profile : profiles.entrySet()) {
+            out.append("\t\tprofiles.put(").append(quote(profile.getKey())).append(", ").append(profile.getValue()).append(".class);\n");
+        }
+        out.append("\t\tPROFILES = java.util.Collections.unmodifiableMap(profiles);\n");
+        out.append("\t}\n\n");
+        out.append("\tprivate ").append(className).append("() {\n\t}\n\n");
+
+        out.append("\tpublic static java.util.Map<String, Class<? extends org.hl7.fhir.instance.model.api.IBaseResource>> getProfiles() {\n");
+        out.append("\t\treturn PROFILES;\n");
+        out.append("\t}\n\n");
+
+        out.append("\t/**\n");
+        out.append("\t * @return a new DSTU3 context that has scanned all generated classes before this method returns, and uses each\n");
+        out.append("\t * class for the resources claiming its profile\n");
+        out.append("\t */\n");
+        out.append("\tpublic static ca.uhn.fhir.context.FhirContext newContext() {\n");
+        out.append("\t\tfinal ca.uhn.fhir.context.FhirContext context = ca.uhn.fhir.context.FhirContext.forDstu3();\n");
+        out.append("\t\tregister(context);\n");
+        out.append("\t\treturn context;\n");
+        out.append("\t}\n\n");
+
+        out.append("\t/**\n");
+        out.append("\t * Makes each generated class the type the context parses resources claiming its profile into, and scans the\n");
+        out.append("\t * classes now rather than on first use.\n");
+        out.append("\t */\n");
+        out.append("\tpublic static void register(final ca.uhn.fhir.context.FhirContext context) {\n");
+        out.append("\t\tfor (final java.util.Map.Entry<String, Class<? extends org.hl7.fhir.instance.model.api.IBaseResource>> profile : PROFILES.entrySet()) {\n");
+        out.append("\t\t\tcontext.setDefaultTypeForProfile(profile.getKey(), profile.getValue());\n");
+        out.append("\t\t\tcontext.getResourceDefinition(profile.getValue());\n");
+        out.append("\t\t}\n");
+        out.append("\t}\n\n");
+
+        out.append("\t/**\n");
+        out.append("\t * As {@link #register(ca.uhn.fhir.context.FhirContext)}, but first loads the classes, and everything HAPI\n");
+        out.append("\t * reflects on while scanning them, on the executor. The context itself scans one class at a time.\n");
+        out.append("\t */\n");
+        out.append("\tpublic static void register(final ca.uhn.fhir.context.FhirContext context, final java.util.concurrent.Executor executor) {\n");
+        out.append("\t\tfinal java.util.List<java.util.concurrent.CompletableFuture<Void>> loads = new java.util.ArrayList<>(PROFILES.size());\n");
+        out.append("\t\tfor (final Class<?> type : PROFILES.values()) {\n");
+        out.append("\t\t\tloads.add(java.util.concurrent.CompletableFuture.runAsync(() -> load(type), executor));\n");
+        out.append("\t\t}\n");
+        out.append("\t\tjava.util.concurrent.CompletableFuture.allOf(loads.toArray(new java.util.concurrent.CompletableFuture<?>[0])).join();\n");
+        out.append("\t\tregister(context);\n");
+        out.append("\t}\n\n");
+
+        out.append("\tprivate static void load(final Class<?> type) {\n");
+        out.append("\t\tfor (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {\n");
+        out.append("\t\t\tc.getAnnotations();\n");
+        out.append("\t\t\tc.getDeclaredClasses();\n");
+        out.append("\t\t\tfor (final java.lang.reflect.Field field : c.getDeclaredFields()) {\n");
+        out.append("\t\t\t\tfield.getAnnotations();\n");
+        out.append("\t\t\t\tfield.getGenericType();\n");
+        out.append("\t\t\t}\n");
+        out.append("\t\t}\n");
+        out.append("\t}\n");
+        out.append("}\n");
+        return out.toString();
+    }
+
+    /**
+     * Writes the registry class into the package directory, unless the file already has the same content.
+     *
+     * @return the file of the registry class
+     */
+    public static File write(final File packageDirectory, final String packageName, final String className,
+                             final Map<String, String> profiles) throws IOException {
+        final OutputSink sink = new DirectoryOutputSink(packageDirectory);
+        sink.write(className + ".java", render(packageName, className, profiles).getBytes(StandardCharsets.UTF_8));
+        sink.flush();
+        return new File(packageDirectory, className + ".java");
+    }
+
+    private static String quote(final String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
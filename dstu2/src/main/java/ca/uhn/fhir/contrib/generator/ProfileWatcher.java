@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Watches the profile directories and brings the generated classes up to date after each burst of changes. Editors
+ * often save a file in several steps, so the watcher waits until the directories have been quiet for the debounce
+ * time before it converts anything.
+ */
+final class ProfileWatcher {
+
+    private final IncrementalGenerator generator;
+    private final Supplier<Collection<File>> profiles;
+    private final Collection<File> inputs;
+    private final long debounceMillis;
+    private final PrintStream out;
+
+    /**
+     * @param profiles lists the profiles to convert, called again after each burst of changes to pick up new files
+     * @param inputs   the files and directories given on the command line; directories are watched recursively,
+     *                 for files their directory is watched
+     */
+    ProfileWatcher(final IncrementalGenerator generator, final Supplier<Collection<File>> profiles, final Collection<File> inputs,
+                   final long debounceMillis, final PrintStream out) {
+        this.generator = generator;
+        this.profiles = profiles;
+        this.inputs = inputs;
+        this.debounceMillis = debounceMillis;
+        this.out = out;
+    }
+
+    void run() throws IOException, InterruptedException {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            for (final File input : inputs) {
+                if (input.isDirectory()) {
+                    registerTree(watcher, input.toPath());
+                } else {
+                    register(watcher, input.getAbsoluteFile().getParentFile().toPath());
+                }
+            }
+            while (!Thread.currentThread().isInterrupted()) {
+                final Set<File> changed = new LinkedHashSet<>();
+                WatchKey key = watcher.take();
+                do {
+                    collect(watcher, key, changed);
+                    key = watcher.poll(debounceMillis, TimeUnit.MILLISECONDS);
+                } while (key != null);
+
+                final long start = System.nanoTime();
+                final Main.Report report = new Main.Report(out);
+                try {
+                    generator.changed(changed);
+                    generator.update(profiles.get(), report);
+                } catch (final IOException | RuntimeException e) {
+                    // Often a file caught half saved; the rest of the save is another change, which tries again
+                    report.stopped(e);
+                }
+                report.print(start);
+            }
+        }
+    }
+
+    private void collect(final WatchService watcher, final WatchKey key, final Set<File> changed) throws IOException {
+        final Path dir = (Path) key.watchable();
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // Events were lost, treat everything in the directory as changed
+                try (Stream<Path> files = Files.list(dir)) {
+                    changed.addAll(files.map(Path::toFile).collect(Collectors.toList()));
+                }
+                continue;
+            }
+            final Path path = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path) && isBelowWatchedDirectory(path)) {
+                registerTree(watcher, path);
+            }
+            changed.add(path.toFile());
+        }
+        key.reset();
+    }
+
+    private boolean isBelowWatchedDirectory(final Path path) {
+        for (final File input : inputs) {
+            if (input.isDirectory() && path.toAbsolutePath().startsWith(input.getAbsoluteFile().toPath())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void registerTree(final WatchService watcher, final Path root) throws IOException {
+        try (Stream<Path> dirs = Files.walk(root)) {
+            for (final Path dir : dirs.filter(Files::isDirectory).collect(Collectors.toList())) {
+                register(watcher, dir);
+            }
+        }
+    }
+
+    private static void register(final WatchService watcher, final Path dir) throws IOException {
+        dir.toAbsolutePath().register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+    }
+}
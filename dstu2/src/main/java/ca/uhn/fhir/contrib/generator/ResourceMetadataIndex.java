@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.hl7.fhir.dstu3.model.Base;
+import org.hl7.fhir.dstu3.model.Enumerations.FHIRAllTypes;
+
+/**
+ * The {@link ResourceParser} result for every dstu3 resource, datatype and backbone element, computed when this
+ * module is built and shipped in its jar, so a fresh JVM gets the fields and accessors of a model class without
+ * reflecting over it.
+ * <p>
+ * The index starts with a table of the strings it uses and the position of every class, which are read the first time
+ * the index is used. The fields of a class are only decoded when the class is asked for. The index records the
+ * version of the HAPI structures it was built from, and is ignored when another version is on the class path.
+ */
+public final class ResourceMetadataIndex {
+
+    static final String RESOURCE = "resource-metadata.idx";
+
+    private static final int VERSION = 1;
+    private static final String STRUCTURES_POM = "META-INF/maven/ca.uhn.hapi.fhir/hapi-fhir-structures-dstu3/pom.properties";
+    private static final String NONE = "";
+    private static final Map<String, Class<?>> PRIMITIVES = new HashMap<>();
+
+    static {
+        for (final Class<?> primitive : new Class<?>[]{boolean.class, byte.class, char.class, short.class, int.class, long.class,
+                float.class, double.class, void.class}) {
+            PRIMITIVES.put(primitive.getName(), primitive);
+        }
+    }
+
+    private final String[] strings;
+    private final Map<String, Integer> offsets;
+    private final byte[] records;
+
+    private ResourceMetadataIndex(final String[] strings, final Map<String, Integer> offsets, final byte[] records) {
+        this.strings = strings;
+        this.offsets = offsets;
+        this.records = records;
+    }
+
+    /**
+     * Writes the index into the class output directory given as the only argument.
+     */
+    public static void main(final String[] args) throws IOException {
+        final File file = new File(args[0], ResourceMetadataIndex.class.getPackage().getName().replace('.', '/') + "/" + RESOURCE);
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Could not create directory: " + file.getParentFile());
+        }
+        Files.write(file.toPath(), write(indexedClasses()));
+    }
+
+    /**
+     * @return the resources and datatypes with a type code, and the backbone elements nested in them
+     */
+    static Set<Class<?>> indexedClasses() {
+        final Set<Class<?>> classes = new TreeSet<>((a, b) -> a.getName().compareTo(b.getName()));
+        for (final FHIRAllTypes type : FHIRAllTypes.values()) {
+            final Class<?> cls = type == FHIRAllTypes.NULL ? null : FhirTypeIndex.get().getType(type.toCode());
+            if (cls != null && Base.class.isAssignableFrom(cls)) {
+                classes.add(cls);
+                for (final Class<?> nested : cls.getDeclaredClasses()) {
+                    if (Base.class.isAssignableFrom(nested)) {
+                        classes.add(nested);
+                    }
+                }
+            }
+        }
+        return classes;
+    }
+
+    static byte[] write(final Set<Class<?>> classes) throws IOException {
+        final Map<String, Integer> strings = new LinkedHashMap<>();
+        final Map<String, Integer> offsets = new LinkedHashMap<>();
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(records);
+        for (final Class<?> cls : classes) {
+            final Map<String, ResourceParser.FieldInfo> fields;
+            try {
+                fields = ResourceParser.reflect(cls);
+            } catch (final IllegalArgumentException e) {
+                // Left to reflection, which reports the field it cannot handle when the class is used
+                continue;
+            }
+            ref(strings, cls.getName());
+            offsets.put(cls.getName(), out.size());
+            out.writeShort(fields.size());
+            for (final ResourceParser.FieldInfo field : fields.values()) {
+                final List<ResourceParser.FieldInfo> chain = new ArrayList<>();
+                for (ResourceParser.FieldInfo i = field; i != null; i = i.getParent()) {
+                    chain.add(0, i);
+                }
+                out.writeByte(chain.size());
+                for (final ResourceParser.FieldInfo i : chain) {
+                    writeString(out, strings, i.getField().getDeclaringClass().getName());
+                    writeString(out, strings, i.getOrigFieldName());
+                    writeString(out, strings, i.getType().getName());
+                    writeString(out, strings, i.getElementType() != null ? i.getElementType().getName() : NONE);
+                }
+                out.writeShort(field.getAccessors().size());
+                for (final ResourceParser.Accessor accessor : field.getAccessors()) {
+                    writeString(out, strings, accessor.getName());
+                    final Class<?>[] parameters = accessor.getMethod().getParameterTypes();
+                    out.writeByte(parameters.length);
+                    for (final Class<?> parameter : parameters) {
+                        writeString(out, strings, parameter.getName());
+                    }
+                }
+            }
+        }
+
+        final ByteArrayOutputStream index = new ByteArrayOutputStream(records.size() + strings.size() * 24);
+        final DataOutputStream header = new DataOutputStream(index);
+        header.writeInt(VERSION);
+        header.writeUTF(structuresVersion(Base.class.getClassLoader()));
+        header.writeInt(strings.size());
+        for (final String string : strings.keySet()) {
+            header.writeUTF(string);
+        }
+        header.writeInt(offsets.size());
+        for (final Map.Entry<String, Integer> offset : offsets.entrySet()) {
+            header.writeShort(ref(strings, offset.getKey()));
+            header.writeInt(offset.getValue());
+        }
+        header.writeInt(records.size());
+        records.writeTo(header);
+        header.flush();
+        return index.toByteArray();
+    }
+
+    private static void writeString(final DataOutputStream out, final Map<String, Integer> strings, final String value) throws IOException {
+        out.writeShort(ref(strings, value));
+    }
+
+    private static int ref(final Map<String, Integer> strings, final String value) throws IOException {
+        Integer ref = strings.get(value);
+        if (ref == null) {
+            ref = strings.size();
+            if (ref > 0xFFFF) {
+                throw new IOException("Too many strings for the index");
+            }
+            strings.put(value, ref);
+        }
+        return ref;
+    }
+
+    /**
+     * @return the index on the class path, or null if there is none or it was built from other HAPI structures
+     */
+    static ResourceMetadataIndex get() {
+        return Holder.INSTANCE;
+    }
+
+    static ResourceMetadataIndex read(final byte[] content, final ClassLoader modelLoader) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        if (in.readInt() != VERSION || !in.readUTF().equals(structuresVersion(modelLoader))) {
+            return null;
+        }
+        final String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+        final int classes = in.readInt();
+        final Map<String, Integer> offsets = new HashMap<>(classes * 2);
+        for (int i = 0; i < classes; i++) {
+            offsets.put(strings[in.readUnsignedShort()], in.readInt());
+        }
+        final byte[] records = new byte[in.readInt()];
+        in.readFully(records);
+        return new ResourceMetadataIndex(strings, offsets, records);
+    }
+
+    /**
+     * @return the fields of the class as {@link ResourceParser} would find them, or null if the class is not indexed
+     */
+    Map<String, ResourceParser.FieldInfo> fields(final Class<?> cls) {
+        final Integer offset = offsets.get(cls.getName());
+        if (offset == null) {
+            return null;
+        }
+        final ClassLoader loader = cls.getClassLoader();
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(records, offset, records.length - offset));
+        try {
+            final int count = in.readUnsignedShort();
+            final Map<String, ResourceParser.FieldInfo> fields = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                // The accessors follow the chain, and every field info is built with them, so read the chain first
+                final int chain = in.readUnsignedByte();
+                final Class<?>[] declaringClasses = new Class<?>[chain];
+                final String[] names = new String[chain];
+                final Class<?>[] types = new Class<?>[chain];
+                final Class<?>[] elementTypes = new Class<?>[chain];
+                for (int j = 0; j < chain; j++) {
+                    declaringClasses[j] = load(string(in), loader);
+                    names[j] = string(in);
+                    types[j] = load(string(in), loader);
+                    final String elementType = string(in);
+                    elementTypes[j] = elementType.equals(NONE) ? null : load(elementType, loader);
+                }
+                final int accessorCount = in.readUnsignedShort();
+                final List<ResourceParser.Accessor> accessors = new ArrayList<>(accessorCount);
+                for (int j = 0; j < accessorCount; j++) {
+                    final String name = string(in);
+                    final String[] parameters = new String[in.readUnsignedByte()];
+                    for (int k = 0; k < parameters.length; k++) {
+                        parameters[k] = string(in);
+                    }
+                    accessors.add(new ResourceParser.Accessor(cls, name, parameters));
+                }
+                final List<ResourceParser.Accessor> shared = Collections.unmodifiableList(accessors);
+                final List<ResourceParser.FieldInfo> infos = new ArrayList<>(chain);
+                for (int j = 0; j < chain; j++) {
+                    infos.add(new ResourceParser.FieldInfo(declaringClasses[j], names[j], types[j], elementTypes[j],
+                            j > 0 ? infos.get(j - 1) : null, shared));
+                }
+                final ResourceParser.FieldInfo field = infos.get(infos.size() - 1);
+                fields.put(field.getLowercaseName(), field);
+            }
+            return Collections.unmodifiableMap(fields);
+        } catch (final IOException | ClassNotFoundException e) {
+            // The index does not match the classes, so let the caller reflect
+            return null;
+        }
+    }
+
+    private String string(final DataInputStream in) throws IOException {
+        return strings[in.readUnsignedShort()];
+    }
+
+    /**
+     * Loads without initializing, as reflection would only have looked at the class.
+     */
+    static Class<?> load(final String name, final ClassLoader loader) throws ClassNotFoundException {
+        final Class<?> primitive = PRIMITIVES.get(name);
+        return primitive != null ? primitive : Class.forName(name, false, loader);
+    }
+
+    private static String structuresVersion(final ClassLoader loader) throws IOException {
+        final Properties properties = new Properties();
+        try (InputStream in = loader.getResourceAsStream(STRUCTURES_POM)) {
+            if (in != null) {
+                properties.load(in);
+            }
+        }
+        return properties.getProperty("version", NONE);
+    }
+
+    private static final class Holder {
+        private static final ResourceMetadataIndex INSTANCE = load();
+
+        private static ResourceMetadataIndex load() {
+            try (InputStream in = ResourceMetadataIndex.class.getResourceAsStream(RESOURCE)) {
+                if (in == null) {
+                    return null;
+                }
+                final ByteArrayOutputStream content = new ByteArrayOutputStream(64 * 1024);
+                final byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    content.write(buffer, 0, n);
+                }
+                return read(content.toByteArray(), Base.class.getClassLoader());
+            } catch (final IOException e) {
+                return null;
+            }
+        }
+    }
+}
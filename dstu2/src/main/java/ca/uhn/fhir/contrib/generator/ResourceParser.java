@@ -17,11 +17,16 @@ package ca.uhn.fhir.contrib.generator;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.hl7.fhir.dstu3.model.Observation;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -29,11 +34,23 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import ca.uhn.fhir.model.api.BaseIdentifiableElement;
 import ca.uhn.fhir.model.api.annotation.Child;
 
+/**
+ * Reflects over HAPI resource and element classes to find their {@link Child} fields and accessors.
+ * <p>
+ * The result for a class never changes, so it is computed once per class and shared by every parser instance in the
+ * JVM. The returned maps and their {@link FieldInfo}s are immutable and safe to use from several threads.
+ * <p>
+ * The dstu3 model classes are looked up in the {@link ResourceMetadataIndex} built with this module, and only other
+ * classes are reflected over. The {@link Field} and {@link Method}s of an indexed class are only looked up if asked
+ * for.
+ */
 public class ResourceParser {
 
     public static final String FIRST_REP = "FirstRep";
     public static final String ELEMENT = "Element";
 
+    private static final ConcurrentMap<Class<?>, Map<String, FieldInfo>> CACHE = new ConcurrentHashMap<>();
+
     public static void main(final String[] args) {
         for (final Map.Entry<String, FieldInfo> i : new ResourceParser().parseResource(Observation.class).entrySet()) {
             System.out.println(i.getKey() + " " + i.getValue());
@@ -42,16 +59,39 @@ public class ResourceParser {
     }
 
     public Map<String, FieldInfo> parseElement(final Class<? extends BaseIdentifiableElement> element) {
-        final Stack<Class<?>> stack = parseStack(element);
-        return parseAnnotatedFields(stack);
+        return parseCached(element);
     }
 
     public Map<String, FieldInfo> parseResource(final Class<? extends IBaseResource> resource) {
-        final Stack<Class<?>> stack = parseStack(resource);
-        return parseAnnotatedFields(stack);
+        return parseCached(resource);
+    }
+
+    /**
+     * @return whether the fields of the class were already parsed by some instance
+     */
+    static boolean isCached(final Class<?> cls) {
+        return CACHE.containsKey(cls);
+    }
+
+    private Map<String, FieldInfo> parseCached(final Class<?> cls) {
+        Map<String, FieldInfo> fieldInfo = CACHE.get(cls);
+        if (fieldInfo == null) {
+            fieldInfo = CACHE.computeIfAbsent(cls, ResourceParser::parse);
+        }
+        return fieldInfo;
+    }
+
+    private static Map<String, FieldInfo> parse(final Class<?> cls) {
+        final ResourceMetadataIndex index = ResourceMetadataIndex.get();
+        final Map<String, FieldInfo> indexed = index != null ? index.fields(cls) : null;
+        return indexed != null ? indexed : reflect(cls);
     }
 
-    private Stack<Class<?>> parseStack(final Class<?> resource) {
+    static Map<String, FieldInfo> reflect(final Class<?> cls) {
+        return parseAnnotatedFields(parseStack(cls), indexAccessors(cls));
+    }
+
+    private static Stack<Class<?>> parseStack(final Class<?> resource) {
         final Stack<Class<?>> hierarchy = new Stack<>();
         Class<?> clazz = resource;
         do {
@@ -61,75 +101,121 @@ public class ResourceParser {
         return hierarchy;
     }
 
-    private Map<String, FieldInfo> parseAnnotatedFields(final Stack<Class<?>> stack) {
+    /**
+     * Groups the public get, set and add methods of the class, including inherited ones, by the lowercase name of the
+     * field they access.
+     */
+    private static Map<String, List<Method>> indexAccessors(final Class<?> cls) {
+        final Map<String, List<Method>> accessors = new HashMap<>();
+        for (final Method i : cls.getMethods()) {
+            if (i.isBridge()) {
+                continue;
+            }
+            String name = i.getName();
+            if (name.startsWith("get") || name.startsWith("set") || name.startsWith("add")) {
+                name = name.substring(3);
+            } else {
+                continue;//Method not a get set or add.
+            }
+            if (name.endsWith(FIRST_REP)) {
+                name = name.substring(0, name.length() - FIRST_REP.length());
+            }
+            if (name.endsWith(ELEMENT)) {
+                name = name.substring(0, name.length() - ELEMENT.length());
+            }
+            final String fieldName = name.toLowerCase();
+            List<Method> methods = accessors.get(fieldName);
+            if (methods == null) {
+                methods = new ArrayList<>();
+                accessors.put(fieldName, methods);
+            }
+            methods.add(i);
+        }
+        return accessors;
+    }
+
+    private static Map<String, FieldInfo> parseAnnotatedFields(final Stack<Class<?>> stack, final Map<String, List<Method>> accessors) {
         final Map<String, FieldInfo> fieldNameToFieldInfo = new HashMap<>();
         while (!stack.isEmpty()) {
             final Class<?> cls = stack.pop();
             for (final Field field : cls.getDeclaredFields()) {
                 final Child child = field.getAnnotation(Child.class);
                 if (child != null) {
-                    final FieldInfo fi = new FieldInfo(field.getName(), field);
-                    final String fieldName = fi.getLowercaseName();
-                    if (fieldNameToFieldInfo.containsKey(fieldName)) {
-                        final FieldInfo fiOld = fieldNameToFieldInfo.get(fieldName);
-                        fi.setParent(fiOld);
-                    }
+                    final String fieldName = field.getName().toLowerCase();
+                    final List<Method> methods = accessors.get(fieldName);
+                    final FieldInfo fi = new FieldInfo(field.getName(), field, fieldNameToFieldInfo.get(fieldName),
+                            methods != null ? methods : Collections.<Method>emptyList(), child);
                     fieldNameToFieldInfo.put(fieldName, fi);
                 }
             }
-
-            for (final Method i : cls.getMethods()) {
-                String name = i.getName();
-                if (name.startsWith("get") || name.startsWith("set") || name.startsWith("add")) {
-                    name = name.substring(3);
-                } else {
-                    continue;//Method not a get set or add.
-                }
-                if (name.endsWith(FIRST_REP)) {
-                    name = name.substring(0, name.length() - FIRST_REP.length());
-                }
-                if (name.endsWith(ELEMENT)) {
-                    name = name.substring(0, name.length() - ELEMENT.length());
-                }
-                if (fieldNameToFieldInfo.containsKey(name.toLowerCase())) {
-                    fieldNameToFieldInfo.get(name.toLowerCase()).addMethod(i);
-
-                }
-
-            }
         }
-        return fieldNameToFieldInfo;
+        return Collections.unmodifiableMap(fieldNameToFieldInfo);
     }
 
-    public class FieldInfo {
+    public static final class FieldInfo {
 
-        private final Child child;
-        private FieldInfo parent;
+        private final FieldInfo parent;
         private final String lowercaseName;
         private final String origFieldName;
-        private final Field field;
-        private final List<Method> methods = new ArrayList<>();
+        private final Class<?> declaringClass;
+        private final Class<?> type;
+        private final Class<?> elementType;
+        private volatile Field field;
+        private final List<Accessor> accessors;
 
-        public FieldInfo(final String nameArg, final Field field) {
+        private FieldInfo(final String nameArg, final Field field, final FieldInfo parent, final List<Method> methods, final Child child) {
 //            if (!nameArg.startsWith("my")) {
 //                throw new IllegalArgumentException("FHIR fields should start with my, was: " + nameArg);
 //            }
-            this.origFieldName = nameArg;//nameArg.substring(2);
-            this.lowercaseName = origFieldName.toLowerCase();
-            this.child = field.getAnnotation(Child.class);
+            this(field.getDeclaringClass(), nameArg, field.getType(), elementType(field), parent, accessors(methods));
             if (!lowercaseName.equalsIgnoreCase(child.name())) {
                 throw new IllegalArgumentException("Name does no equal child lowercaseName " + lowercaseName + " " + child.name());
             }
-
             this.field = field;
         }
 
-        public void setParent(final FieldInfo parent) {
+        /**
+         * @param accessors the accessors of the field, unmodifiable
+         */
+        FieldInfo(final Class<?> declaringClass, final String nameArg, final Class<?> type, final Class<?> elementType, final FieldInfo parent,
+                  final List<Accessor> accessors) {
+            this.origFieldName = nameArg;//nameArg.substring(2);
+            this.lowercaseName = origFieldName.toLowerCase();
+            this.declaringClass = declaringClass;
+            this.type = type;
+            this.elementType = elementType;
             this.parent = parent;
+            this.accessors = accessors;
+        }
+
+        private static List<Accessor> accessors(final List<Method> methods) {
+            final List<Accessor> found = new ArrayList<>(methods.size());
+            for (final Method method : methods) {
+                found.add(new Accessor(method));
+            }
+            return Collections.unmodifiableList(found);
+        }
+
+        private static Class<?> elementType(final Field field) {
+            final Type generic = field.getGenericType();
+            if (generic instanceof ParameterizedType) {
+                final Type argument = ((ParameterizedType) generic).getActualTypeArguments()[0];
+                return argument instanceof Class ? (Class<?>) argument : null;
+            }
+            return null;
         }
 
         public Field getField() {
-            return field;
+            Field found = field;
+            if (found == null) {
+                try {
+                    found = declaringClass.getDeclaredField(origFieldName);
+                } catch (final NoSuchFieldException e) {
+                    throw new IllegalStateException("Indexed field " + origFieldName + " not found on " + declaringClass.getName(), e);
+                }
+                field = found;
+            }
+            return found;
         }
 
         public String getOrigFieldName() {
@@ -144,30 +230,102 @@ public class ResourceParser {
             return lowercaseName;
         }
 
-        public void addMethod(final Method method) {
-            methods.add(method);
-        }
-
         @Override
         public String toString() {
             return "FieldInfo{" +
                     "parent=" + parent +
                     ", lowercaseName='" + lowercaseName + '\'' +
-                    ", field=" + field +
-                    ", methods=" + methods +
+                    ", field=" + declaringClass.getName() + "." + origFieldName +
+                    ", accessors=" + accessors +
                     '}';
         }
 
         public Class<?> getType() {
-            return field.getType();
+            return type;
         }
 
         public Object getGenericType() {
-            return field.getGenericType();
+            return getField().getGenericType();
+        }
+
+        /**
+         * @return the type argument of a generic field, e.g. {@code Identifier} for {@code List<Identifier>}, or null
+         */
+        public Class<?> getElementType() {
+            return elementType;
+        }
+
+        public List<Accessor> getAccessors() {
+            return accessors;
         }
 
         public List<Method> getMethods() {
-            return methods;
+            final List<Method> methods = new ArrayList<>(accessors.size());
+            for (final Accessor accessor : accessors) {
+                methods.add(accessor.getMethod());
+            }
+            return Collections.unmodifiableList(methods);
+        }
+    }
+
+    /**
+     * A public get, set or add method of a field, known by name and parameter types.
+     */
+    public static final class Accessor {
+
+        private final Class<?> owner;
+        private final String name;
+        private final String[] parameterTypes;
+        private volatile Method method;
+
+        private Accessor(final Method method) {
+            this(method.getDeclaringClass(), method.getName(), parameterNames(method));
+            this.method = method;
+        }
+
+        Accessor(final Class<?> owner, final String name, final String[] parameterTypes) {
+            this.owner = owner;
+            this.name = name;
+            this.parameterTypes = parameterTypes;
+        }
+
+        private static String[] parameterNames(final Method method) {
+            final Class<?>[] types = method.getParameterTypes();
+            final String[] names = new String[types.length];
+            for (int i = 0; i < types.length; i++) {
+                names[i] = types[i].getName();
+            }
+            return names;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getParameterCount() {
+            return parameterTypes.length;
+        }
+
+        public Method getMethod() {
+            Method found = method;
+            if (found == null) {
+                try {
+                    final Class<?>[] types = new Class<?>[parameterTypes.length];
+                    for (int i = 0; i < types.length; i++) {
+                        types[i] = ResourceMetadataIndex.load(parameterTypes[i], owner.getClassLoader());
+                    }
+                    found = owner.getMethod(name, types);
+                } catch (final ClassNotFoundException | NoSuchMethodException e) {
+                    throw new IllegalStateException("Indexed method " + name + " not found on " + owner.getName(), e);
+                }
+                method = found;
+            }
+            return found;
+        }
+
+        @Override
+        public String toString() {
+            return name + "(" + String.join(", ", parameterTypes) + ")";
         }
     }
 }
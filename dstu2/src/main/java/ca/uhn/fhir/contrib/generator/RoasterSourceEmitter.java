@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.forge.roaster.Roaster;
+import org.jboss.forge.roaster.model.source.AnnotationSource;
+import org.jboss.forge.roaster.model.source.FieldSource;
+import org.jboss.forge.roaster.model.source.JavaClassSource;
+import org.jboss.forge.roaster.model.source.JavaEnumSource;
+import org.jboss.forge.roaster.model.source.MethodSource;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+
+import ca.uhn.fhir.model.api.annotation.Child;
+import ca.uhn.fhir.model.api.annotation.Description;
+import ca.uhn.fhir.model.api.annotation.Extension;
+import ca.uhn.fhir.model.api.annotation.ResourceDef;
+import ca.uhn.fhir.util.ElementUtil;
+
+/**
+ * Builds the class as a Roaster {@link JavaClassSource} and prints it with the JDT formatter. Slower than the
+ * {@link DirectSourceEmitter}, but gives access to the class as a Roaster AST.
+ */
+public final class RoasterSourceEmitter implements SourceEmitter {
+
+    @Override
+    public void emit(final ClassModel model, final Appendable out) throws IOException {
+        out.append(toJavaClass(model).toString());
+    }
+
+    public JavaClassSource toJavaClass(final ClassModel model) {
+        final JavaClassSource javaClass = Roaster.create(JavaClassSource.class);
+        javaClass.setPackage(model.getPackageName()).setName(model.getName()).extendSuperType(model.getSuperClass());
+        javaClass.addAnnotation(ResourceDef.class)
+                .setStringValue("name", model.getResourceName())
+                .setStringValue("id", model.getResourceId());
+        for (final FieldModel field : model.getFields()) {
+            addField(javaClass, field);
+        }
+        for (final EnumModel enumModel : model.getEnums()) {
+            final JavaEnumSource enumClass = Roaster.create(JavaEnumSource.class);
+            enumClass.setPackage(model.getPackageName()).setName(enumModel.getName());
+            for (final String constant : enumModel.getConstants()) {
+                enumClass.addEnumConstant().setName(constant);
+            }
+            javaClass.addNestedType(enumClass);
+        }
+        for (final MethodModel method : model.getMethods()) {
+            addMethod(javaClass, method);
+        }
+        return javaClass;
+    }
+
+    private void addField(final JavaClassSource javaClass, final FieldModel model) {
+        final FieldSource<JavaClassSource> field = javaClass.addField().setName(model.getName()).setPrivate();
+        final TypeRef type = model.getType();
+        if (type.getArguments().isEmpty()) {
+            field.setType(type.getName());
+        } else {
+            final List<String> arguments = new ArrayList<>();
+            for (final TypeRef argument : type.getArguments()) {
+                arguments.add(argument.getSimpleName());
+            }
+            field.setType(type.getName() + "<" + Joiner.on(',').join(arguments) + ">");
+            for (final TypeRef argument : type.getArguments()) {
+                // Types listed in @Child are imported along with the annotation
+                if (argument.getType() != null && !model.getChildTypes().contains(argument.getType())) {
+                    javaClass.addImport(argument.getType());
+                }
+            }
+        }
+        if (model.getTodo() != null) {
+            field.getJavaDoc().addTagValue("TODO:", model.getTodo());
+            field.getJavaDoc().addTagValue("@deprecated", model.getTodo());
+        }
+        if (model.isExtension()) {
+            field.addAnnotation(Extension.class)
+                    .setLiteralValue("definedLocally", "false")
+                    .setLiteralValue("isModifier", "false")
+                    .setStringValue("url", model.getExtensionUrl());
+        }
+        final AnnotationSource<JavaClassSource> child = field.addAnnotation(Child.class);
+        child.setStringValue("name", model.getChildName());
+        child.setLiteralValue("min", model.getMin() + "");
+        child.setLiteralValue("max", "*".equals(model.getMax()) ? "Child.MAX_UNLIMITED" : Strings.nullToEmpty(model.getMax()));
+        child.setLiteralValue("order", model.isExtension() ? "Child.ORDER_UNKNOWN" : "Child.REPLACE_PARENT");
+        child.setLiteralValue("summary", String.valueOf(model.isSummary()));
+        child.setLiteralValue("modifier", String.valueOf(model.isModifier()));
+        if (!model.isExtension()) {
+            child.setClassArrayValue("type", model.getChildTypes().toArray(new Class[model.getChildTypes().size()]));
+        }
+        final AnnotationSource<JavaClassSource> description = field.addAnnotation(Description.class);
+        if (model.getShortDefinition() != null) {
+            description.setStringValue("shortDefinition", model.getShortDefinition());
+        }
+        if (model.getFormalDefinition() != null) {
+            description.setStringValue("formalDefinition", model.getFormalDefinition());
+        }
+    }
+
+    private void addMethod(final JavaClassSource javaClass, final MethodModel model) {
+        final String field = model.getField() != null ? model.getField().getName() : null;
+        final String getList = "get" + model.getListAccessor() + "()";
+        final String body;
+        switch (model.getKind()) {
+            case IS_EMPTY:
+                final List<String> names = new ArrayList<>();
+                for (final FieldModel f : model.getFields()) {
+                    if (!model.isFieldByField()) {
+                        names.add(f.getName());
+                    } else if (f.getType().isType(List.class)) {
+                        names.add("ElementUtil.isEmpty(" + f.getName() + ")");
+                    } else {
+                        names.add("(" + f.getName() + " == null || " + f.getName() + ".isEmpty())");
+                    }
+                }
+                if (model.isFieldByField()) {
+                    names.add(0, "super.isEmpty()");
+                    body = "return " + Joiner.on(" && ").join(names) + ";";
+                } else {
+                    body = "return super.isEmpty() && ElementUtil.isEmpty(" + Joiner.on(',').join(names) + ");";
+                }
+                break;
+            case GETTER:
+                body = "return " + field + ";";
+                break;
+            case LIST_GETTER:
+                body = "if (" + field + " == null) {\n" +
+                        "   " + field + " = new java.util.ArrayList<>(" + (model.getInitialCapacity() >= 0 ? model.getInitialCapacity() : "") + ");\n" +
+                        "}\n" +
+                        "return " + field + ";";
+                break;
+            case ELEMENT_GETTER:
+                body = "if (" + field + " == null) {\n" +
+                        "     " + field + " = new " + typeName(javaClass, model.getReturnType()) + "();\n" +
+                        "}\n" +
+                        "return " + field + ";";
+                break;
+            case FIRST_REP:
+                body = "if (" + getList + ".isEmpty()) {\n" +
+                        "    return add" + model.getListAccessor() + "();\n" +
+                        "}\n" +
+                        "return " + getList + ".get(0);";
+                break;
+            case ADDER:
+                final String elementType = typeName(javaClass, model.getElementType());
+                body = elementType + " newType = new " + elementType + "();\n" +
+                        "    " + getList + ".add(newType);\n" +
+                        "return newType;";
+                break;
+            case SETTER:
+                body = field + " = theValue;\nreturn this;";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown method kind " + model.getKind());
+        }
+        final String returnType = model.getKind() == MethodModel.Kind.SETTER ? javaClass.getName() : typeName(javaClass, model.getReturnType());
+        final MethodSource<JavaClassSource> method = javaClass.addMethod().setName(model.getName()).setPublic().setReturnType(returnType).setBody(body);
+        if (model.getParameterType() != null) {
+            method.addParameter(typeName(javaClass, model.getParameterType()), "theValue");
+        }
+        if (model.isOverride()) {
+            method.addAnnotation(Override.class);
+        }
+        if (model.isDeprecated()) {
+            method.addAnnotation(Deprecated.class);
+        }
+        if (model.getKind() == MethodModel.Kind.IS_EMPTY) {
+            javaClass.addImport(ElementUtil.class);
+        }
+    }
+
+    /**
+     * @return the type as written in the class: simple names for imported types, qualified names for the rest
+     */
+    private static String typeName(final JavaClassSource javaClass, final TypeRef type) {
+        final String name = type.getType() != null && type.getType().isPrimitive() || javaClass.hasImport(type.getName())
+                ? type.getSimpleName() : type.getName();
+        if (type.getArguments().isEmpty()) {
+            return name;
+        }
+        final List<String> arguments = new ArrayList<>();
+        for (final TypeRef argument : type.getArguments()) {
+            arguments.add(typeName(javaClass, argument));
+        }
+        return name + "<" + Joiner.on(',').join(arguments) + ">";
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.IOException;
+
+/**
+ * Turns the class {@link Generator} made of a profile into Java source.
+ *
+ * @see DirectSourceEmitter
+ * @see RoasterSourceEmitter
+ */
+public interface SourceEmitter {
+
+    /**
+     * Writes the source of the class to {@code out}.
+     */
+    void emit(ClassModel model, Appendable out) throws IOException;
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.dstu3.model.StructureDefinition;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Parses a StructureDefinition straight from a stream, in JSON or XML depending on its first non-whitespace byte.
+ * JSON is read as UTF-8, XML in the encoding its declaration names, UTF-8 if it names none.
+ */
+final class StructureDefinitionReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** How far into the stream the XML declaration is looked for */
+    private static final int DECLARATION_LIMIT = 1024;
+    private static final Pattern ENCODING = Pattern.compile("^<\\?xml\\s[^>]*?encoding\\s*=\\s*[\"']([A-Za-z][A-Za-z0-9._-]*)[\"']");
+
+    private StructureDefinitionReader() {
+    }
+
+    static StructureDefinition read(final InputStream stream, final FhirContextRegistry contexts) throws IOException {
+        final BufferedInputStream in = new BufferedInputStream(stream, BUFFER_SIZE);
+        final boolean byteOrderMark = skipByteOrderMark(in);
+        if (isJson(in)) {
+            return contexts.getJsonParser(FhirVersionEnum.DSTU3).parseResource(StructureDefinition.class, new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+        final Charset charset = byteOrderMark ? StandardCharsets.UTF_8 : declaredEncoding(in);
+        final IParser parser = contexts.getXmlParser(FhirVersionEnum.DSTU3);
+        return parser.parseResource(StructureDefinition.class, new InputStreamReader(in, charset));
+    }
+
+    /**
+     * @return whether the stream started with a UTF-8 byte order mark, which is skipped
+     */
+    private static boolean skipByteOrderMark(final BufferedInputStream in) throws IOException {
+        in.mark(3);
+        if (in.read() == 0xEF && in.read() == 0xBB && in.read() == 0xBF) {
+            return true;
+        }
+        in.reset();
+        return false;
+    }
+
+    /**
+     * Skips leading whitespace, which the XML parser does not accept before a declaration, and peeks at the first
+     * byte after it.
+     */
+    private static boolean isJson(final BufferedInputStream in) throws IOException {
+        int b;
+        do {
+            in.mark(1);
+            b = in.read();
+        } while (b == ' ' || b == '\t' || b == '\r' || b == '\n');
+        in.reset();
+        if (b == '{') {
+            return true;
+        } else if (b == '<') {
+            return false;
+        }
+        throw new IOException("Content is neither JSON nor XML, first non-whitespace character was: " + (b == -1 ? "end of stream" : "'" + (char) b + "'"));
+    }
+
+    /**
+     * Peeks at the XML declaration, which is ASCII in every encoding a FHIR definition would use, leaving the stream
+     * where it was.
+     */
+    private static Charset declaredEncoding(final BufferedInputStream in) throws IOException {
+        in.mark(DECLARATION_LIMIT);
+        final byte[] head = new byte[DECLARATION_LIMIT];
+        int length = 0;
+        int n;
+        while (length < head.length && (n = in.read(head, length, head.length - length)) != -1) {
+            length += n;
+        }
+        in.reset();
+        final Matcher matcher = ENCODING.matcher(new String(head, 0, length, StandardCharsets.ISO_8859_1));
+        if (!matcher.find()) {
+            return StandardCharsets.UTF_8;
+        }
+        try {
+            return Charset.forName(matcher.group(1));
+        } catch (final IllegalCharsetNameException | UnsupportedCharsetException e) {
+            throw new UnsupportedEncodingException("Unsupported encoding in XML declaration: " + matcher.group(1));
+        }
+    }
+}
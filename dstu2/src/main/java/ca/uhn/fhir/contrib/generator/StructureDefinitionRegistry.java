@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.hl7.fhir.dstu3.model.ElementDefinition;
+import org.hl7.fhir.dstu3.model.StructureDefinition;
+
+/**
+ * Memoizes referenced StructureDefinitions by canonical URL, in front of whichever {@link StructureDefinitionProvider}
+ * the profile being converted uses.
+ * <p>
+ * A definition is fetched and parsed once per registry, no matter how many profiles reference it or how many threads
+ * ask for it at the same time. Misses are cached like hits, so a missing definition is not fetched again for every
+ * profile that references it; {@link #invalidate(String)} forgets either once its source has changed. Share one
+ * registry, through one {@link Generator}, for a whole batch run.
+ */
+public class StructureDefinitionRegistry {
+
+    private final ConcurrentMap<String, Load> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Resolves the definition referenced by the element's profile, asking {@code provider} only if the URL has not been
+     * looked up before.
+     */
+    public StructureDefinition getReferenceDefinition(final ElementDefinition element, final StructureDefinitionProvider provider) throws IOException {
+        return entry(element, provider, GenerationListener.NONE).getDefinition();
+    }
+
+    /**
+     * @return the value type of the extension referenced by the element's profile
+     * @throws IllegalArgumentException if the extension definition does not declare a value type
+     */
+    public Class<?> getExtensionType(final ElementDefinition element, final StructureDefinitionProvider provider) throws IOException {
+        return getExtensionType(element, provider, GenerationListener.NONE);
+    }
+
+    /**
+     * Like {@link #getExtensionType(ElementDefinition, StructureDefinitionProvider)}, telling the listener whether the
+     * definition was already known.
+     */
+    Class<?> getExtensionType(final ElementDefinition element, final StructureDefinitionProvider provider, final GenerationListener listener)
+            throws IOException {
+        return entry(element, provider, listener).getExtensionType(element);
+    }
+
+    /**
+     * Starts resolving the definitions the elements reference on the executor, so later lookups find them resolved, or
+     * being resolved, instead of fetching them one after another. URLs already known are not fetched again. A lookup of
+     * a definition the executor has not got to yet waits for it, so no more definitions are fetched at the same time
+     * than the executor runs tasks.
+     * <p>
+     * The first lookup of a prefetched definition is reported as a miss, as if it had fetched it.
+     */
+    void prefetch(final Collection<ElementDefinition> elements, final StructureDefinitionProvider provider, final Executor executor) {
+        for (final ElementDefinition element : elements) {
+            final String url = element.getTypeFirstRep().getProfile();
+            if (url == null || entries.containsKey(url)) {
+                continue;
+            }
+            final Load load = new Load(element, provider, true);
+            if (entries.putIfAbsent(url, load) == null) {
+                executor.execute(load);
+            }
+        }
+    }
+
+    /**
+     * Wraps a provider so its reference definitions are resolved through this registry.
+     */
+    public StructureDefinitionProvider cached(final StructureDefinitionProvider provider) {
+        return new CachedProvider(this, provider);
+    }
+
+    /**
+     * Forgets the definition for one canonical URL, e.g. after its source has changed.
+     */
+    public void invalidate(final String url) {
+        entries.remove(url);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private Entry entry(final ElementDefinition element, final StructureDefinitionProvider provider, final GenerationListener listener)
+            throws IOException {
+        final String url = element.getTypeFirstRep().getProfile();
+        if (url == null) {
+            return load(element, provider);
+        }
+        boolean hit = true;
+        Load task = entries.get(url);
+        if (task == null) {
+            final Load newTask = new Load(element, provider, false);
+            task = entries.putIfAbsent(url, newTask);
+            if (task == null) {
+                hit = false;
+                task = newTask;
+                task.run();
+            }
+        }
+        if (task.claim()) {
+            hit = false;
+        }
+        listener.cacheAccess(provider, GenerationListener.Cache.EXTENSION_DEFINITION, hit);
+        try {
+            return task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while resolving " + url, e);
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException("Could not resolve " + url, e.getCause());
+        }
+    }
+
+    private static Entry load(final ElementDefinition element, final StructureDefinitionProvider provider) {
+        try {
+            return new Entry(provider.provideReferenceDefinition(element), null);
+        } catch (final IOException | RuntimeException e) {
+            return new Entry(null, e);
+        }
+    }
+
+    private static final class Load extends FutureTask<Entry> {
+        private final AtomicBoolean unclaimed;
+
+        private Load(final ElementDefinition element, final StructureDefinitionProvider provider, final boolean prefetched) {
+            super(new Callable<Entry>() {
+                @Override
+                public Entry call() {
+                    return load(element, provider);
+                }
+            });
+            this.unclaimed = new AtomicBoolean(prefetched);
+        }
+
+        /**
+         * @return true for the first lookup of a prefetched definition
+         */
+        boolean claim() {
+            return unclaimed.compareAndSet(true, false);
+        }
+    }
+
+    private static final class Entry {
+        private final StructureDefinition definition;
+        private final Exception error;
+        private Class<?> extensionType;
+        private RuntimeException extensionTypeError;
+
+        private Entry(final StructureDefinition definition, final Exception error) {
+            this.definition = definition;
+            this.error = error;
+        }
+
+        StructureDefinition getDefinition() throws IOException {
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error != null) {
+                throw (RuntimeException) error;
+            }
+            return definition;
+        }
+
+        synchronized Class<?> getExtensionType(final ElementDefinition element) throws IOException {
+            if (extensionType == null && extensionTypeError == null) {
+                try {
+                    extensionType = deriveExtensionType(getDefinition(), element);
+                } catch (final IllegalArgumentException e) {
+                    extensionTypeError = e;
+                }
+            }
+            if (extensionTypeError != null) {
+                throw extensionTypeError;
+            }
+            return extensionType;
+        }
+
+        private static Class<?> deriveExtensionType(final StructureDefinition def, final ElementDefinition element) {
+            for (final ElementDefinition el : def.getDifferential().getElement()) {
+                if (el.getPath().startsWith("Extension.value") && !el.getPath().startsWith("Extension.value[x]")) {
+                    return Generator.getSTU3ClassType(el.getTypeFirstRep());
+                }
+                //Sub extensions
+                else if (el.getPath().startsWith("Extension.extension") && el.getPath().contains("value")) {
+                    return Generator.getSTU3ClassType(el.getTypeFirstRep());
+                }
+            }
+            throw new IllegalArgumentException("Could not find extension type(s) for : " + element);
+        }
+    }
+
+    private static final class CachedProvider implements StructureDefinitionProvider {
+        private final StructureDefinitionRegistry registry;
+        private final StructureDefinitionProvider delegate;
+
+        private CachedProvider(final StructureDefinitionRegistry registry, final StructureDefinitionProvider delegate) {
+            this.registry = registry;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String getOutPackage() {
+            return delegate.getOutPackage();
+        }
+
+        @Override
+        public StructureDefinition getDefinition() throws IOException {
+            return delegate.getDefinition();
+        }
+
+        @Override
+        public StructureDefinition provideReferenceDefinition(final ElementDefinition element) throws IOException {
+            return registry.getReferenceDefinition(element, delegate);
+        }
+    }
+}
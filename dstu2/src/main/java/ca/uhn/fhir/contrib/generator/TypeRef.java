@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A type used in a generated class: a class with optional type arguments, or a class that does not exist yet, such as
+ * a placeholder for an extension type that could not be resolved.
+ */
+public final class TypeRef {
+
+    private final String name;
+    private final Class<?> type;
+    private final List<TypeRef> arguments;
+
+    private TypeRef(final String name, final Class<?> type, final List<TypeRef> arguments) {
+        this.name = name;
+        this.type = type;
+        this.arguments = arguments;
+    }
+
+    public static TypeRef of(final Class<?> type) {
+        return new TypeRef(type.getCanonicalName(), type, Collections.<TypeRef>emptyList());
+    }
+
+    public static TypeRef of(final Class<?> type, final List<? extends Class<?>> arguments) {
+        final List<TypeRef> refs = new ArrayList<>(arguments.size());
+        for (final Class<?> argument : arguments) {
+            refs.add(of(argument));
+        }
+        return new TypeRef(type.getCanonicalName(), type, Collections.unmodifiableList(refs));
+    }
+
+    /**
+     * @param name the canonical name of a type that is not on the classpath, e.g. a generated one
+     */
+    public static TypeRef named(final String name) {
+        return new TypeRef(name, null, Collections.<TypeRef>emptyList());
+    }
+
+    /**
+     * @return the same class with other type arguments
+     */
+    TypeRef withArguments(final List<TypeRef> typeArguments) {
+        return new TypeRef(name, type, Collections.unmodifiableList(new ArrayList<>(typeArguments)));
+    }
+
+    /**
+     * @return the canonical name, without type arguments
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getSimpleName() {
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    public String getPackageName() {
+        final int i = name.lastIndexOf('.');
+        return i == -1 ? "" : name.substring(0, i);
+    }
+
+    /**
+     * @return the class, or null for a type that is not on the classpath
+     */
+    public Class<?> getType() {
+        return type;
+    }
+
+    public List<TypeRef> getArguments() {
+        return arguments;
+    }
+
+    public boolean isType(final Class<?> cls) {
+        return name.equals(cls.getCanonicalName());
+    }
+
+    @Override
+    public String toString() {
+        if (arguments.isEmpty()) {
+            return name;
+        }
+        final StringBuilder b = new StringBuilder(name).append('<');
+        for (int i = 0; i < arguments.size(); i++) {
+            b.append(i > 0 ? "," : "").append(arguments.get(i));
+        }
+        return b.append('>').toString();
+    }
+}
@@ -19,22 +19,35 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 
-import org.apache.commons.io.IOUtils;
 import org.hl7.fhir.dstu3.model.ElementDefinition;
 import org.hl7.fhir.dstu3.model.StructureDefinition;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
-
 public class UrlStructureDefinitionProvider implements StructureDefinitionProvider {
-    private final FhirContext context;
+    private final FhirContextRegistry contexts;
+    private final HttpDefinitionCache cache;
     private final String outPackage;
     private final String structureUrl;
 
     public UrlStructureDefinitionProvider(final String outPackage, final String structureUrl) {
+        this(outPackage, structureUrl, FhirContextRegistry.shared(), null);
+    }
+
+    /**
+     * @param cache keeps downloaded definitions between runs; may be null to always download
+     */
+    public UrlStructureDefinitionProvider(final String outPackage, final String structureUrl, final HttpDefinitionCache cache) {
+        this(outPackage, structureUrl, FhirContextRegistry.shared(), cache);
+    }
+
+    public UrlStructureDefinitionProvider(final String outPackage, final String structureUrl, final FhirContextRegistry contexts) {
+        this(outPackage, structureUrl, contexts, null);
+    }
+
+    public UrlStructureDefinitionProvider(final String outPackage, final String structureUrl, final FhirContextRegistry contexts, final HttpDefinitionCache cache) {
         this.outPackage = outPackage;
         this.structureUrl = structureUrl;
-        context = FhirContext.forDstu2();
+        this.contexts = contexts;
+        this.cache = cache;
     }
 
     @Override
@@ -44,21 +57,25 @@ public class UrlStructureDefinitionProvider implements StructureDefinitionProvid
 
     @Override
     public StructureDefinition getDefinition() throws IOException {
-        final IParser parser = context.newXmlParser();
-        return parser.parseResource(StructureDefinition.class, urlToContentString(new URL(structureUrl)));
+        return parse(new URL(structureUrl));
     }
 
     @Override
     public StructureDefinition provideReferenceDefinition(final ElementDefinition element) throws IOException {
         final String urlStr = element.getTypeFirstRep().getProfile();
-        final URL url = new URL(urlStr);
-        final IParser parser = context.newXmlParser();
-        return parser.parseResource(StructureDefinition.class, urlToContentString(url));
+        return parse(new URL(urlStr));
     }
 
-    private String urlToContentString(final URL url) throws IOException {
-        try (InputStream in = url.openStream()) {
-            return new String(IOUtils.toByteArray(in), "UTF-8");
+    private StructureDefinition parse(final URL url) throws IOException {
+        try (InputStream in = cache != null ? cache.open(url) : url.openStream()) {
+            return StructureDefinitionReader.read(in, contexts);
         }
     }
+
+    @Override
+    public String toString() {
+        return "UrlStructureDefinitionProvider{" +
+                "structureUrl='" + structureUrl + '\'' +
+                '}';
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.Identifier;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Test;
+
+import ca.uhn.fhir.model.api.annotation.Child;
+import ca.uhn.fhir.model.api.annotation.Extension;
+import ca.uhn.fhir.model.api.annotation.ResourceDef;
+
+public class BytecodeEmitterTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+
+    @Test
+    public void generatedClassLoadsAndBehavesLikeTheSource() throws Exception {
+        final FileStructureDefinitionProvider provider = new FileStructureDefinitionProvider("generated", new File(RESOURCES, "simple-patient.json"));
+        final Class<? extends IBaseResource> type = new Generator().generateClass(provider, new GeneratedClassLoader());
+
+        assertEquals("generated.SimplePatient", type.getName());
+        assertSame(Patient.class, type.getSuperclass());
+        assertEquals("Patient", type.getAnnotation(ResourceDef.class).name());
+        assertEquals("http://hl7.org/fhir/StructureDefinition/patient-nationality",
+                type.getDeclaredField("nationality").getAnnotation(Extension.class).url());
+        assertEquals(Child.MAX_UNLIMITED, type.getDeclaredField("myIdentifier").getAnnotation(Child.class).max());
+
+        final Patient patient = (Patient) type.newInstance();
+        assertTrue(patient.isEmpty());
+        final Identifier first = (Identifier) type.getMethod("getIdentifierFirstRep").invoke(patient);
+        assertEquals(Collections.singletonList(first), type.getMethod("getIdentifier").invoke(patient));
+
+        // Called through the superclass, so this goes through the bridge method
+        final List<Identifier> identifiers = Collections.singletonList(new Identifier().setValue("1234"));
+        assertSame(patient, patient.setIdentifier(identifiers));
+        assertSame(identifiers, type.getMethod("getIdentifier").invoke(patient));
+        assertFalse(patient.isEmpty());
+    }
+
+    @Test
+    public void leanIsEmptyChecksEveryField() throws Exception {
+        final FileStructureDefinitionProvider provider = new FileStructureDefinitionProvider("generated", new File(RESOURCES, "simple-patient.json"));
+        final Generator generator = new Generator(new StructureDefinitionRegistry(), GeneratorOptions.defaults().withLeanAccessors(true));
+        final Class<? extends IBaseResource> type = generator.generateClass(provider, new GeneratedClassLoader());
+
+        final Patient patient = (Patient) type.newInstance();
+        assertTrue(patient.isEmpty());
+        type.getMethod("getGeneralPractitioner").invoke(patient);
+        assertTrue(patient.isEmpty());
+        final Field nationality = type.getDeclaredField("nationality");
+        nationality.setAccessible(true);
+        nationality.set(patient, new CodeableConcept().setText("NL"));
+        assertFalse(patient.isEmpty());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.ElementDefinition;
+import org.junit.Test;
+
+public class ElementTreeTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+
+    @Test
+    public void placesNestedSlicesUnderTheirSlice() {
+        final List<ElementDefinition> elements = Arrays.asList(
+                element("Patient", "Patient", null),
+                sliced(element("Patient.identifier", "Patient.identifier", null)),
+                element("Patient.identifier:a", "Patient.identifier", "a"),
+                element("Patient.identifier:a.system", "Patient.identifier.system", null),
+                sliced(element("Patient.identifier:a.extension", "Patient.identifier.extension", null)),
+                element("Patient.identifier:a.extension:x", "Patient.identifier.extension", "x"),
+                element("Patient.identifier:b", "Patient.identifier", "b"),
+                element("Patient.identifier:b/c", "Patient.identifier", "b/c"),
+                // No id: placed in the slice opened last for the path
+                element(null, "Patient.identifier.value", null),
+                element("Patient.contact.relationship:role", "Patient.contact.relationship", "role"));
+        final ElementTree.Node root = ElementTree.build("Patient", elements).getRoot();
+
+        final ElementTree.Node identifier = child(root, "identifier");
+        assertTrue(identifier.isSliced());
+        assertEquals(Arrays.asList("a", "b"), sliceNames(identifier));
+        final ElementTree.Node a = identifier.getSlices().iterator().next();
+        assertEquals(Arrays.asList("system", "extension"), childNames(a));
+        final ElementTree.Node nested = child(a, "extension");
+        assertEquals("Patient.identifier.extension", nested.getPath());
+        assertEquals(Arrays.asList("x"), sliceNames(nested));
+        final ElementTree.Node b = identifier.getSlices().toArray(new ElementTree.Node[0])[1];
+        assertEquals(Arrays.asList("c"), sliceNames(b));
+        assertEquals(Arrays.asList("value"), childNames(b.getSlices().iterator().next()));
+
+        final ElementTree.Node contact = child(root, "contact");
+        assertNull(contact.getElement());
+        assertTrue(child(contact, "relationship").isSliced());
+    }
+
+    @Test
+    public void convertsProfileWithSlicingBelowTheFirstLevel() {
+        final GenerationResult result = new Generator().generateResult(
+                new FileStructureDefinitionProvider("generated", new File(RESOURCES, "nl-core-patient.json")));
+        assertTrue(String.valueOf(result.getError()), result.isSuccess());
+        final List<String> enums = new ArrayList<>();
+        for (final EnumModel enumModel : result.getModel().getEnums()) {
+            enums.add(enumModel.getName() + enumModel.getConstants());
+        }
+        assertEquals(Arrays.asList("PatientIdentificationNumberType[BSN]", "ContactRelationshipType[RELATIONSHIP, ROLE]"), enums);
+    }
+
+    private static ElementDefinition element(final String id, final String path, final String sliceName) {
+        final ElementDefinition element = new ElementDefinition().setPath(path).setSliceName(sliceName);
+        element.setId(id);
+        return element;
+    }
+
+    private static ElementDefinition sliced(final ElementDefinition element) {
+        element.getSlicing().addDiscriminator().setType(ElementDefinition.DiscriminatorType.VALUE).setPath("url");
+        return element;
+    }
+
+    private static ElementTree.Node child(final ElementTree.Node node, final String name) {
+        for (final ElementTree.Node child : node.getChildren()) {
+            if (child.getName().equals(name)) {
+                return child;
+            }
+        }
+        throw new AssertionError("No child " + name + " in " + childNames(node));
+    }
+
+    private static List<String> childNames(final ElementTree.Node node) {
+        final List<String> names = new ArrayList<>();
+        for (final ElementTree.Node child : node.getChildren()) {
+            names.add(child.getName());
+        }
+        return names;
+    }
+
+    private static List<String> sliceNames(final ElementTree.Node node) {
+        final List<String> names = new ArrayList<>();
+        for (final ElementTree.Node slice : node.getSlices()) {
+            names.add(slice.getSliceName());
+        }
+        return names;
+    }
+}
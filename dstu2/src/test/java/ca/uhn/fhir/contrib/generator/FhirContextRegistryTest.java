@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.hl7.fhir.dstu3.model.StructureDefinition;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.LenientErrorHandler;
+import ca.uhn.fhir.parser.StrictErrorHandler;
+
+public class FhirContextRegistryTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void buildsOneContextPerVersion() {
+        final FhirContextRegistry registry = new FhirContextRegistry();
+        final FhirContext context = registry.getContext(FhirVersionEnum.DSTU3);
+        assertSame(context, registry.getContext(FhirVersionEnum.DSTU3));
+        assertEquals(FhirVersionEnum.DSTU3, context.getVersion().getVersion());
+        assertNotSame(context, new FhirContextRegistry().getContext(FhirVersionEnum.DSTU3));
+        assertSame(FhirContextRegistry.shared().getContext(FhirVersionEnum.DSTU3), FhirContextRegistry.shared().getContext(FhirVersionEnum.DSTU3));
+    }
+
+    @Test
+    public void providersParseWithTheRegistrysContext() throws IOException {
+        final File profile = writeProfileWithUnknownElement();
+        final FhirContextRegistry registry = new FhirContextRegistry();
+        final FileStructureDefinitionProvider provider = new FileStructureDefinitionProvider("generated", profile, registry);
+        final FileStructureDefinitionProvider other = new FileStructureDefinitionProvider("generated", profile, registry);
+        assertEquals("simple-patient", provider.getDefinition().getIdElement().getIdPart());
+
+        // Both providers see a setting made on the registry's context
+        registry.getContext(FhirVersionEnum.DSTU3).setParserErrorHandler(new StrictErrorHandler());
+        assertStrict(provider);
+        assertStrict(other);
+    }
+
+    @Test
+    public void providersShareTheJvmWideContextByDefault() throws IOException {
+        final File profile = writeProfileWithUnknownElement();
+        final FhirContext shared = FhirContextRegistry.shared().getContext(FhirVersionEnum.DSTU3);
+        shared.setParserErrorHandler(new StrictErrorHandler());
+        try {
+            assertStrict(new FileStructureDefinitionProvider("generated", profile));
+        } finally {
+            shared.setParserErrorHandler(new LenientErrorHandler());
+        }
+    }
+
+    @Test
+    public void createsAParserPerCall() {
+        final FhirContextRegistry registry = new FhirContextRegistry();
+        assertNotSame(registry.getJsonParser(FhirVersionEnum.DSTU3), registry.getJsonParser(FhirVersionEnum.DSTU3));
+        assertNotSame(registry.getXmlParser(FhirVersionEnum.DSTU3), registry.getXmlParser(FhirVersionEnum.DSTU3));
+
+        // A setting on one parser is not seen by the next caller
+        final StructureDefinition definition = new StructureDefinition().setUrl("http://example.org/fhir/StructureDefinition/a");
+        registry.getJsonParser(FhirVersionEnum.DSTU3).setPrettyPrint(true);
+        assertTrue(!registry.getJsonParser(FhirVersionEnum.DSTU3).encodeResourceToString(definition).contains("\n"));
+    }
+
+    private static void assertStrict(final StructureDefinitionProvider provider) throws IOException {
+        try {
+            provider.getDefinition();
+            fail("Expected the strict error handler to reject the unknown element");
+        } catch (final DataFormatException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * @return simple-patient with an element the model does not know, which only a strict parser rejects
+     */
+    private File writeProfileWithUnknownElement() throws IOException {
+        final String json = new String(Files.readAllBytes(new File(RESOURCES, "simple-patient.json").toPath()), StandardCharsets.UTF_8);
+        final File file = folder.newFile("simple-patient.json");
+        Files.write(file.toPath(), json.replaceFirst("\\{", "{\"unknownElement\": true,").getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
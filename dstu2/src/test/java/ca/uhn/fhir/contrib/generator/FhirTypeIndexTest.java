@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.dstu3.model.BooleanType;
+import org.hl7.fhir.dstu3.model.CodeType;
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.DateTimeType;
+import org.hl7.fhir.dstu3.model.Extension;
+import org.hl7.fhir.dstu3.model.IntegerType;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.UriType;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+
+public class FhirTypeIndexTest {
+
+    @Test
+    public void mapsPrimitiveCodesToTheirTypes() {
+        final FhirTypeIndex index = FhirTypeIndex.get();
+        assertEquals(StringType.class, index.getType("string"));
+        assertEquals(CodeType.class, index.getType("code"));
+        assertEquals(BooleanType.class, index.getType("boolean"));
+        assertEquals(DateTimeType.class, index.getType("dateTime"));
+        assertEquals(IntegerType.class, index.getType("integer"));
+        assertEquals(UriType.class, index.getType("uri"));
+    }
+
+    @Test
+    public void resolvesComplexTypesAndResources() {
+        final FhirTypeIndex index = FhirTypeIndex.get();
+        assertEquals(CodeableConcept.class, index.getType("CodeableConcept"));
+        assertEquals(Reference.class, index.getType("Reference"));
+        assertEquals(Extension.class, index.getType("Extension"));
+        assertEquals(Patient.class, index.getType("Patient"));
+        assertEquals(Observation.class, index.getType("Observation"));
+        assertNull(index.getType(null));
+    }
+
+    @Test
+    public void resolvesUnknownCodesLikeTheReflectiveLookup() {
+        for (final String code : Arrays.asList("patient", "narrative", "Enumerations", "primitive", "NoSuchType", "")) {
+            assertEquals(code, reflectiveLookup(code), FhirTypeIndex.get().getType(code));
+        }
+    }
+
+    @Test
+    public void probesAnUnknownCodeOnce() {
+        final AtomicInteger probes = new AtomicInteger();
+        final FhirTypeIndex index = new FhirTypeIndex(FhirContextRegistry.shared().getContext(FhirVersionEnum.DSTU3), code -> {
+            probes.incrementAndGet();
+            return FhirTypeIndex.probe(code);
+        });
+        final int building = probes.get();
+
+        assertNull(index.getType("NoSuchType"));
+        assertNull(index.getType("NoSuchType"));
+        assertEquals(Patient.class, index.getType("patient"));
+        assertEquals(Patient.class, index.getType("patient"));
+        assertEquals(StringType.class, index.getType("string"));
+        assertEquals(building + 2, probes.get());
+    }
+
+    /**
+     * The lookup the generator made before the index existed, with null for its ClassNotFoundException.
+     */
+    private static Class<?> reflectiveLookup(final String code) {
+        try {
+            try {
+                return Class.forName("org.hl7.fhir.dstu3.model." + StringUtils.capitalize(code));
+            } catch (final ClassNotFoundException ee) {
+                return Class.forName("org.hl7.fhir.dstu3.model." + code);
+            }
+        } catch (final ClassNotFoundException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.hl7.fhir.dstu3.model.ElementDefinition;
+import org.hl7.fhir.dstu3.model.StructureDefinition;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+
+public class FileStructureDefinitionProviderTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+    private static final String NATIONALITY = "http://hl7.org/fhir/StructureDefinition/patient-nationality";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private FileStructureDefinitionProvider provider;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("profiles");
+        final File profile = new File(directory, "simple-patient.json");
+        Files.copy(new File(RESOURCES, "simple-patient.json").toPath(), profile.toPath());
+        provider = new FileStructureDefinitionProvider("generated", profile);
+    }
+
+    @Test
+    public void readsReferencedDefinitionsFromXmlOrJson() throws IOException {
+        final File xml = new File(directory, "patient-nationality.xml");
+        final File json = new File(directory, "patient-nationality.json");
+        assertEquals(xml, provider.getReferenceFile(NATIONALITY));
+        try {
+            provider.provideReferenceDefinition(extension(NATIONALITY));
+            fail("Expected the definition to be missing");
+        } catch (final FileNotFoundException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith(xml.getAbsolutePath()));
+        }
+
+        // Only the JSON file exists, so it is read instead
+        final StructureDefinition nationality;
+        try (InputStream in = new FileInputStream(new File(RESOURCES, "patient-nationality.xml"))) {
+            nationality = StructureDefinitionReader.read(in, FhirContextRegistry.shared());
+        }
+        nationality.setDescription("From JSON");
+        Files.write(json.toPath(), FhirContextRegistry.shared().getJsonParser(FhirVersionEnum.DSTU3).encodeResourceToString(nationality)
+                .getBytes(StandardCharsets.UTF_8));
+        assertEquals(json, provider.getReferenceFile(NATIONALITY));
+        assertEquals("From JSON", provider.provideReferenceDefinition(extension(NATIONALITY)).getDescription());
+
+        // With both, XML wins
+        Files.copy(new File(RESOURCES, "patient-nationality.xml").toPath(), xml.toPath());
+        assertEquals(xml, provider.getReferenceFile(NATIONALITY));
+        assertEquals(NATIONALITY, provider.provideReferenceDefinition(extension(NATIONALITY)).getUrl());
+        assertTrue(!"From JSON".equals(provider.provideReferenceDefinition(extension(NATIONALITY)).getDescription()));
+    }
+
+    private static ElementDefinition extension(final String profile) {
+        final ElementDefinition element = new ElementDefinition();
+        element.setPath("Patient.extension");
+        element.addType().setCode("Extension").setProfile(profile);
+        return element;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import ca.uhn.fhir.contrib.generator.GenerationListener.Cache;
+import ca.uhn.fhir.contrib.generator.GenerationListener.Phase;
+
+public class GenerationMetricsTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+
+    @Test
+    public void reportsPhasesAndCacheAccessesPerProfile() throws Exception {
+        final File file = new File(RESOURCES, "simple-patient.json");
+        final GenerationMetrics metrics = new GenerationMetrics();
+        final Generator generator = new Generator(new StructureDefinitionRegistry(), GeneratorOptions.defaults().withListener(metrics));
+        assertTrue(generator.generateResult(new FileStructureDefinitionProvider("generated", file)).isSuccess());
+        assertTrue(generator.generateResult(new FileStructureDefinitionProvider("generated", file)).isSuccess());
+
+        final List<GenerationMetrics.Profile> profiles = metrics.getProfiles();
+        assertEquals(1, profiles.size());
+        final GenerationMetrics.Profile profile = profiles.get(0);
+        assertEquals(file.getPath(), profile.getName());
+        assertTrue(profile.isSuccess());
+        assertEquals(1, profile.getMisses(Cache.EXTENSION_DEFINITION));
+        assertEquals(1, profile.getHits(Cache.EXTENSION_DEFINITION));
+        assertEquals(1, profile.getExtensions());
+        assertTrue(profile.getPhases().keySet().containsAll(
+                EnumSet.of(Phase.PARSE, Phase.REFLECT, Phase.ELEMENT_WALK, Phase.EXTENSION_RESOLUTION, Phase.RENDER)));
+        assertTrue(profile.getTotalNanos() >= profile.getPhaseNanos(Phase.RENDER));
+
+        final StringBuilder json = new StringBuilder();
+        metrics.writeJson(json);
+        assertTrue(json.toString(), json.toString().contains("\"EXTENSION_DEFINITION\": {\"hits\": 1, \"misses\": 1}"));
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.dstu3.model.ElementDefinition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpDefinitionCacheTest {
+
+    private static final String ETAG = "\"nationality-1\"";
+    private static final int SLOW = -1;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final AtomicInteger downloads = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    /** What the flaky URL answers: a status, or {@link #SLOW} for a body sent too late */
+    private final AtomicInteger flakyStatus = new AtomicInteger(200);
+    private ExecutorService serverThreads;
+    private byte[] nationality;
+
+    @Before
+    public void startServer() throws IOException {
+        nationality = Files.readAllBytes(new File("src/test/resources/patient-nationality.xml").toPath());
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/fhir/StructureDefinition/patient-nationality", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    downloads.incrementAndGet();
+                    exchange.getResponseHeaders().add("ETag", ETAG);
+                    exchange.sendResponseHeaders(200, nationality.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(nationality);
+                    }
+                }
+                exchange.close();
+            }
+        });
+        server.createContext("/fhir/StructureDefinition/flaky", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final int status = flakyStatus.get();
+                if (status == SLOW) {
+                    try {
+                        Thread.sleep(2000);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (status == 200 || status == SLOW) {
+                    downloads.incrementAndGet();
+                    exchange.sendResponseHeaders(200, nationality.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(nationality);
+                    }
+                } else {
+                    exchange.sendResponseHeaders(status, -1);
+                }
+                exchange.close();
+            }
+        });
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Test
+    public void revalidatesInsteadOfDownloadingAgain() throws IOException {
+        final HttpDefinitionCache cache = new HttpDefinitionCache(folder.getRoot());
+        final URL url = url();
+
+        assertEquals(nationality.length, read(cache, url).length);
+        assertEquals(nationality.length, read(cache, url).length);
+        assertEquals(nationality.length, read(new HttpDefinitionCache(folder.getRoot()), url).length);
+
+        assertEquals(1, downloads.get());
+        assertEquals(2, notModified.get());
+    }
+
+    @Test
+    public void offlineServesOnlyFromCache() throws IOException {
+        read(new HttpDefinitionCache(folder.getRoot()), url());
+
+        final HttpDefinitionCache offline = new HttpDefinitionCache(folder.getRoot(), true);
+        assertEquals(nationality.length, read(offline, url()).length);
+        assertEquals(1, downloads.get());
+        assertEquals(0, notModified.get());
+
+        try {
+            read(offline, new URL("http://localhost:" + server.getAddress().getPort() + "/fhir/StructureDefinition/other"));
+        } catch (final FileNotFoundException e) {
+            return;
+        }
+        throw new AssertionError("Expected an uncached URL to fail in offline mode");
+    }
+
+    @Test
+    public void serverErrorsAndSlowAnswersFallBackToCache() throws IOException {
+        final HttpDefinitionCache cache = new HttpDefinitionCache(folder.getRoot(), false, 1000, 200);
+        final URL flaky = new URL("http://localhost:" + server.getAddress().getPort() + "/fhir/StructureDefinition/flaky");
+        assertEquals(nationality.length, read(cache, flaky).length);
+
+        for (final int status : new int[]{500, 503, 429, SLOW}) {
+            flakyStatus.set(status);
+            assertEquals(String.valueOf(status), nationality.length, read(cache, flaky).length);
+        }
+        flakyStatus.set(404);
+        try {
+            read(cache, flaky);
+            fail("Expected a 404 to fail even though the URL is cached");
+        } catch (final IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("404"));
+        }
+    }
+
+    @Test
+    public void serverErrorsAndSlowAnswersFailWithoutCache() throws IOException {
+        final URL flaky = new URL("http://localhost:" + server.getAddress().getPort() + "/fhir/StructureDefinition/flaky");
+        for (final int status : new int[]{503, 429}) {
+            flakyStatus.set(status);
+            try {
+                read(new HttpDefinitionCache(folder.getRoot(), false, 1000, 200), flaky);
+                fail("Expected HTTP " + status + " to fail");
+            } catch (final IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(String.valueOf(status)));
+            }
+        }
+        flakyStatus.set(SLOW);
+        final long start = System.nanoTime();
+        try {
+            read(new HttpDefinitionCache(folder.getRoot(), false, 1000, 200), flaky);
+            fail("Expected the read to time out");
+        } catch (final SocketTimeoutException e) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+        }
+    }
+
+    @Test
+    public void providerResolvesReferencesThroughCache() throws IOException {
+        final HttpDefinitionCache cache = new HttpDefinitionCache(folder.getRoot());
+        final UrlStructureDefinitionProvider provider = new UrlStructureDefinitionProvider("generated", url().toString(), cache);
+        final ElementDefinition element = new ElementDefinition();
+        element.addType().setCode("Extension").setProfile(url().toString());
+
+        assertEquals("patient-nationality", provider.provideReferenceDefinition(element).getIdElement().getIdPart());
+        assertEquals("patient-nationality", provider.getDefinition().getIdElement().getIdPart());
+        assertEquals(1, downloads.get());
+    }
+
+    private URL url() throws IOException {
+        return new URL("http://localhost:" + server.getAddress().getPort() + "/fhir/StructureDefinition/patient-nationality");
+    }
+
+    private static byte[] read(final HttpDefinitionCache cache, final URL url) throws IOException {
+        try (InputStream in = cache.open(url)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IncrementalGeneratorTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService executor;
+    private File profiles;
+    private File output;
+    private File state;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(2);
+        profiles = folder.newFolder("profiles");
+        output = folder.newFolder("out");
+        state = new File(folder.getRoot(), "state/state.tsv");
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void recoversOnceAMissingExtensionAppears() throws Exception {
+        final File profile = copy("simple-patient.json");
+        final IncrementalGenerator generator = new IncrementalGenerator("generated", output, state, executor);
+
+        List<GenerationResult> results = generator.update(Collections.singletonList(profile));
+        assertEquals(1, results.size());
+        assertFalse(results.get(0).isSuccess());
+        assertTrue(String.valueOf(results.get(0).getError()), results.get(0).getError() instanceof FileNotFoundException);
+        assertTrue(results.get(0).getError().getMessage().contains("patient-nationality.xml"));
+
+        final File extension = copy("patient-nationality.xml");
+        assertEquals(Collections.singleton(profile.getAbsoluteFile()), generator.changed(Collections.singleton(extension)));
+        results = generator.update(Collections.singletonList(profile));
+        assertEquals(1, results.size());
+        assertTrue(String.valueOf(results.get(0).getError()), results.get(0).isSuccess());
+        assertTrue(new File(output, "generated/SimplePatient.java").isFile());
+    }
+
+    @Test
+    public void convertsOnlyProfilesThatAreNewOrOutOfDate() throws Exception {
+        final File profile = copy("simple-patient.json");
+        final File extension = copy("patient-nationality.xml");
+        final List<File> inputs = Collections.singletonList(profile);
+        final IncrementalGenerator generator = new IncrementalGenerator("generated", output, state, executor);
+
+        assertEquals(1, generator.update(inputs).size());
+        assertEquals(0, generator.update(inputs).size());
+        // The state is saved, so a new process finds nothing to do either
+        assertEquals(0, new IncrementalGenerator("generated", output, state, executor).update(inputs).size());
+
+        // A change to a referenced extension makes the profile stale
+        Files.write(extension.toPath(), "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        assertEquals(Collections.singleton(profile.getAbsoluteFile()), generator.changed(Collections.singleton(extension)));
+        assertEquals(1, generator.update(inputs).size());
+
+        // So does a deleted class
+        final File generated = new File(output, "generated/SimplePatient.java");
+        assertTrue(generated.delete());
+        assertEquals(1, generator.update(inputs).size());
+        assertTrue(generated.isFile());
+    }
+
+    @Test
+    public void deletesTheClassesOfProfilesNoLongerGiven() throws Exception {
+        final File simple = copy("simple-patient.json");
+        copy("patient-nationality.xml");
+        final File other = new File(profiles, "other-patient.json");
+        final String source = new String(Files.readAllBytes(simple.toPath()), StandardCharsets.UTF_8);
+        Files.write(other.toPath(), source.replace("simple-patient", "other-patient").replace("Simple Patient", "Other Patient")
+                .getBytes(StandardCharsets.UTF_8));
+        final IncrementalGenerator generator = new IncrementalGenerator("generated", output, state, executor,
+                GeneratorOptions.defaults().withRegistryClass("Profiles"));
+        final File registry = new File(output, "generated/Profiles.java");
+
+        assertEquals(2, generator.update(Arrays.asList(simple, other)).size());
+        assertTrue(new File(output, "generated/OtherPatient.java").isFile());
+        assertTrue(new String(Files.readAllBytes(registry.toPath()), StandardCharsets.UTF_8).contains("other-patient"));
+
+        assertEquals(0, generator.update(Collections.singletonList(simple)).size());
+        assertFalse(new File(output, "generated/OtherPatient.java").exists());
+        assertTrue(new File(output, "generated/SimplePatient.java").isFile());
+        assertFalse(new String(Files.readAllBytes(registry.toPath()), StandardCharsets.UTF_8).contains("other-patient"));
+    }
+
+    @Test
+    public void keepsTheClassOfAProfileThatFailsToConvertAgain() throws Exception {
+        final File profile = copy("simple-patient.json");
+        final File extension = copy("patient-nationality.xml");
+        final List<File> inputs = Collections.singletonList(profile);
+        final IncrementalGenerator generator = new IncrementalGenerator("generated", output, state, executor);
+        assertTrue(generator.update(inputs).get(0).isSuccess());
+
+        assertTrue(extension.delete());
+        generator.changed(Collections.singleton(extension));
+        assertFalse(generator.update(inputs).get(0).isSuccess());
+        // Not recorded, so it is tried again, and converts once the extension is back
+        copy("patient-nationality.xml");
+        generator.changed(Collections.singleton(extension));
+        assertTrue(generator.update(inputs).get(0).isSuccess());
+    }
+
+    private File copy(final String name) throws IOException {
+        final File file = new File(profiles, name);
+        Files.copy(new File(RESOURCES, name).toPath(), file.toPath());
+        return file;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IncrementalStateTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void dependentProfileIsStaleWhenExtensionChanges() throws IOException {
+        final File stateFile = new File(folder.getRoot(), "state.tsv");
+        final File profile = write("patient.xml", "profile");
+        final File extension = write("patient-nationality.xml", "extension");
+        final File output = write("Patient.java", "class Patient {}");
+
+        final IncrementalState state = IncrementalState.load(stateFile, "generated");
+        state.record(profile, Collections.singleton(output), Collections.singleton(extension));
+        state.save();
+
+        assertTrue(IncrementalState.load(stateFile, "generated").isUpToDate(profile));
+        assertFalse(IncrementalState.load(stateFile, "other.package").isUpToDate(profile));
+        assertEquals(Collections.singleton(profile.getAbsoluteFile()),
+                IncrementalState.load(stateFile, "generated").getInputsDependingOn(extension));
+
+        write("patient-nationality.xml", "changed extension");
+        assertFalse(IncrementalState.load(stateFile, "generated").isUpToDate(profile));
+    }
+
+    private File write(final String name, final String content) throws IOException {
+        final File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
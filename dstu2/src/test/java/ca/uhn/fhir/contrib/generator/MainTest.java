@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MainTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void skipsExtensionDefinitionsNextToTheProfiles() throws Exception {
+        final File profiles = folder.newFolder("profiles");
+        copy("simple-patient.json", profiles);
+        copy("patient-nationality.xml", profiles);
+        final File output = folder.newFolder("out");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final boolean success = Main.run(options("-o", output.getPath(), profiles.getPath()), new PrintStream(out, true, "UTF-8"));
+        assertTrue(out.toString("UTF-8"), success);
+        assertTrue(out.toString("UTF-8"), out.toString("UTF-8").contains("Converted 1 profiles in"));
+        assertArrayEquals(new String[]{"SimplePatient.java"}, new File(output, "generated").list());
+    }
+
+    @Test
+    public void parsesOptions() {
+        final Main.Options options = Main.Options.parse(new String[]{"--package", "org.example", "-o", "out.jar", "-i", "*.json",
+                "-t", "3", "-e", "roaster", "-l", "-r", "Profiles", "-s", "state.tsv", "-w", "--debounce", "500", "a", "b.json"});
+        assertEquals("org.example", options.packageName);
+        assertEquals(new File("out.jar"), options.outputDirectory);
+        assertEquals(1, options.includes.size());
+        assertEquals(3, options.threads);
+        assertTrue(options.emitter instanceof RoasterSourceEmitter);
+        assertTrue(options.lean);
+        assertEquals("Profiles", options.registryClass);
+        assertEquals(new File("state.tsv"), options.stateFile);
+        assertTrue(options.watch);
+        assertEquals(500, options.debounceMillis);
+        assertEquals(Arrays.asList(new File("a"), new File("b.json")), options.inputs);
+
+        final Main.Options defaults = Main.Options.parse(new String[]{"-p", "org.example", "a"});
+        assertEquals(new File("."), defaults.outputDirectory);
+        assertEquals(Runtime.getRuntime().availableProcessors(), defaults.threads);
+        assertTrue(defaults.emitter instanceof DirectSourceEmitter);
+        assertFalse(defaults.lean);
+        assertNull(defaults.registryClass);
+        assertFalse(defaults.watch);
+        assertEquals(150, defaults.debounceMillis);
+
+        assertTrue(Main.Options.parse(new String[]{"-h"}).help);
+    }
+
+    @Test
+    public void rejectsInvalidOptions() {
+        final String[][] invalid = {
+                {"a"},
+                {"-p", "org.example"},
+                {"-p", "org.example", "--unknown", "a"},
+                {"-p", "org.example", "a", "-o"},
+                {"-p", "org.example", "-t", "0", "a"},
+                {"-p", "org.example", "--debounce", "soon", "a"},
+                {"-p", "org.example", "-e", "javapoet", "a"}};
+        for (final String[] args : invalid) {
+            try {
+                Main.Options.parse(args);
+                fail("Expected " + Arrays.toString(args) + " to be rejected");
+            } catch (final IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void findsProfilesMatchingTheIncludes() throws Exception {
+        final File profiles = folder.newFolder("profiles");
+        final File xml = touch(new File(profiles, "a.xml"));
+        final File json = touch(new File(profiles, "nested/b.json"));
+        final File ndjson = touch(new File(profiles, "c.ndjson"));
+        touch(new File(profiles, "notes.txt"));
+        final File given = touch(folder.newFile("given.txt"));
+
+        assertEquals(new LinkedHashSet<>(Arrays.asList(xml, ndjson, json, given)),
+                new LinkedHashSet<>(options(profiles.getPath(), given.getPath()).findProfiles()));
+        assertEquals(Collections.singletonList(json), new ArrayList<>(options("-i", "*.json", profiles.getPath()).findProfiles()));
+    }
+
+    @Test
+    public void convertsOnlyWhatChangedSinceTheLastRun() throws Exception {
+        final File profiles = folder.newFolder("profiles");
+        copy("simple-patient.json", profiles);
+        copy("patient-nationality.xml", profiles);
+        final File output = folder.newFolder("out");
+
+        for (final String expected : new String[]{"Converted 1 profiles in", "Converted 0 profiles in"}) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(Main.run(options("-o", output.getPath(), profiles.getPath()), new PrintStream(out, true, "UTF-8")));
+            assertTrue(out.toString("UTF-8"), out.toString("UTF-8").contains(expected));
+        }
+    }
+
+    @Test
+    public void reportsProfilesThatCouldNotBeConverted() throws Exception {
+        final File profiles = folder.newFolder("profiles");
+        copy("simple-patient.json", profiles);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(Main.run(options("-o", folder.newFolder("out").getPath(), profiles.getPath()), new PrintStream(out, true, "UTF-8")));
+        final String report = out.toString("UTF-8");
+        assertTrue(report, report.contains("Could not convert") && report.contains("patient-nationality.xml"));
+        assertTrue(report, report.contains("Converted 0 profiles, 1 failed in"));
+    }
+
+    private static File touch(final File file) throws IOException {
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Could not create " + file.getParentFile());
+        }
+        Files.write(file.toPath(), new byte[0]);
+        return file;
+    }
+
+    private Main.Options options(final String... args) {
+        final String[] all = new String[args.length + 4];
+        all[0] = "-p";
+        all[1] = "generated";
+        all[2] = "-s";
+        all[3] = new File(folder.getRoot(), "state/state.tsv").getPath();
+        System.arraycopy(args, 0, all, 4, args.length);
+        return Main.Options.parse(all);
+    }
+
+    private static File copy(final String name, final File directory) throws IOException {
+        final File file = new File(directory, name);
+        Files.copy(new File(RESOURCES, name).toPath(), file.toPath());
+        return file;
+    }
+}
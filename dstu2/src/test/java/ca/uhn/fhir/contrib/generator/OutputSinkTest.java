@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutputSinkTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void directorySinkOnlyWritesChangedFiles() throws Exception {
+        final OutputSink sink = new DirectoryOutputSink(folder.getRoot());
+        assertTrue(sink.write("a/A.java", bytes("class A {}")));
+        assertTrue(sink.exists("a/A.java"));
+        assertFalse(new File(folder.getRoot(), "a/A.java").exists());
+        sink.flush();
+
+        final File file = new File(folder.getRoot(), "a/A.java");
+        assertTrue(file.setLastModified(1000));
+        assertFalse(sink.write("a/A.java", bytes("class A {}")));
+        sink.flush();
+        assertEquals(1000, file.lastModified());
+
+        sink.delete("a/A.java");
+        assertFalse(sink.exists("a/A.java"));
+        sink.flush();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void directorySinkWritesThroughRightAway() throws Exception {
+        final OutputSink sink = new DirectoryOutputSink(folder.getRoot());
+        final File file = new File(folder.getRoot(), "a/A.java");
+        assertTrue(sink.writeThrough("a/A.java", bytes("class A {}")));
+        assertArrayEquals(bytes("class A {}"), Files.readAllBytes(file.toPath()));
+
+        assertTrue(file.setLastModified(1000));
+        assertFalse(sink.writeThrough("a/A.java", bytes("class A {}")));
+        sink.flush();
+        assertEquals(1000, file.lastModified());
+    }
+
+    @Test
+    public void archiveSinkStagesWritesThroughUntilFlushed() throws Exception {
+        final File jar = new File(folder.getRoot(), "out/sources.jar");
+        OutputSink sink = new ArchiveOutputSink(jar);
+        assertTrue(sink.write("a/A.java", bytes("class A {}")));
+        assertTrue(sink.writeThrough("a/B.java", bytes("class B {}")));
+        assertTrue(sink.exists("a/B.java"));
+        assertEquals(1, new File(jar.getParentFile(), "sources.jar.staged").list().length);
+        sink.flush();
+        assertEquals(Arrays.asList("a/A.java", "a/B.java"), entries(jar));
+        assertFalse(new File(jar.getParentFile(), "sources.jar.staged").exists());
+
+        // A new sink compares with the entries on disk, and copies those it does not replace
+        sink = new ArchiveOutputSink(jar);
+        assertFalse(sink.writeThrough("a/B.java", bytes("class B {}")));
+        assertTrue(sink.writeThrough("a/C.java", bytes("class C {}")));
+        sink.delete("a/A.java");
+        assertFalse(sink.exists("a/A.java"));
+        sink.flush();
+        assertEquals(Arrays.asList("a/B.java", "a/C.java"), entries(jar));
+        try (ZipFile zip = new ZipFile(jar)) {
+            assertEquals("class B {}", new Scanner(zip.getInputStream(zip.getEntry("a/B.java")), "UTF-8").useDelimiter("\\A").next());
+        }
+    }
+
+    @Test
+    public void archiveSinkKeepsEntriesAcrossIncrementalRuns() throws Exception {
+        final File jar = new File(folder.getRoot(), "out/generated-sources.jar");
+        final File state = new File(folder.getRoot(), "state.tsv");
+        final List<File> inputs = new ArrayList<>(Collections.singletonList(new File(RESOURCES, "simple-patient.json")));
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals(1, update(jar, state, executor, inputs));
+            final byte[] first = Files.readAllBytes(jar.toPath());
+            assertEquals(Collections.singletonList("generated/SimplePatient.java"), entries(jar));
+
+            // A new process finds the class in the archive, so nothing is converted or written
+            assertTrue(jar.setLastModified(1000));
+            assertEquals(0, update(jar, state, executor, inputs));
+            assertEquals(1000, jar.lastModified());
+
+            // The same outputs give the same archive
+            assertTrue(state.delete());
+            assertEquals(1, update(jar, state, executor, inputs));
+            assertArrayEquals(first, Files.readAllBytes(jar.toPath()));
+
+            inputs.clear();
+            assertEquals(0, update(jar, state, executor, inputs));
+            assertEquals(Collections.emptyList(), entries(jar));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static int update(final File jar, final File state, final ExecutorService executor, final List<File> inputs) throws Exception {
+        return new IncrementalGenerator("generated", OutputSink.forPath(jar), state, executor, GeneratorOptions.defaults()).update(inputs).size();
+    }
+
+    private static List<String> entries(final File jar) throws Exception {
+        final List<String> names = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(jar)) {
+            for (final ZipEntry entry : Collections.list(zip.entries())) {
+                names.add(entry.getName());
+            }
+        }
+        return names;
+    }
+
+    private static byte[] bytes(final String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.StructureDefinition;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.IParser;
+
+public class PackageIndexTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+    private static final List<String> URLS = Arrays.asList(
+            "http://example.org/fhir/StructureDefinition/simple-patient",
+            "http://fhir.nl/fhir/StructureDefinition/nl-core-preferred-pharmacy",
+            "http://hl7.org/fhir/StructureDefinition/patient-nationality");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void indexesDirectoryAndSkipsBrokenFiles() throws Exception {
+        final File directory = folder.newFolder("definitions");
+        for (final String name : new String[]{"simple-patient.json", "patient-nationality.xml"}) {
+            Files.copy(new File(RESOURCES, name).toPath(), new File(directory, name).toPath());
+        }
+        writeBrokenFiles(directory);
+        final File cache = folder.newFolder("cache");
+
+        for (int i = 0; i < 2; i++) {
+            // The second open reads the index written by the first
+            final PackageIndex index = PackageIndex.open(directory, cache);
+            assertEquals(new HashSet<>(Arrays.asList(URLS.get(0), URLS.get(2))), index.getUrls());
+            assertEquals("Patient", index.getType(URLS.get(0)));
+            assertEquals(URLS.get(2), index.getDefinition(URLS.get(2)).getUrl());
+        }
+    }
+
+    @Test
+    public void indexesPackageAndSkipsBrokenFiles() throws Exception {
+        final File content = folder.newFolder("content");
+        Files.copy(new File(RESOURCES, "simple-patient.json").toPath(), new File(content, "simple-patient.json").toPath());
+        Files.write(new File(content, "package.json").toPath(), "{\"name\": \"example\"}".getBytes(StandardCharsets.UTF_8));
+        writeBrokenFiles(content);
+        final File tgz = writePackage(content, folder.newFolder("packages"));
+
+        final PackageIndex index = PackageIndex.open(tgz, folder.newFolder("cache"));
+        assertEquals(Collections.singleton(URLS.get(0)), index.getUrls());
+        assertEquals("Patient", index.getType(URLS.get(0)));
+        assertEquals(URLS.get(0), index.getDefinition(URLS.get(0)).getUrl());
+    }
+
+    @Test
+    public void leavesAReadOnlyPackageCacheAlone() throws Exception {
+        final File content = folder.newFolder("content");
+        Files.copy(new File(RESOURCES, "simple-patient.json").toPath(), new File(content, "simple-patient.json").toPath());
+        final File packages = folder.newFolder("packages");
+        final File tgz = writePackage(content, packages);
+        assertTrue(packages.setWritable(false));
+        try {
+            final File cache = folder.newFolder("cache");
+            assertEquals(Collections.singleton(URLS.get(0)), PackageIndex.open(tgz, cache).getUrls());
+            assertEquals(Collections.singletonList(tgz.getName()), Arrays.asList(packages.list()));
+            assertEquals(1, cache.list().length);
+        } finally {
+            packages.setWritable(true);
+        }
+    }
+
+    @Test
+    public void rejectsFilesThatAreNeitherPackagesNorBundles() throws Exception {
+        final File notGzipped = folder.newFile("broken.tgz");
+        Files.write(notGzipped.toPath(), "not gzip".getBytes(StandardCharsets.UTF_8));
+        final File cache = folder.newFolder("cache");
+        for (final File file : Arrays.asList(new File(RESOURCES, "simple-patient.json"), new File(RESOURCES, "patient-nationality.xml"), notGzipped)) {
+            try {
+                PackageIndex.open(file, cache);
+                fail("Expected " + file + " to be rejected");
+            } catch (final IOException e) {
+                assertFalse(String.valueOf(e), e instanceof ZipException);
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Not a ") && e.getMessage().endsWith(file.getAbsolutePath()));
+            }
+        }
+    }
+
+    @Test
+    public void indexesBundleAndNdjsonInPlace() throws Exception {
+        final List<StructureDefinition> definitions = definitions();
+        final IParser parser = FhirContextRegistry.shared().getContext(FhirVersionEnum.DSTU3).newJsonParser();
+        final StringBuilder ndjson = new StringBuilder();
+        for (final StructureDefinition definition : definitions) {
+            ndjson.append(parser.setPrettyPrint(false).encodeResourceToString(definition)).append('\n');
+        }
+        final File ndjsonFile = folder.newFile("definitions.ndjson");
+        Files.write(ndjsonFile.toPath(), ndjson.toString().getBytes(StandardCharsets.UTF_8));
+        final File bundleFile = writeBundle(folder.newFile("definitions.json"));
+
+        for (final File file : Arrays.asList(bundleFile, ndjsonFile)) {
+            assertTrue(PackageIndex.isBundle(file));
+            final PackageIndex index = PackageIndex.open(file, folder.newFolder(), FhirContextRegistry.shared());
+            assertEquals(new HashSet<>(URLS), index.getUrls());
+            assertEquals("Patient", index.getType(URLS.get(0)));
+            assertEquals("Extension", index.getType(URLS.get(2)));
+            for (final String url : URLS) {
+                assertEquals(url, index.getDefinition(url).getUrl());
+            }
+        }
+        assertFalse(PackageIndex.isBundle(new File(RESOURCES, "simple-patient.json")));
+    }
+
+    @Test
+    public void convertsTheResourceProfilesOfABundle() throws Exception {
+        final File bundle = writeBundle(folder.newFile("ig.json"));
+        final File output = folder.newFolder("out");
+        final File state = new File(folder.getRoot(), "state/state.tsv");
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final List<GenerationResult> results = new ArrayList<>();
+            new IncrementalGenerator("generated", new DirectoryOutputSink(output), state, executor,
+                    GeneratorOptions.defaults().withRegistryClass("Profiles")).update(Collections.singletonList(bundle), results::add);
+            assertEquals(1, results.size());
+            assertTrue(String.valueOf(results.get(0).getError()), results.get(0).isSuccess());
+            assertTrue(new File(output, "generated/SimplePatient.java").isFile());
+            final String registry = new String(Files.readAllBytes(new File(output, "generated/Profiles.java").toPath()), StandardCharsets.UTF_8);
+            assertTrue(registry.contains(URLS.get(0)));
+
+            // The bundle is recorded as a whole, so a new process finds nothing to do
+            assertEquals(0, new IncrementalGenerator("generated", output, state, executor).update(Collections.singletonList(bundle)).size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void writesTheClassesOfABundleAsTheyAreConverted() throws Exception {
+        final List<StructureDefinition> definitions = definitions();
+        final StructureDefinition other = definitions.get(0).copy();
+        other.setUrl("http://example.org/fhir/StructureDefinition/other-patient").setName("Other Patient").setId("other-patient");
+        definitions.add(other);
+        final File bundle = writeBundle(folder.newFile("ig.json"), definitions);
+        final File output = folder.newFolder("out");
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final List<String> written = new ArrayList<>();
+            new IncrementalGenerator("generated", new DirectoryOutputSink(output), new File(folder.getRoot(), "state/state.tsv"), executor,
+                    GeneratorOptions.defaults()).update(Collections.singletonList(bundle), result -> {
+                assertTrue(String.valueOf(result.getError()), result.isSuccess());
+                // Each class is on disk by the time its result is handed on, before the update is done
+                final File file = new File(output, "generated/" + result.getClassName() + ".java");
+                assertTrue(file + " not written yet", file.isFile());
+                written.add(result.getClassName());
+            });
+            assertEquals(new HashSet<>(Arrays.asList("SimplePatient", "OtherPatient")), new HashSet<>(written));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Writes JSON files a scan cannot read to the end: cut short, empty and not JSON at all.
+     */
+    private static void writeBrokenFiles(final File directory) throws IOException {
+        Files.write(new File(directory, "truncated.json").toPath(),
+                "{\"resourceType\": \"StructureDefinition\", \"url\": \"http://example.org/truncated\", \"differential\": {".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(directory, "empty.json").toPath(), new byte[0]);
+        Files.write(new File(directory, "garbage.json").toPath(), "{\"resourceType\" = ]".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return a package, in the directory, holding the files of {@code content} below {@code package/}
+     */
+    private static File writePackage(final File content, final File directory) throws IOException {
+        final File tgz = new File(directory, "example.tgz");
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(tgz))) {
+            for (final File file : content.listFiles()) {
+                writeTarEntry(out, "package/" + file.getName(), Files.readAllBytes(file.toPath()));
+            }
+            out.write(new byte[1024]);
+        }
+        return tgz;
+    }
+
+    private static void writeTarEntry(final OutputStream out, final String name, final byte[] content) throws IOException {
+        final byte[] header = new byte[512];
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        final byte[] size = String.format("%011o", content.length).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(size, 0, header, 124, size.length);
+        header[156] = '0';
+        final byte[] magic = "ustar".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(magic, 0, header, 257, magic.length);
+        out.write(header);
+        out.write(content);
+        out.write(new byte[(512 - content.length % 512) % 512]);
+    }
+
+    private static List<StructureDefinition> definitions() throws IOException {
+        final List<StructureDefinition> definitions = new ArrayList<>();
+        for (final String name : new String[]{"simple-patient.json", "nl-core-preferred-pharmacy.xml", "patient-nationality.xml"}) {
+            try (InputStream in = new FileInputStream(new File(RESOURCES, name))) {
+                definitions.add(StructureDefinitionReader.read(in, FhirContextRegistry.shared()));
+            }
+        }
+        return definitions;
+    }
+
+    private static File writeBundle(final File file) throws IOException {
+        return writeBundle(file, definitions());
+    }
+
+    private static File writeBundle(final File file, final List<StructureDefinition> definitions) throws IOException {
+        final Bundle bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+        for (final StructureDefinition definition : definitions) {
+            bundle.addEntry().setFullUrl(definition.getUrl()).setResource(definition);
+        }
+        final String json = FhirContextRegistry.shared().getContext(FhirVersionEnum.DSTU3).newJsonParser().setPrettyPrint(true).encodeResourceToString(bundle);
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
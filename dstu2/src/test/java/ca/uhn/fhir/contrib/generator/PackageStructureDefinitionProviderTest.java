@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.ElementDefinition;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PackageStructureDefinitionProviderTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+    private static final String SIMPLE_PATIENT = "http://example.org/fhir/StructureDefinition/simple-patient";
+    private static final String NATIONALITY = "http://hl7.org/fhir/StructureDefinition/patient-nationality";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PackageIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        final File definitions = folder.newFolder("definitions");
+        for (final String name : new String[]{"simple-patient.json", "patient-nationality.xml"}) {
+            Files.copy(new File(RESOURCES, name).toPath(), new File(definitions, name).toPath());
+        }
+        index = PackageIndex.open(definitions, folder.newFolder("cache"));
+    }
+
+    @Test
+    public void providesTheProfileAndItsReferencesFromTheIndex() throws IOException {
+        final PackageStructureDefinitionProvider provider = new PackageStructureDefinitionProvider("generated", index, SIMPLE_PATIENT);
+        assertEquals("generated", provider.getOutPackage());
+        assertEquals(SIMPLE_PATIENT, provider.getDefinition().getUrl());
+        assertEquals(NATIONALITY, provider.provideReferenceDefinition(extension(NATIONALITY)).getUrl());
+        try {
+            provider.provideReferenceDefinition(extension("http://example.org/fhir/StructureDefinition/missing"));
+            fail("Expected the definition to be missing");
+        } catch (final FileNotFoundException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("http://example.org/fhir/StructureDefinition/missing"));
+        }
+    }
+
+    @Test
+    public void convertsAProfileFromTheIndex() throws IOException {
+        final StructureDefinitionRegistry registry = new StructureDefinitionRegistry();
+        final PackageStructureDefinitionProvider provider = new PackageStructureDefinitionProvider("generated", index, SIMPLE_PATIENT);
+        final GenerationResult result = new Generator(registry, GeneratorOptions.defaults()).generateResult(provider);
+        assertTrue(String.valueOf(result.getError()), result.isSuccess());
+        assertEquals("SimplePatient", result.getClassName());
+        assertEquals(CodeableConcept.class, registry.getExtensionType(extension(NATIONALITY), provider));
+    }
+
+    private static ElementDefinition extension(final String profile) {
+        final ElementDefinition element = new ElementDefinition();
+        element.setPath("Patient.extension");
+        element.addType().setCode("Extension").setProfile(profile);
+        return element;
+    }
+}
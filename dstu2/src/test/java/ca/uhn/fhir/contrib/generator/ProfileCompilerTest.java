@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProfileCompilerTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void compiledClassesAreReusedAcrossInstances() throws Exception {
+        final FileStructureDefinitionProvider provider = new FileStructureDefinitionProvider("generated", new File(RESOURCES, "simple-patient.json"));
+        final ProfileCompiler compiler = new ProfileCompiler(new CompiledClassCache(folder.getRoot()));
+
+        final List<Class<? extends IBaseResource>> types = compiler.loadAll(Arrays.asList(provider, provider));
+        assertEquals("generated.SimplePatient", types.get(0).getName());
+        assertSame(Patient.class, types.get(0).getSuperclass());
+        assertSame(types.get(0), types.get(1));
+        assertSame(types.get(0), compiler.load(provider));
+
+        final File[] jars = folder.getRoot().listFiles();
+        assertEquals(1, jars.length);
+        final long written = jars[0].lastModified();
+
+        // A new instance, as after a restart, loads the stored classes without compiling them again
+        final Class<? extends IBaseResource> reloaded = new ProfileCompiler(new CompiledClassCache(folder.getRoot())).load(provider);
+        assertEquals("generated.SimplePatient", reloaded.getName());
+        assertNotSame(types.get(0), reloaded);
+        assertEquals(written, jars[0].lastModified());
+        assertEquals(1, folder.getRoot().listFiles().length);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class ProfileRegistrySourceTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+    private static final String PROFILE = "http://example.org/fhir/StructureDefinition/simple-patient";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void registryRegistersEveryGeneratedClassByProfile() throws Exception {
+        final File sources = folder.newFolder("src");
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final IncrementalGenerator generator = new IncrementalGenerator("generated", sources, folder.newFile("state.tsv"), executor,
+                    GeneratorOptions.defaults().withRegistryClass("GeneratedProfiles"));
+            assertEquals(1, generator.update(Collections.singletonList(new File(RESOURCES, "simple-patient.json"))).size());
+            // Nothing to convert, the registry still lists the profile converted before
+            assertEquals(0, generator.update(Collections.singletonList(new File(RESOURCES, "simple-patient.json"))).size());
+
+            final File classes = folder.newFolder("classes");
+            final List<String> arguments = new ArrayList<>(Arrays.asList("-d", classes.getPath(), "-classpath", classpath(), "-proc:none"));
+            for (final File source : new File(sources, "generated").listFiles()) {
+                arguments.add(source.getPath());
+            }
+            final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            assertEquals(0, compiler.run(null, null, null, arguments.toArray(new String[0])));
+
+            try (URLClassLoader loader = new URLClassLoader(new URL[]{classes.toURI().toURL()}, getClass().getClassLoader())) {
+                final Class<?> registry = loader.loadClass("generated.GeneratedProfiles");
+                final Class<?> simplePatient = loader.loadClass("generated.SimplePatient");
+                final Map<?, ?> profiles = (Map<?, ?>) registry.getMethod("getProfiles").invoke(null);
+                assertEquals(Collections.singletonMap(PROFILE, simplePatient), profiles);
+
+                final FhirContext context = (FhirContext) registry.getMethod("newContext").invoke(null);
+                assertEquals(simplePatient, context.getDefaultTypeForProfile(PROFILE));
+                final String json = "{\"resourceType\": \"Patient\", \"meta\": {\"profile\": [\"" + PROFILE + "\"]}}";
+                assertEquals(simplePatient, context.newJsonParser().parseResource(json).getClass());
+
+                final FhirContext existing = FhirContext.forDstu3();
+                registry.getMethod("register", FhirContext.class, java.util.concurrent.Executor.class).invoke(null, existing, executor);
+                assertEquals(simplePatient, existing.getDefaultTypeForProfile(PROFILE));
+                assertTrue(existing.newJsonParser().parseResource(json) instanceof Patient);
+                assertEquals(simplePatient, existing.newJsonParser().parseResource(json).getClass());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String classpath() throws Exception {
+        final List<String> entries = new ArrayList<>();
+        for (final Class<?> type : Arrays.asList(FhirContext.class, IBaseResource.class, Patient.class)) {
+            entries.add(new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath());
+        }
+        entries.add(System.getProperty("java.class.path"));
+        return String.join(File.pathSeparator, entries);
+    }
+}
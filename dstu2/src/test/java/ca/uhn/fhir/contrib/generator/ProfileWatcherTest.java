@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProfileWatcherTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+    private static final long DEBOUNCE_MILLIS = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File profiles;
+    private File profile;
+    private File output;
+    private ExecutorService executor;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private Thread thread;
+
+    @Before
+    public void setUp() throws IOException {
+        profiles = folder.newFolder("profiles");
+        profile = new File(profiles, "simple-patient.json");
+        Files.copy(new File(RESOURCES, "simple-patient.json").toPath(), profile.toPath());
+        Files.copy(new File(RESOURCES, "patient-nationality.xml").toPath(), new File(profiles, "patient-nationality.xml").toPath());
+        output = folder.newFolder("out");
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(10_000);
+        }
+        executor.shutdown();
+        assertNull(String.valueOf(failure.get()), failure.get());
+    }
+
+    @Test
+    public void convertsOnceAfterABurstOfChanges() throws Exception {
+        final Collection<File> inputs = Collections.singletonList(profile);
+        watch(() -> inputs);
+
+        // Save the profile several times, faster than the debounce time
+        for (int i = 0; i < 5; i++) {
+            Files.write(profile.toPath(), "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            Thread.sleep(DEBOUNCE_MILLIS / 5);
+        }
+
+        awaitLines("Converted", 1);
+        Thread.sleep(3 * DEBOUNCE_MILLIS);
+        assertEquals(text(), 1, lines("Converted"));
+        assertTrue(text(), text().contains("Converted 1 profiles in"));
+        assertTrue(new File(output, "generated/SimplePatient.java").isFile());
+    }
+
+    @Test
+    public void keepsWatchingAfterAnUpdateFails() throws Exception {
+        final AtomicBoolean failed = new AtomicBoolean();
+        watch(() -> {
+            if (failed.compareAndSet(false, true)) {
+                throw new UncheckedIOException(new IOException("Could not list the profiles"));
+            }
+            return Collections.singletonList(profile);
+        });
+
+        Files.write(profile.toPath(), "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        awaitLines("Converted", 1);
+        assertTrue(text(), text().contains("Update stopped: java.io.UncheckedIOException: java.io.IOException: Could not list the profiles"));
+        assertTrue(text(), text().contains("Converted 0 profiles, 1 failed in"));
+
+        Files.write(profile.toPath(), "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        awaitLines("Converted", 2);
+        assertTrue(text(), text().contains("Converted 1 profiles in"));
+        assertTrue(new File(output, "generated/SimplePatient.java").isFile());
+    }
+
+    /**
+     * Starts watching the profile directory, and gives the watcher time to register it.
+     */
+    private void watch(final Supplier<Collection<File>> inputs) throws Exception {
+        final IncrementalGenerator generator = new IncrementalGenerator("generated", output,
+                new File(folder.getRoot(), "state/state.tsv"), executor);
+        final ProfileWatcher watcher = new ProfileWatcher(generator, inputs, Collections.singletonList(profiles),
+                DEBOUNCE_MILLIS, new PrintStream(out, true, "UTF-8"));
+        thread = new Thread(() -> {
+            try {
+                watcher.run();
+            } catch (final InterruptedException e) {
+                // Stopped by the test
+            } catch (final Exception e) {
+                failure.set(e);
+            }
+        });
+        thread.start();
+        Thread.sleep(DEBOUNCE_MILLIS);
+    }
+
+    private void awaitLines(final String prefix, final int count) throws Exception {
+        final long deadline = System.currentTimeMillis() + 30_000;
+        while (lines(prefix) < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(text(), count, lines(prefix));
+    }
+
+    private int lines(final String prefix) throws Exception {
+        int count = 0;
+        for (final String line : text().split("\n")) {
+            if (line.startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private String text() throws IOException {
+        return out.toString("UTF-8");
+    }
+}
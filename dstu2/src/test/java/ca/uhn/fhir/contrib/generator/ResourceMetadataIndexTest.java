@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.dstu3.model.Base;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.junit.Test;
+
+public class ResourceMetadataIndexTest {
+
+    @Test
+    public void indexMatchesReflection() throws Exception {
+        final ResourceMetadataIndex index = ResourceMetadataIndex.get();
+        assertNotNull("The build writes the index into the classes", index);
+        for (final Class<?> cls : ResourceMetadataIndex.indexedClasses()) {
+            final Map<String, ResourceParser.FieldInfo> fields = index.fields(cls);
+            final Map<String, ResourceParser.FieldInfo> reflected;
+            try {
+                reflected = ResourceParser.reflect(cls);
+            } catch (final IllegalArgumentException e) {
+                assertNull(cls.getName(), fields);
+                continue;
+            }
+            assertNotNull(cls.getName(), fields);
+            assertEquals(cls.getName(), reflected.keySet(), fields.keySet());
+            for (final ResourceParser.FieldInfo field : reflected.values()) {
+                final ResourceParser.FieldInfo found = fields.get(field.getLowercaseName());
+                for (ResourceParser.FieldInfo i = field, j = found; i != null || j != null; i = i.getParent(), j = j.getParent()) {
+                    assertNotNull(cls.getName() + "." + field.getOrigFieldName(), i);
+                    assertNotNull(cls.getName() + "." + field.getOrigFieldName(), j);
+                    assertEquals(i.getField(), j.getField());
+                    assertEquals(i.getType(), j.getType());
+                    assertEquals(i.getElementType(), j.getElementType());
+                }
+                assertEquals(methods(field), methods(found));
+            }
+        }
+        assertNotNull(index.fields(Observation.ObservationComponentComponent.class));
+    }
+
+    @Test
+    public void indexOfOtherStructuresIsIgnored() throws Exception {
+        final byte[] content = ResourceMetadataIndex.write(Collections.<Class<?>>singleton(Observation.class));
+        assertNotNull(ResourceMetadataIndex.read(content, Base.class.getClassLoader()).fields(Observation.class));
+        try (URLClassLoader other = new URLClassLoader(new URL[0], null)) {
+            assertNull(ResourceMetadataIndex.read(content, other));
+        }
+    }
+
+    private static List<Method> methods(final ResourceParser.FieldInfo field) {
+        final List<Method> methods = new ArrayList<>(field.getMethods());
+        Collections.sort(methods, (a, b) -> a.toGenericString().compareTo(b.toGenericString()));
+        return methods;
+    }
+}
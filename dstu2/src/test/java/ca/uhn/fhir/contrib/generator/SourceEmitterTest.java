@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.forge.roaster.Roaster;
+import org.jboss.forge.roaster.model.source.FieldSource;
+import org.jboss.forge.roaster.model.source.JavaClassSource;
+import org.jboss.forge.roaster.model.source.MethodSource;
+import org.junit.Test;
+
+public class SourceEmitterTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+
+    @Test
+    public void directAndRoasterEmittersWriteTheSameClass() throws Exception {
+        assertSameClass(GeneratorOptions.defaults());
+    }
+
+    @Test
+    public void directAndRoasterEmittersWriteTheSameLeanClass() throws Exception {
+        final JavaClassSource lean = assertSameClass(GeneratorOptions.defaults().withLeanAccessors(true));
+        final String isEmpty = lean.getMethod("isEmpty").getBody().replaceAll("\\s+", "");
+        assertEquals("returnsuper.isEmpty()&&ElementUtil.isEmpty(myIdentifier)&&ElementUtil.isEmpty(myGeneralPractitioner)"
+                + "&&(nationality==null||nationality.isEmpty());", isEmpty);
+        // generalPractitioner allows a single reference
+        final String getter = lean.getMethod("getGeneralPractitioner").getBody().replaceAll("\\s+", "");
+        assertTrue(getter, getter.contains("newjava.util.ArrayList<>(1)"));
+    }
+
+    private static JavaClassSource assertSameClass(final GeneratorOptions options) {
+        final FileStructureDefinitionProvider provider = new FileStructureDefinitionProvider("generated", new File(RESOURCES, "simple-patient.json"));
+        final GenerationResult direct = new Generator(new StructureDefinitionRegistry(), options).generateResult(provider);
+        final GenerationResult roaster = new Generator(new StructureDefinitionRegistry(),
+                options.withEmitter(new RoasterSourceEmitter())).generateResult(provider);
+        assertTrue(String.valueOf(direct.getError()), direct.isSuccess());
+        assertTrue(String.valueOf(roaster.getError()), roaster.isSuccess());
+
+        final JavaClassSource expected = Roaster.parse(JavaClassSource.class, roaster.getSource());
+        final JavaClassSource actual = Roaster.parse(JavaClassSource.class, direct.getSource());
+        assertEquals("SimplePatient", direct.getClassName());
+        assertEquals(expected.getQualifiedName(), actual.getQualifiedName());
+        assertEquals(expected.getSuperType(), actual.getSuperType());
+        assertEquals(expected.getImports().toString(), actual.getImports().toString());
+        assertEquals(describeFields(expected), describeFields(actual));
+        assertEquals(describeMethods(expected), describeMethods(actual));
+        return actual;
+    }
+
+    private static List<String> describeFields(final JavaClassSource javaClass) {
+        final List<String> fields = new ArrayList<>();
+        for (final FieldSource<JavaClassSource> field : javaClass.getFields()) {
+            fields.add(field.getAnnotations() + " " + field.getType().getQualifiedNameWithGenerics() + " " + field.getName());
+        }
+        return fields;
+    }
+
+    private static List<String> describeMethods(final JavaClassSource javaClass) {
+        final List<String> methods = new ArrayList<>();
+        for (final MethodSource<JavaClassSource> method : javaClass.getMethods()) {
+            methods.add(method.toSignature() + " " + method.getBody().replaceAll("\\s+", ""));
+        }
+        return methods;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.hl7.fhir.dstu3.model.StructureDefinition;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+
+public class StructureDefinitionReaderTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+    private static final String SIMPLE_PATIENT = "http://example.org/fhir/StructureDefinition/simple-patient";
+    private static final String NATIONALITY = "http://hl7.org/fhir/StructureDefinition/patient-nationality";
+    /** Characters outside ASCII that ISO-8859-1 and UTF-8 encode differently */
+    private static final String DESCRIPTION = "Nationalit\u00e9 du pati\u00ebnt";
+
+    @Test
+    public void sniffsJsonAndXml() throws IOException {
+        assertEquals(SIMPLE_PATIENT, read(resource("simple-patient.json")).getUrl());
+        assertEquals(NATIONALITY, read(resource("patient-nationality.xml")).getUrl());
+    }
+
+    @Test
+    public void skipsByteOrderMarkAndLeadingWhitespace() throws IOException {
+        final byte[] prefix = concat(new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF}, " \r\n\t ".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(SIMPLE_PATIENT, read(concat(prefix, resource("simple-patient.json"))).getUrl());
+        assertEquals(NATIONALITY, read(concat(prefix, resource("patient-nationality.xml"))).getUrl());
+    }
+
+    @Test
+    public void rejectsContentThatIsNeitherJsonNorXml() {
+        assertRejected("resourceType: StructureDefinition", "'r'");
+        assertRejected("  \n", "end of stream");
+        assertRejected("", "end of stream");
+    }
+
+    @Test
+    public void readsXmlInTheDeclaredEncoding() throws IOException {
+        final StructureDefinition definition = read(resource("patient-nationality.xml"));
+        definition.setDescription(DESCRIPTION);
+        final String xml = FhirContextRegistry.shared().getXmlParser(FhirVersionEnum.DSTU3).encodeResourceToString(definition);
+
+        final String latin1 = "<?xml version=\"1.0\" encoding='ISO-8859-1'?>\n" + xml;
+        assertEquals(DESCRIPTION, read(latin1.getBytes(StandardCharsets.ISO_8859_1)).getDescription());
+        // Without a declaration XML is UTF-8
+        assertEquals(DESCRIPTION, read(xml.getBytes(StandardCharsets.UTF_8)).getDescription());
+
+        try {
+            read(("<?xml version=\"1.0\" encoding=\"x-unknown\"?>\n" + xml).getBytes(StandardCharsets.UTF_8));
+            fail("Expected the encoding to be rejected");
+        } catch (final UnsupportedEncodingException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("x-unknown"));
+        }
+    }
+
+    private static void assertRejected(final String content, final String reported) {
+        try {
+            read(content.getBytes(StandardCharsets.UTF_8));
+            fail("Expected " + content + " to be rejected");
+        } catch (final IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Content is neither JSON nor XML") && e.getMessage().endsWith(reported));
+        }
+    }
+
+    private static StructureDefinition read(final byte[] content) throws IOException {
+        return StructureDefinitionReader.read(new ByteArrayInputStream(content), FhirContextRegistry.shared());
+    }
+
+    private static byte[] resource(final String name) throws IOException {
+        return Files.readAllBytes(new File(RESOURCES, name).toPath());
+    }
+
+    private static byte[] concat(final byte[] first, final byte[] second) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(first);
+        out.write(second);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.ElementDefinition;
+import org.hl7.fhir.dstu3.model.StructureDefinition;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class StructureDefinitionRegistryTest {
+
+    private static final File RESOURCES = new File("src/test/resources");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void resolvesEachExtensionOnce() throws IOException {
+        final CountingProvider provider = new CountingProvider(new FileStructureDefinitionProvider("generated", new File(RESOURCES, "nl-core-patient.json")));
+        final StructureDefinitionRegistry registry = new StructureDefinitionRegistry();
+        final ElementDefinition nationality = extension("http://hl7.org/fhir/StructureDefinition/patient-nationality");
+
+        final StructureDefinition first = registry.getReferenceDefinition(nationality, provider);
+        assertSame(first, registry.getReferenceDefinition(nationality, provider));
+        assertEquals(CodeableConcept.class, registry.getExtensionType(nationality, provider));
+        assertSame(first, registry.cached(provider).provideReferenceDefinition(nationality));
+        assertEquals(1, provider.calls.get());
+    }
+
+    @Test
+    public void remembersFailedLookupsUntilInvalidated() throws IOException {
+        final File directory = folder.newFolder();
+        Files.copy(new File(RESOURCES, "simple-patient.json").toPath(), new File(directory, "simple-patient.json").toPath());
+        final CountingProvider provider = new CountingProvider(new FileStructureDefinitionProvider("generated", new File(directory, "simple-patient.json")));
+        final StructureDefinitionRegistry registry = new StructureDefinitionRegistry();
+        final String url = "http://hl7.org/fhir/StructureDefinition/patient-nationality";
+        final ElementDefinition nationality = extension(url);
+
+        assertNotFound(registry, nationality, provider);
+        assertNotFound(registry, nationality, provider);
+        assertEquals(1, provider.calls.get());
+
+        // The miss is cached until the registry is told the definition changed
+        Files.copy(new File(RESOURCES, "patient-nationality.xml").toPath(), new File(directory, "patient-nationality.xml").toPath());
+        assertNotFound(registry, nationality, provider);
+        registry.invalidate(url);
+        assertEquals(CodeableConcept.class, registry.getExtensionType(nationality, provider));
+        assertEquals(CodeableConcept.class, registry.getExtensionType(nationality, provider));
+        assertEquals(2, provider.calls.get());
+    }
+
+    @Test
+    public void remembersFailedPrefetches() throws IOException {
+        final CountingProvider provider = new CountingProvider(new FileStructureDefinitionProvider("generated", new File(RESOURCES, "simple-patient.json")));
+        final StructureDefinitionRegistry registry = new StructureDefinitionRegistry();
+        final ElementDefinition missing = extension("http://example.org/fhir/StructureDefinition/missing");
+
+        registry.prefetch(Collections.singletonList(missing), provider, Runnable::run);
+        assertNotFound(registry, missing, provider);
+        assertNotFound(registry, missing, provider);
+        assertEquals(1, provider.calls.get());
+    }
+
+    private static void assertNotFound(final StructureDefinitionRegistry registry, final ElementDefinition element,
+                                       final StructureDefinitionProvider provider) throws IOException {
+        try {
+            registry.getExtensionType(element, provider);
+            fail("Expected the lookup to fail");
+        } catch (final FileNotFoundException e) {
+            // Expected, the file does not exist
+        }
+    }
+
+    @Test
+    public void prefetchesExtensionsConcurrentlyUpToTheLimit() throws Exception {
+        final byte[] nationality = Files.readAllBytes(new File(RESOURCES, "patient-nationality.xml").toPath());
+        final AtomicInteger downloads = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        final ExecutorService serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        final String base = "http://localhost:" + server.getAddress().getPort();
+        final int extensions = 6;
+        final byte[] profile = profile(base, extensions).getBytes(StandardCharsets.UTF_8);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final boolean isProfile = exchange.getRequestURI().getPath().equals("/profile");
+                if (!isProfile) {
+                    downloads.incrementAndGet();
+                    final int n = inFlight.incrementAndGet();
+                    maxInFlight.accumulateAndGet(n, Math::max);
+                    try {
+                        Thread.sleep(100);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    inFlight.decrementAndGet();
+                }
+                final byte[] body = isProfile ? profile : nationality;
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            for (final int concurrency : new int[]{3, 0}) {
+                downloads.set(0);
+                maxInFlight.set(0);
+                final Generator generator = new Generator(new StructureDefinitionRegistry(),
+                        GeneratorOptions.defaults().withPrefetchConcurrency(concurrency));
+                final GenerationResult result = generator.generateResult(new UrlStructureDefinitionProvider("generated", base + "/profile"));
+                assertTrue(String.valueOf(result.getError()), result.isSuccess());
+                assertEquals(extensions, result.getReferencedProfiles().size());
+                assertEquals(extensions, downloads.get());
+                if (concurrency > 0) {
+                    assertTrue("At most " + maxInFlight.get() + " in flight", maxInFlight.get() > 1 && maxInFlight.get() <= concurrency);
+                } else {
+                    assertEquals(1, maxInFlight.get());
+                }
+            }
+        } finally {
+            server.stop(0);
+            serverThreads.shutdown();
+        }
+    }
+
+    @Test
+    public void reportsAProfileWithoutTypeBeforePrefetching() {
+        final GenerationResult result = new Generator(new StructureDefinitionRegistry(), GeneratorOptions.defaults().withPrefetchConcurrency(3))
+                .generateResult(new FileStructureDefinitionProvider("generated", new File(RESOURCES, "FunctioningCondition.xml")));
+        assertFalse(result.isSuccess());
+        assertTrue(String.valueOf(result.getError()), result.getError() instanceof ClassNotFoundException);
+        assertTrue(result.getError().getMessage().startsWith("No dstu3 model class"));
+    }
+
+    /**
+     * A Patient profile with extension slices referencing {@code <base>/extension-<i>}.
+     */
+    private static String profile(final String base, final int extensions) {
+        final StringBuilder json = new StringBuilder("{\"resourceType\": \"StructureDefinition\", \"id\": \"prefetched\", \"url\": \"" + base + "/profile\", ")
+                .append("\"name\": \"Prefetched\", \"status\": \"draft\", \"kind\": \"resource\", \"abstract\": false, ")
+                .append("\"type\": \"Patient\", \"baseDefinition\": \"http://hl7.org/fhir/StructureDefinition/Patient\", ")
+                .append("\"derivation\": \"constraint\", \"differential\": {\"element\": [")
+                .append("{\"id\": \"Patient\", \"path\": \"Patient\"}, ")
+                .append("{\"id\": \"Patient.extension\", \"path\": \"Patient.extension\", ")
+                .append("\"slicing\": {\"discriminator\": [{\"type\": \"value\", \"path\": \"url\"}], \"rules\": \"open\"}}");
+        for (int i = 0; i < extensions; i++) {
+            json.append(", {\"id\": \"Patient.extension:e").append(i).append("\", \"path\": \"Patient.extension\", \"sliceName\": \"e")
+                    .append(i).append("\", \"min\": 0, \"max\": \"1\", \"type\": [{\"code\": \"Extension\", \"profile\": \"")
+                    .append(base).append("/extension-").append(i).append("\"}]}");
+        }
+        return json.append("]}}").toString();
+    }
+
+    private static ElementDefinition extension(final String profile) {
+        final ElementDefinition element = new ElementDefinition();
+        element.setPath("Patient.extension");
+        element.addType().setCode("Extension").setProfile(profile);
+        return element;
+    }
+
+    private static class CountingProvider implements StructureDefinitionProvider {
+        private final StructureDefinitionProvider delegate;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        CountingProvider(final StructureDefinitionProvider delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String getOutPackage() {
+            return delegate.getOutPackage();
+        }
+
+        @Override
+        public StructureDefinition getDefinition() throws IOException {
+            return delegate.getDefinition();
+        }
+
+        @Override
+        public StructureDefinition provideReferenceDefinition(final ElementDefinition element) throws IOException {
+            calls.incrementAndGet();
+            return delegate.provideReferenceDefinition(element);
+        }
+    }
+}
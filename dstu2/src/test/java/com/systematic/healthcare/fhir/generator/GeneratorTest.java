@@ -15,12 +15,124 @@
  */
 package com.systematic.healthcare.fhir.generator;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.hl7.fhir.dstu3.model.ElementDefinition;
+import org.hl7.fhir.dstu3.model.StructureDefinition;
 import org.junit.Test;
 
+import ca.uhn.fhir.contrib.generator.FileStructureDefinitionProvider;
+import ca.uhn.fhir.contrib.generator.GenerationResult;
+import ca.uhn.fhir.contrib.generator.Generator;
+import ca.uhn.fhir.contrib.generator.StructureDefinitionProvider;
+
 public class GeneratorTest {
 
+    private static final File RESOURCES = new File("src/test/resources");
+
     @Test
     public void doesItWork(){
         //It works....
     }
+
+    @Test
+    public void generateAllReportsErrorsPerProfileInInputOrder() {
+        final List<StructureDefinitionProvider> providers = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            providers.add(new FailingProvider("profile-" + i));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<GenerationResult> results = new Generator().generateAll(providers, executor);
+            assertEquals(providers.size(), results.size());
+            for (int i = 0; i < results.size(); i++) {
+                assertSame(providers.get(i), results.get(i).getProvider());
+                assertFalse(results.get(i).isSuccess());
+                assertEquals("profile-" + i, results.get(i).getError().getMessage());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void generateAllMatchesSequentialConversionInInputOrder() {
+        final List<StructureDefinitionProvider> providers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            for (final String name : new String[]{"simple-patient.json", "nl-core-patient.json", "FunctioningCondition.xml"}) {
+                providers.add(new FileStructureDefinitionProvider("generated", new File(RESOURCES, name)));
+            }
+        }
+        final Generator generator = new Generator();
+        final List<GenerationResult> sequential = new ArrayList<>();
+        for (final StructureDefinitionProvider provider : providers) {
+            sequential.add(generator.generateResult(provider));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<GenerationResult> parallel = generator.generateAll(providers, executor);
+            assertEquals(providers.size(), parallel.size());
+            for (int i = 0; i < parallel.size(); i++) {
+                assertSame(providers.get(i), parallel.get(i).getProvider());
+                assertEquals(sequential.get(i).isSuccess(), parallel.get(i).isSuccess());
+                assertEquals(sequential.get(i).getClassName(), parallel.get(i).getClassName());
+                assertEquals(sequential.get(i).getSource(), parallel.get(i).getSource());
+                assertEquals(String.valueOf(sequential.get(i).getError()), String.valueOf(parallel.get(i).getError()));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(sequential.get(0).isSuccess());
+        assertTrue(sequential.get(1).isSuccess());
+        assertFalse(sequential.get(2).isSuccess());
+    }
+
+    @Test
+    public void generateAllReportsErrorsAsFailuresOfTheirProfile() {
+        final List<StructureDefinitionProvider> providers = new ArrayList<>();
+        providers.add(new FileStructureDefinitionProvider("generated", new File(RESOURCES, "simple-patient.json")));
+        providers.add(new FailingProvider("profile-1") {
+            @Override
+            public StructureDefinition getDefinition() {
+                throw new NoClassDefFoundError("org/hl7/fhir/dstu3/model/Missing");
+            }
+        });
+        final List<GenerationResult> results = new Generator().generateAll(providers);
+        assertTrue(String.valueOf(results.get(0).getError()), results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertTrue(results.get(1).getError() instanceof NoClassDefFoundError);
+    }
+
+    private static class FailingProvider implements StructureDefinitionProvider {
+        private final String name;
+
+        FailingProvider(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getOutPackage() {
+            return "generated";
+        }
+
+        @Override
+        public StructureDefinition getDefinition() throws IOException {
+            throw new IOException(name);
+        }
+
+        @Override
+        public StructureDefinition provideReferenceDefinition(final ElementDefinition element) throws IOException {
+            throw new IOException(name);
+        }
+    }
 }
@@ -16,9 +16,11 @@
 package com.systematic.healthcare.gradle;
 
 import org.gradle.api.*
+import org.gradle.api.artifacts.Configuration
 import org.gradle.api.file.FileTree
 import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Optional
 import org.gradle.api.tasks.OutputDirectory;
 // https://github.com/rakeshcusat/Code4Reference/tree/master/GradleExample/custom-plugin-2
 class StructureDefinitionToJavaArg {
@@ -28,10 +30,26 @@ class StructureDefinitionToJavaArg {
     String outDirectory
     @Input
     String packageName
+    /** Maximum number of workers converting profiles at the same time, defaults to the Gradle max workers */
+    @Input
+    Integer parallelism
+    /** Generate accessors that allocate less: field by field isEmpty(), lists sized for the maximum cardinality */
+    @Input
+    Boolean leanAccessors = false
+    /** Simple name of a class listing every generated class by profile URL, for registering them at startup */
+    @Input
+    @Optional
+    String registryClass
 }
 class StructureDefinitionToJavaPlugin implements Plugin<Project> {
     void apply(Project project) {
         project.extensions.create("sdToJavaArg", StructureDefinitionToJavaArg)
-        project.task('sdToJavaTask', type: StructureDetinitionToJavaTask)
+        // The generator runs in its own classloader, so HAPI and Roaster do not leak into the build script classpath
+        Configuration generator = project.configurations.create("sdToJavaGenerator")
+        generator.visible = false
+        generator.description = "The generator used by sdToJavaTask, the dstu2 module as built by Maven"
+        project.task('sdToJavaTask', type: StructureDetinitionToJavaTask) {
+            generatorClasspath = generator
+        }
     }
 }
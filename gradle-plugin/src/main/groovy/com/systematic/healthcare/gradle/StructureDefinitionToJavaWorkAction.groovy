@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.systematic.healthcare.gradle
+
+import ca.uhn.fhir.contrib.generator.DirectoryOutputSink
+import ca.uhn.fhir.contrib.generator.FileStructureDefinitionProvider
+import ca.uhn.fhir.contrib.generator.GenerationListener
+import ca.uhn.fhir.contrib.generator.GenerationMetrics
+import ca.uhn.fhir.contrib.generator.GenerationResult
+import ca.uhn.fhir.contrib.generator.Generator
+import ca.uhn.fhir.contrib.generator.GeneratorOptions
+import ca.uhn.fhir.contrib.generator.IncrementalState
+import ca.uhn.fhir.contrib.generator.OutputSink
+import ca.uhn.fhir.contrib.generator.StructureDefinitionRegistry
+import org.gradle.api.GradleException
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.provider.Property
+import org.gradle.workers.WorkAction
+import org.gradle.workers.WorkParameters
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+interface StructureDefinitionToJavaParameters extends WorkParameters {
+    ConfigurableFileCollection getFiles()
+
+    Property<String> getPackageName()
+
+    /** The package directory the generated classes are written to */
+    DirectoryProperty getPackageDirectory()
+
+    /** Where the worker records what it generated, for the task to merge into its state */
+    RegularFileProperty getStateFragment()
+
+    /** Where the worker writes the timings of its profiles, for the task to merge into its report */
+    RegularFileProperty getMetricsFragment()
+
+    Property<String> getConfiguration()
+
+    Property<Boolean> getLeanAccessors()
+}
+
+/**
+ * Converts one chunk of profiles. Runs in a classloader holding the generator and its dependencies, so they never end
+ * up on the build script classpath.
+ */
+abstract class StructureDefinitionToJavaWorkAction implements WorkAction<StructureDefinitionToJavaParameters> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StructureDefinitionToJavaWorkAction)
+
+    @Override
+    void execute() {
+        StructureDefinitionToJavaParameters params = getParameters()
+        File outDir = params.packageDirectory.get().asFile
+        IncrementalState fragment = IncrementalState.load(params.stateFragment.get().asFile, params.configuration.get())
+        GenerationMetrics metrics = new GenerationMetrics()
+        // One generator per chunk, so extensions shared by several profiles are only parsed once
+        Generator generator = new Generator(new StructureDefinitionRegistry(), GeneratorOptions.defaults().withListener(metrics)
+                .withLeanAccessors(params.leanAccessors.get()))
+        // Leaves classes that did not change untouched, so their timestamps do not trigger recompilation
+        OutputSink sink = new DirectoryOutputSink(outDir)
+        List<String> failures = []
+        for (File f : params.files) {
+            LOGGER.info("Converting file: ${f}")
+            FileStructureDefinitionProvider provider = new FileStructureDefinitionProvider(params.packageName.get(), f)
+            GenerationResult result = generator.generateResult(provider)
+            if (!result.isSuccess()) {
+                LOGGER.error("Could not convert ${f}", result.getError())
+                failures << "${f.name}: ${result.getError()}".toString()
+                continue
+            }
+            File outFile = new File(outDir, result.getClassName() + ".java")
+            long start = System.nanoTime()
+            sink.write(outFile.name, result.getSource().getBytes("UTF-8"))
+            metrics.phase(provider, GenerationListener.Phase.WRITE, System.nanoTime() - start)
+            fragment.record(f, [outFile], result.getReferencedProfiles().collect { provider.getReferenceFile(it) })
+            fragment.recordProfile(f, result.getClassName(), result.getModel().getProfileUrl())
+        }
+        // Written before the fragment is saved, so a recorded profile always has its class on disk
+        sink.flush()
+        fragment.save()
+        params.metricsFragment.get().asFile.withWriter("UTF-8") { metrics.writeJson(it) }
+
+        if (!failures.isEmpty()) {
+            throw new GradleException("Could not convert ${failures.size()} file(s):\n  " + failures.join("\n  "))
+        }
+    }
+}
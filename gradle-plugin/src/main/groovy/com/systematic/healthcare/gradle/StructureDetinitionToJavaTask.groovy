@@ -15,36 +15,198 @@
  */
 package com.systematic.healthcare.gradle
 
-import com.systematic.healthcare.fhir.generator.FileStructureDefinitionProvider
-import com.systematic.healthcare.fhir.generator.Generator
-import com.systematic.healthcare.fhir.generator.StructureDefinitionProvider
+import ca.uhn.fhir.contrib.generator.IncrementalState
+import ca.uhn.fhir.contrib.generator.ProfileRegistrySource
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
 import org.gradle.api.DefaultTask
+import org.gradle.api.GradleException
+import org.gradle.api.file.FileCollection
+import org.gradle.api.tasks.Classpath
 import org.gradle.api.tasks.TaskAction
-import org.jboss.forge.roaster.model.source.JavaClassSource
+import org.gradle.workers.WorkQueue
+import org.gradle.workers.WorkerExecutor
 
-import java.nio.file.Files
+import javax.inject.Inject
 
-class StructureDetinitionToJavaTask extends DefaultTask {
+/**
+ * Converts the profiles in {@code sdToJavaArg.files} to Java classes. Only profiles that changed since the last run,
+ * or whose referenced extension definitions changed, are regenerated; outputs of removed profiles are deleted.
+ * <p>
+ * The profiles are converted in chunks by Gradle workers, at most {@code sdToJavaArg.parallelism} at a time, in a
+ * classloader holding the {@code sdToJavaGenerator} configuration, which the build has to fill.
+ */
+abstract class StructureDetinitionToJavaTask extends DefaultTask {
+
+    @Classpath
+    FileCollection generatorClasspath
+
+    @Inject
+    abstract WorkerExecutor getWorkerExecutor()
 
     @TaskAction
     def convert() {
         getLogger().info("------------ Convert -------------------")
         getLogger().info("Out folder: ${project.sdToJavaArg.outDirectory}")
         getLogger().info("Files: ${project.sdToJavaArg.files}")
-        project.sdToJavaArg.files.each { File f ->
-            getLogger().info("Converting file: ${f}")
-            StructureDefinitionProvider provider = new FileStructureDefinitionProvider(
-                    project.sdToJavaArg.packageName,
-                    f)
-            JavaClassSource javaClass = Generator.generate(provider)
-            File outDir = new File(project.sdToJavaArg.outDirectory);
-            for (String s : project.sdToJavaArg.packageName.split("\\.")) {
-                outDir = new File(outDir, s);
-            }
-            outDir.mkdirs()
-            Files.write(
-                    new File(outDir, javaClass.getName() + ".java").toPath(),
-                    javaClass.toString().getBytes("UTF-8"))
+        String packageName = project.sdToJavaArg.packageName
+        File outDir = new File(project.sdToJavaArg.outDirectory)
+        for (String s : packageName.split("\\.")) {
+            outDir = new File(outDir, s)
+        }
+        boolean leanAccessors = project.sdToJavaArg.leanAccessors as boolean
+        String configuration = "${packageName}\t${outDir.absolutePath}${leanAccessors ? '\tlean' : ''}".toString()
+
+        File stateFile = new File(getTemporaryDir(), "state.tsv")
+        IncrementalState state = IncrementalState.load(stateFile, configuration)
+        Set<File> inputs = new LinkedHashSet<File>(project.sdToJavaArg.files.files.collect { it.absoluteFile })
+
+        for (File removed : state.getInputs()) {
+            if (!inputs.contains(removed)) {
+                getLogger().info("Removing outputs of deleted file: ${removed}")
+                deleteUnclaimed(state, state.remove(removed))
+            }
+        }
+
+        List<File> stale = inputs.findAll { !state.isUpToDate(it) } as List<File>
+        getLogger().info("${stale.size()} of ${inputs.size()} files out of date")
+        // Stale files are recorded again by the workers that convert them. A file that fails to convert stays
+        // unrecorded, so it is retried on the next run even if it does not change.
+        Map<File, Set<File>> previousOutputs = [:]
+        for (File f : stale) {
+            previousOutputs[f] = state.remove(f)
+        }
+
+        outDir.mkdirs()
+        List<File> fragments = []
+        List<File> metricsFragments = []
+        Throwable failure = null
+        try {
+            if (!stale.isEmpty() && generatorClasspath.isEmpty()) {
+                throw new GradleException("No generator to convert profiles with, add the dstu2 module to the sdToJavaGenerator configuration, " +
+                        "e.g. sdToJavaGenerator 'hapi-fhir-profile-generator:hapi-fhir-profile-generator:0.0.1-SNAPSHOT'")
+            }
+            WorkQueue queue = getWorkerExecutor().classLoaderIsolation {
+                it.classpath.from(generatorClasspath)
+            }
+            List<List<File>> chunks = chunk(stale, parallelism())
+            chunks.eachWithIndex { List<File> files, int i ->
+                File fragment = new File(getTemporaryDir(), "state-${i}.tsv")
+                fragment.delete()
+                fragments << fragment
+                File metricsFragment = new File(getTemporaryDir(), "metrics-${i}.json")
+                metricsFragment.delete()
+                metricsFragments << metricsFragment
+                File packageDirectory = outDir
+                queue.submit(StructureDefinitionToJavaWorkAction) {
+                    it.files.from(files)
+                    it.packageName.set(packageName)
+                    it.packageDirectory.set(packageDirectory)
+                    it.stateFragment.set(fragment)
+                    it.metricsFragment.set(metricsFragment)
+                    it.configuration.set(configuration)
+                    it.leanAccessors.set(leanAccessors)
+                }
+            }
+            queue.await()
+        } catch (Throwable e) {
+            failure = e
+        } finally {
+            // Keep what the successful workers generated, even if others failed
+            mergeFragments(state, fragments, configuration, previousOutputs)
+            state.save()
+            if (project.sdToJavaArg.registryClass) {
+                ProfileRegistrySource.write(outDir, packageName, project.sdToJavaArg.registryClass as String, state.getProfiles())
+            }
+            writeReport(metricsFragments)
+        }
+        if (failure != null) {
+            throw failure
+        }
+    }
+
+    /**
+     * Merges the timings the workers wrote into one report over all profiles converted by this run, the slowest first.
+     */
+    private void writeReport(List<File> metricsFragments) {
+        List<Map> profiles = []
+        for (File fragment : metricsFragments) {
+            if (fragment.isFile()) {
+                profiles.addAll(new JsonSlurper().parse(fragment, "UTF-8").profiles as List<Map>)
+                fragment.delete()
+            }
+        }
+        profiles.sort { -(it.totalMs as BigDecimal) }
+        Map<String, BigDecimal> phases = new LinkedHashMap<>()
+        Map<String, Map<String, Integer>> caches = new LinkedHashMap<>()
+        for (Map profile : profiles) {
+            profile.phasesMs.each { String phase, ms -> phases[phase] = (phases[phase] ?: 0) + (ms as BigDecimal) }
+            profile.caches.each { String cache, Map counts ->
+                Map<String, Integer> total = caches.computeIfAbsent(cache) { [hits: 0, misses: 0] }
+                total.hits += counts.hits as Integer
+                total.misses += counts.misses as Integer
+            }
+        }
+        Map totals = [
+                profiles: profiles.size(),
+                failures: profiles.count { !it.success },
+                totalMs : profiles.sum(BigDecimal.ZERO) { it.totalMs as BigDecimal },
+                phasesMs: phases,
+                caches  : caches
+        ]
+        File report = project.file("${project.buildDir}/reports/sdToJava/generation.json")
+        report.parentFile.mkdirs()
+        report.setText(JsonOutput.prettyPrint(JsonOutput.toJson([profiles: profiles, totals: totals])), "UTF-8")
+        getLogger().info("Generation report: ${report}")
+    }
+
+    private int parallelism() {
+        Integer parallelism = project.sdToJavaArg.parallelism
+        return parallelism != null && parallelism > 0 ? parallelism : project.gradle.startParameter.maxWorkerCount
+    }
+
+    /**
+     * Splits the files into at most {@code count} chunks of about the same size.
+     */
+    static List<List<File>> chunk(List<File> files, int count) {
+        List<List<File>> chunks = []
+        int n = Math.min(count, files.size())
+        for (int i = 0; i < n; i++) {
+            chunks << []
+        }
+        files.eachWithIndex { File f, int i -> chunks[i % n] << f }
+        return chunks
+    }
+
+    /**
+     * Takes over what the workers recorded and deletes their fragments. Then deletes the outputs the converted files
+     * had before that nothing produces any more, such as the class of a renamed profile, or of one that failed.
+     *
+     * @param fragments       the state fragments of the workers, missing for a worker that failed before saving
+     * @param previousOutputs the outputs recorded for each converted file before it was converted
+     */
+    static void mergeFragments(IncrementalState state, List<File> fragments, String configuration, Map<File, Set<File>> previousOutputs) {
+        for (File fragment : fragments) {
+            state.merge(IncrementalState.load(fragment, configuration))
+            fragment.delete()
+        }
+        for (Map.Entry<File, Set<File>> previous : previousOutputs.entrySet()) {
+            deleteUnclaimed(state, previous.value - state.outputsOf(previous.key))
+        }
+    }
+
+    /**
+     * Deletes outputs that no recorded input produces any more.
+     */
+    private static void deleteUnclaimed(IncrementalState state, Collection<File> outputs) {
+        Set<File> claimed = new HashSet<File>()
+        for (File input : state.getInputs()) {
+            claimed.addAll(state.outputsOf(input))
+        }
+        for (File output : outputs) {
+            if (!claimed.contains(output)) {
+                output.delete()
+            }
         }
     }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.systematic.healthcare.gradle
+
+import ca.uhn.fhir.contrib.generator.IncrementalState
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertTrue
+
+class StructureDetinitionToJavaTaskTest {
+
+    private static final String CONFIGURATION = "gen.pkg\t/out"
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder()
+
+    @Test
+    void splitsFilesIntoChunksOfAboutTheSameSize() {
+        List<File> files = (1..5).collect { new File("p${it}.json") }
+
+        assertEquals([[files[0], files[2], files[4]], [files[1], files[3]]], StructureDetinitionToJavaTask.chunk(files, 2))
+        assertEquals([files], StructureDetinitionToJavaTask.chunk(files, 1))
+        assertEquals(files.collect { [it] }, StructureDetinitionToJavaTask.chunk(files, 8))
+        assertEquals([], StructureDetinitionToJavaTask.chunk([], 4))
+    }
+
+    @Test
+    void mergesWorkerFragmentsAndDeletesOutputsNoLongerProduced() {
+        File a = folder.newFile("a.json")
+        File b = folder.newFile("b.json")
+        File c = folder.newFile("c.json")
+        File aClass = folder.newFile("A.java")
+        File aOldClass = folder.newFile("AOld.java")
+        File bClass = folder.newFile("B.java")
+        File cClass = folder.newFile("C.java")
+
+        // c was up to date, a and b were removed from the state before being handed to the workers
+        IncrementalState state = IncrementalState.load(new File(folder.root, "state.tsv"), CONFIGURATION)
+        state.record(c, [cClass], [])
+        Map<File, Set<File>> previousOutputs = [(a): [aClass, aOldClass] as Set, (b): [bClass] as Set]
+
+        // The first worker converted a, whose profile was renamed, and the second failed on b before saving
+        File converted = new File(folder.root, "state-0.tsv")
+        IncrementalState fragment = IncrementalState.load(converted, CONFIGURATION)
+        fragment.record(a, [aClass], [])
+        fragment.recordProfile(a, "A", "http://example.org/a")
+        fragment.save()
+        File failed = new File(folder.root, "state-1.tsv")
+
+        StructureDetinitionToJavaTask.mergeFragments(state, [converted, failed], CONFIGURATION, previousOutputs)
+
+        assertEquals([a.absoluteFile, c.absoluteFile] as Set, state.inputs)
+        assertEquals([aClass.absoluteFile] as Set, state.outputsOf(a))
+        assertEquals(["http://example.org/a": "A"], state.profiles)
+        assertTrue(aClass.isFile())
+        assertFalse(aOldClass.exists())
+        assertFalse(bClass.exists())
+        assertTrue(cClass.isFile())
+        assertFalse(converted.exists())
+    }
+}
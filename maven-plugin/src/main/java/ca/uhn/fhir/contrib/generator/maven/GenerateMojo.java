@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.Scanner;
+import org.sonatype.plexus.build.incremental.BuildContext;
+
+import ca.uhn.fhir.contrib.generator.FileStructureDefinitionProvider;
+import ca.uhn.fhir.contrib.generator.GenerationResult;
+import ca.uhn.fhir.contrib.generator.Generator;
+import ca.uhn.fhir.contrib.generator.GeneratorOptions;
+import ca.uhn.fhir.contrib.generator.IncrementalState;
+import ca.uhn.fhir.contrib.generator.PackageIndex;
+import ca.uhn.fhir.contrib.generator.ProfileRegistrySource;
+import ca.uhn.fhir.contrib.generator.StructureDefinitionRegistry;
+
+/**
+ * Converts the profiles in {@link #sourceDirectory} to HAPI FHIR classes.
+ * <p>
+ * Only profiles that changed since the last build, or whose referenced extension definitions changed, are converted
+ * again; outputs of removed profiles are deleted. In an IDE the build context's delta decides what changed, otherwise
+ * the content fingerprints recorded by the previous build do.
+ */
+@Mojo(name = "generate", defaultPhase = LifecyclePhase.GENERATE_SOURCES, threadSafe = true)
+public class GenerateMojo extends AbstractMojo {
+
+    private static final String[] DEFAULT_INCLUDES = {"**/*.xml", "**/*.json"};
+
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    private MavenProject project;
+
+    @Component
+    private BuildContext buildContext;
+
+    /**
+     * The directory holding the profiles and the extension definitions they reference.
+     */
+    @Parameter(defaultValue = "${basedir}/src/main/fhir", required = true)
+    private File sourceDirectory;
+
+    /**
+     * The profiles to convert, relative to the source directory. Defaults to all XML and JSON files. Extensions and
+     * other definitions that do not constrain a resource are skipped, as they are only read when a profile references
+     * them.
+     */
+    @Parameter
+    private String[] includes;
+
+    @Parameter
+    private String[] excludes;
+
+    @Parameter(defaultValue = "${project.build.directory}/generated-sources/fhir", required = true)
+    private File outputDirectory;
+
+    @Parameter(required = true)
+    private String packageName;
+
+    /**
+     * Number of profiles converted at the same time, defaults to the number of processors.
+     */
+    @Parameter(property = "fhir.generator.threads", defaultValue = "0")
+    private int threads;
+
+    /**
+     * Generate accessors that allocate less: {@code isEmpty()} checks the fields one by one, and lists are created
+     * with room for the maximum cardinality of their element when that is small.
+     */
+    @Parameter(property = "fhir.generator.leanAccessors", defaultValue = "false")
+    private boolean leanAccessors;
+
+    /**
+     * The simple name of a class to write next to the generated classes, listing each of them by the canonical URL of
+     * its profile, with methods to register and scan them all at startup. None is written if not set.
+     */
+    @Parameter(property = "fhir.generator.registryClass")
+    private String registryClass;
+
+    @Parameter(property = "fhir.generator.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (skip) {
+            getLog().info("Skipping profile generation");
+            return;
+        }
+        project.addCompileSourceRoot(outputDirectory.getPath());
+        if (!sourceDirectory.isDirectory()) {
+            getLog().info("No profiles to convert, " + sourceDirectory + " does not exist");
+            return;
+        }
+        final File packageDirectory = new File(outputDirectory, packageName.replace('.', File.separatorChar));
+        final IncrementalState state = IncrementalState.load(
+                new File(project.getBuild().getDirectory(), "fhir-generator/state.tsv"),
+                packageName + "\t" + packageDirectory.getAbsolutePath() + (leanAccessors ? "\tlean" : ""));
+        try {
+            final Set<File> inputs = scan(true, includes != null ? includes : DEFAULT_INCLUDES, excludes);
+            removeSupportingDefinitions(inputs);
+
+            for (final File removed : state.getInputs()) {
+                if (!inputs.contains(removed)) {
+                    getLog().debug("Removing outputs of deleted file: " + removed);
+                    deleteUnclaimed(state, state.remove(removed));
+                }
+            }
+
+            final List<File> stale = findStale(state, inputs);
+            getLog().info(stale.size() + " of " + inputs.size() + " profiles out of date");
+            try {
+                if (!stale.isEmpty()) {
+                    convert(state, stale, packageDirectory);
+                }
+            } finally {
+                if (registryClass != null) {
+                    buildContext.refresh(ProfileRegistrySource.write(packageDirectory, packageName, registryClass, state.getProfiles()));
+                }
+            }
+        } catch (final IOException e) {
+            throw new MojoExecutionException("Could not convert profiles in " + sourceDirectory, e);
+        } finally {
+            try {
+                state.save();
+            } catch (final IOException e) {
+                getLog().warn("Could not save the incremental build state, the next build converts all profiles", e);
+            }
+        }
+    }
+
+    private List<File> findStale(final IncrementalState state, final Set<File> inputs) throws IOException {
+        final List<File> stale = new ArrayList<>();
+        if (buildContext.isIncremental()) {
+            final Set<File> recorded = state.getInputs();
+            final Set<File> affected = new HashSet<>();
+            for (final File changed : scan(false, new String[]{"**/*"}, null)) {
+                affected.add(changed);
+                affected.addAll(state.getInputsDependingOn(changed));
+            }
+            for (final File input : inputs) {
+                if (affected.contains(input) || !recorded.contains(input)) {
+                    stale.add(input);
+                }
+            }
+        } else {
+            for (final File input : inputs) {
+                if (!state.isUpToDate(input)) {
+                    stale.add(input);
+                }
+            }
+        }
+        return stale;
+    }
+
+    private void convert(final IncrementalState state, final List<File> stale, final File packageDirectory)
+            throws IOException, MojoFailureException {
+        final List<FileStructureDefinitionProvider> providers = new ArrayList<>();
+        for (final File input : stale) {
+            buildContext.removeMessages(input);
+            providers.add(new FileStructureDefinitionProvider(packageName, input));
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        final List<GenerationResult> results;
+        try {
+            results = new Generator(new StructureDefinitionRegistry(), GeneratorOptions.defaults().withLeanAccessors(leanAccessors))
+                    .generateAll(providers, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        int failures = 0;
+        for (int i = 0; i < results.size(); i++) {
+            final File input = stale.get(i);
+            final GenerationResult result = results.get(i);
+            final Set<File> previous = state.remove(input);
+            if (!result.isSuccess()) {
+                failures++;
+                buildContext.addMessage(input, 0, 0, "Could not convert profile: " + result.getError(), BuildContext.SEVERITY_ERROR, result.getError());
+                getLog().error("Could not convert " + input, result.getError());
+                continue;
+            }
+            final File output = new File(packageDirectory, result.getClassName() + ".java");
+            write(output, result.getSource());
+
+            final List<File> dependencies = new ArrayList<>();
+            for (final String profileUrl : result.getReferencedProfiles()) {
+                dependencies.add(providers.get(i).getReferenceFile(profileUrl));
+            }
+            state.record(input, Collections.singleton(output), dependencies);
+            state.recordProfile(input, result.getClassName(), result.getModel().getProfileUrl());
+            previous.remove(output.getAbsoluteFile());
+            deleteUnclaimed(state, previous);
+        }
+        if (failures > 0) {
+            throw new MojoFailureException("Could not convert " + failures + " of " + stale.size() + " profiles, see the log for details");
+        }
+    }
+
+    private Set<File> scan(final boolean ignoreDelta, final String[] includePatterns, final String[] excludePatterns) {
+        final Scanner scanner = buildContext.newScanner(sourceDirectory, ignoreDelta);
+        scanner.setIncludes(includePatterns);
+        scanner.setExcludes(excludePatterns);
+        scanner.scan();
+        final Set<File> files = new LinkedHashSet<>();
+        for (final String name : scanner.getIncludedFiles()) {
+            files.add(new File(sourceDirectory, name).getAbsoluteFile());
+        }
+        return files;
+    }
+
+    private void removeSupportingDefinitions(final Set<File> inputs) throws IOException {
+        for (final Iterator<File> i = inputs.iterator(); i.hasNext(); ) {
+            final File input = i.next();
+            if (PackageIndex.isSupportingDefinition(input)) {
+                getLog().debug("Skipping definition that does not constrain a resource: " + input);
+                i.remove();
+            }
+        }
+    }
+
+    private void write(final File output, final String source) throws IOException {
+        final byte[] content = source.getBytes(StandardCharsets.UTF_8);
+        // Unchanged classes keep their timestamps, so the compiler does not see them as changed
+        if (output.length() == content.length && output.isFile() && Arrays.equals(content, Files.readAllBytes(output.toPath()))) {
+            return;
+        }
+        final File dir = output.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir);
+        }
+        try (OutputStream out = buildContext.newFileOutputStream(output)) {
+            out.write(content);
+        }
+    }
+
+    /**
+     * Deletes outputs that no recorded input produces any more.
+     */
+    private void deleteUnclaimed(final IncrementalState state, final Collection<File> outputs) {
+        final Set<File> claimed = new HashSet<>();
+        for (final File input : state.getInputs()) {
+            claimed.addAll(state.outputsOf(input));
+        }
+        for (final File output : outputs) {
+            if (!claimed.contains(output) && output.delete()) {
+                buildContext.refresh(output);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 Systematic A/S
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.uhn.fhir.contrib.generator.maven;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
+
+public class GenerateMojoTest {
+
+    private static final File RESOURCES = new File("src/test/resources/profiles");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File sourceDirectory;
+    private File outputDirectory;
+    private File buildDirectory;
+    private final List<String> info = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        sourceDirectory = folder.newFolder("fhir");
+        outputDirectory = folder.newFolder("generated-sources");
+        buildDirectory = folder.newFolder("target");
+    }
+
+    @Test
+    public void skipsExtensionDefinitionsNextToTheProfiles() throws Exception {
+        copy("simple-patient.json");
+        copy("patient-nationality.xml");
+
+        mojo().execute();
+        assertArrayEquals(new String[]{"SimplePatient.java"}, new File(outputDirectory, "generated").list());
+    }
+
+    @Test
+    public void convertsTheIncludedProfilesOnly() throws Exception {
+        copy("simple-patient.json");
+        copy("patient-nationality.xml");
+        writeOtherPatient();
+
+        final GenerateMojo mojo = mojo();
+        set(mojo, "includes", new String[]{"*-patient.json"});
+        set(mojo, "excludes", new String[]{"other-*"});
+        mojo.execute();
+        assertArrayEquals(new String[]{"SimplePatient.java"}, new File(outputDirectory, "generated").list());
+    }
+
+    @Test
+    public void convertsOnlyProfilesThatChanged() throws Exception {
+        copy("simple-patient.json");
+        final File extension = copy("patient-nationality.xml");
+        writeOtherPatient();
+
+        mojo().execute();
+        assertEquals("2 of 2 profiles out of date", info.get(0));
+        mojo().execute();
+        assertEquals("0 of 2 profiles out of date", info.get(1));
+
+        // Both profiles reference the extension, so changing it converts both again
+        Files.write(extension.toPath(), "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        mojo().execute();
+        assertEquals("2 of 2 profiles out of date", info.get(2));
+
+        final File output = new File(outputDirectory, "generated/SimplePatient.java");
+        assertTrue(output.delete());
+        mojo().execute();
+        assertEquals("1 of 2 profiles out of date", info.get(3));
+        assertTrue(output.isFile());
+    }
+
+    @Test
+    public void deletesTheClassesOfRemovedProfiles() throws Exception {
+        copy("simple-patient.json");
+        copy("patient-nationality.xml");
+        final File other = writeOtherPatient();
+        final File registry = new File(outputDirectory, "generated/Profiles.java");
+
+        GenerateMojo mojo = mojo();
+        set(mojo, "registryClass", "Profiles");
+        mojo.execute();
+        assertArrayEquals(new String[]{"OtherPatient.java", "Profiles.java", "SimplePatient.java"}, sortedList(new File(outputDirectory, "generated")));
+        String source = new String(Files.readAllBytes(registry.toPath()), StandardCharsets.UTF_8);
+        assertTrue(source, source.contains("\"http://example.org/fhir/StructureDefinition/simple-patient\""));
+        assertTrue(source, source.contains("\"http://example.org/fhir/StructureDefinition/other-patient\""));
+
+        assertTrue(other.delete());
+        mojo = mojo();
+        set(mojo, "registryClass", "Profiles");
+        mojo.execute();
+        assertArrayEquals(new String[]{"Profiles.java", "SimplePatient.java"}, sortedList(new File(outputDirectory, "generated")));
+        source = new String(Files.readAllBytes(registry.toPath()), StandardCharsets.UTF_8);
+        assertTrue(source, source.contains("\"http://example.org/fhir/StructureDefinition/simple-patient\""));
+        assertFalse(source, source.contains("other-patient"));
+    }
+
+    /**
+     * @return a mojo for the test directories, configured like a plugin without configuration besides the package
+     */
+    private GenerateMojo mojo() throws ReflectiveOperationException {
+        final MavenProject project = new MavenProject();
+        project.getBuild().setDirectory(buildDirectory.getPath());
+        final GenerateMojo mojo = new GenerateMojo();
+        set(mojo, "project", project);
+        set(mojo, "buildContext", new DefaultBuildContext());
+        set(mojo, "sourceDirectory", sourceDirectory);
+        set(mojo, "outputDirectory", outputDirectory);
+        set(mojo, "packageName", "generated");
+        mojo.setLog(new SystemStreamLog() {
+            @Override
+            public void info(final CharSequence content) {
+                info.add(content.toString());
+            }
+        });
+        return mojo;
+    }
+
+    private static void set(final GenerateMojo mojo, final String name, final Object value) throws ReflectiveOperationException {
+        final Field field = GenerateMojo.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(mojo, value);
+    }
+
+    private static String[] sortedList(final File directory) {
+        final String[] names = directory.list();
+        Arrays.sort(names);
+        return names;
+    }
+
+    /**
+     * Writes a second profile, a copy of simple-patient with another name and URL.
+     */
+    private File writeOtherPatient() throws IOException {
+        final String source = new String(Files.readAllBytes(new File(RESOURCES, "simple-patient.json").toPath()), StandardCharsets.UTF_8);
+        final File file = new File(sourceDirectory, "other-patient.json");
+        Files.write(file.toPath(), source.replace("simple-patient", "other-patient").replace("Simple Patient", "Other Patient")
+                .getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private File copy(final String name) throws IOException {
+        final File file = new File(sourceDirectory, name);
+        Files.copy(new File(RESOURCES, name).toPath(), file.toPath());
+        return file;
+    }
+}